@@ -1,51 +1,231 @@
 package loadbalancingbroker;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
 
 import loadbalancingbroker.broker.LBBroker;
+import loadbalancingbroker.broker.RequestQueue;
+import loadbalancingbroker.broker.SchedulingPolicies;
 import loadbalancingbroker.client.Client;
+import loadbalancingbroker.codec.TileCodecs;
+import loadbalancingbroker.domain.TileFormat;
+import loadbalancingbroker.domain.TilePriority;
+import loadbalancingbroker.worker.PngEncoder;
 import loadbalancingbroker.worker.Worker;
 
 public class Main {
-	private static final String FRONTEND_URL = "tcp://localhost:5555";
+	// single-JVM mode (-Dinproc=true): all roles share one context and talk over inproc://
+	// instead of the loopback TCP stack, frames are handed over by reference
+	private static final boolean INPROC = Boolean.getBoolean("inproc");
+	private static final Context SHARED_CONTEXT = INPROC ? ZMQ.context(1) : null;
+
+	// sharding (-Dbrokers=N): N brokers, the clients spread the tiles over them by consistent hashing
+	private static final int NBR_BROKERS = Integer.getInteger("brokers", 1);
+	// workers of N brokers: "split" gives every broker a pool of its own, "all" registers every worker with all of them
+	private static final boolean WORKERS_ON_ALL_BROKERS = "all".equals(System.getProperty("workerBrokers", "split"));
 	private static final int NBR_CLIENTS = 1;
+	// views every client renders one after another (-Dviews=N), each one shown this long before the next
+	// replaces it; the requests of a replaced view still outstanding are cancelled
+	private static final int NBR_VIEWS = Integer.getInteger("views", 1);
+	private static final long VIEW_MILLIS = Long.getLong("viewMillis", 2_000);
 
-	private static final String BACKEND_URL = "tcp://localhost:6666";
 	private static final int NBR_WORKERS = 50;
+	// requests the broker queues at every worker at once
+	private static final int WORKER_CREDITS = Integer.getInteger("workerCredits", 2);
 	private static final int MIN_IMAGE_DIMENSION = 600;
 	private static final int MAX_IMAGE_DIMENSION = 700;
+	// how often the broker prints the measured worker scores, 0 to never print them
+	private static final long BROKER_STATS_INTERVAL_MILLIS = Long.getLong("brokerStatsMillis", 10_000);
+	// requests the broker queues while no worker is idle, and what it does when the queue is full:
+	// "backpressure" leaves new requests in the frontend socket, "reject" answers them with an empty reply
+	private static final int BROKER_QUEUE_CAPACITY = Integer.getInteger("brokerQueueCapacity", 1_000);
+	private static final RequestQueue.FullPolicy BROKER_QUEUE_FULL_POLICY = RequestQueue.FullPolicy.valueOf(
+			System.getProperty("brokerQueueFull", "backpressure").toUpperCase());
+	// order of queued requests: "fifo", or "lpt" for the most expensive tiles first
+	private static final RequestQueue.Order BROKER_QUEUE_ORDER =
+			"lpt".equals(System.getProperty("brokerQueueOrder")) ? RequestQueue.Order.LONGEST_FIRST
+					: RequestQueue.Order.FIFO;
+	// how the broker's priority lanes share the workers: "strict" or "weighted", and the weights of
+	// the interactive and the background lane
+	private static final RequestQueue.LanePolicy BROKER_LANES = RequestQueue.LanePolicy.valueOf(
+			System.getProperty("brokerLanes", "strict").toUpperCase());
+	private static final int[] BROKER_LANE_WEIGHTS = Arrays.stream(
+			System.getProperty("brokerLaneWeights", "4,1").split(",")).mapToInt(Integer::parseInt).toArray();
+	// fair queuing: pixels a client gets per turn in its lane, 0 to serve a lane in order alone,
+	// and how many requests a client may have waiting, 0 for no limit
+	private static final long BROKER_FAIR_QUANTUM = Long.getLong("brokerFairQuantum", 0);
+	private static final int BROKER_CLIENT_QUEUE = Integer.getInteger("brokerClientQueue", 0);
+	// requests for a tile in flight wait for its reply instead of being computed again
+	private static final boolean BROKER_SINGLE_FLIGHT = Boolean.parseBoolean(
+			System.getProperty("brokerSingleFlight", "true"));
+	// off-heap memory of the broker's tile cache in MiB, 0 to not cache tiles
+	private static final long TILE_CACHE_MB = Long.getLong("tileCacheMB", 64);
+	// tile regions go to the worker that computed them before while it has at most this many times the
+	// average outstanding requests, 0 to leave every request to the scheduling policy
+	private static final double BROKER_AFFINITY = Double.parseDouble(System.getProperty("brokerAffinity", "0"));
+	// memory of every worker's cache of computed replies in MiB, 0 to compute every request
+	private static final long WORKER_CACHE_MB = Long.getLong("workerCacheMB", 0);
+	// how the broker picks the worker for a request: "fastest", "lru", "least-loaded", "p2c" or "cost"
+	private static final String SCHEDULING_POLICY = System.getProperty("schedulingPolicy", "fastest");
+	// tiles of at least this many pixels are split among idle workers, 0 to never split them
+	private static final long SPLIT_MIN_PIXELS = Long.getLong("splitMinPixels", 0);
+	// share of requests the broker may send to a second worker when they are late, 0 to never hedge
+	private static final double HEDGE_BUDGET = Double.parseDouble(System.getProperty("hedgeBudget", "0"));
+	// true to receive and send on the broker's sockets on threads of their own, the broker thread only schedules
+	private static final boolean BROKER_STAGED = Boolean.getBoolean("brokerStaged");
+	// directory of the broker's tile store on disk, unset to not store tiles on disk, and its size cap in MiB
+	private static final String TILE_STORE_DIR = System.getProperty("tileStoreDir");
+	private static final long TILE_STORE_MB = Long.getLong("tileStoreMB", 1024);
+	// directory of the broker's journal of accepted requests, unset to not journal them,
+	// and how long journal records may wait for their fsync
+	private static final String JOURNAL_DIR = System.getProperty("journalDir");
+	private static final long JOURNAL_SYNC_MILLIS = Long.getLong("journalSyncMillis", 5);
+	// wire format used by the clients: "protobuf" or "raw"
+	private static final String TILE_CODEC = System.getProperty("tileCodec", "protobuf");
+	// pixel format of the replies: "rgb" samples or "png" encoded by the workers
+	private static final TileFormat TILE_FORMAT =
+			TileFormat.valueOf(System.getProperty("tileFormat", "rgb").toUpperCase());
+	// priority of the clients' requests: "interactive" or "background"
+	private static final TilePriority TILE_PRIORITY =
+			TilePriority.valueOf(System.getProperty("tilePriority", "interactive").toUpperCase());
+	// deflate level (0-9) and scanline filter of PNG encoded tiles
+	private static final int PNG_LEVEL = Integer.getInteger("pngLevel", Deflater.BEST_SPEED);
+	private static final PngEncoder.Filter PNG_FILTER =
+			PngEncoder.Filter.valueOf(System.getProperty("pngFilter", "sub").toUpperCase());
+	/**
+	 * @param broker number of the broker, the first one keeps the addresses of a single broker
+	 * @return frontend the broker binds
+	 */
+	private static String frontendUrl(int broker) {
+		if (INPROC) {
+			return broker == 0 ? "inproc://frontend" : "inproc://frontend-" + broker;
+		}
+		return "tcp://localhost:" + (5555 + broker);
+	}
+
+	/**
+	 * @param broker number of the broker, the first one keeps the addresses of a single broker
+	 * @return backend the broker binds
+	 */
+	private static String backendUrl(int broker) {
+		if (INPROC) {
+			return broker == 0 ? "inproc://backend" : "inproc://backend-" + broker;
+		}
+		return "tcp://localhost:" + (6666 + broker);
+	}
+
+	/**
+	 * @return directory of a broker's files, a directory of its own below the given one when there are several brokers
+	 */
+	private static String brokerDirectory(String directory, int broker) {
+		return directory == null || NBR_BROKERS == 1 ? directory : Paths.get(directory, "broker-" + broker).toString();
+	}
+
 	private static class ClientThread extends Thread {
 		public void run() {
-			// hier is random dimension 
-			// of image that should be painted by client
-			int randWidthHeight = ThreadLocalRandom.current().
-					nextInt(MIN_IMAGE_DIMENSION, MAX_IMAGE_DIMENSION+1);
-			final Client c = new Client(FRONTEND_URL,  randWidthHeight);
-			c.start();
+			final List<String> frontends = new ArrayList<>();
+			for (int broker = 0; broker < NBR_BROKERS; broker++) {
+				frontends.add(frontendUrl(broker));
+			}
+			Client previous = null;
+			try {
+				for (int view = 0; view < NBR_VIEWS; view++) {
+					if (view > 0) {
+						Thread.sleep(VIEW_MILLIS);
+					}
+					// hier is random dimension 
+					// of image that should be painted by client
+					int randWidthHeight = ThreadLocalRandom.current().
+							nextInt(MIN_IMAGE_DIMENSION, MAX_IMAGE_DIMENSION+1);
+					final Client c = new Client(SHARED_CONTEXT, frontends,  randWidthHeight,
+							TileCodecs.forName(TILE_CODEC));
+					c.setFormat(TILE_FORMAT);
+					c.setPriority(TILE_PRIORITY);
+					if (previous != null) {
+						// the new view supersedes the old one, its tiles are not needed any more
+						previous.cancel();
+					}
+					c.start();
+					previous = c;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
 	private static class WorkerThread extends Thread {
+		private final List<String> backends;
+
+		WorkerThread(List<String> backends) {
+			this.backends = backends;
+		}
+
 		public void run() {
-			final Worker w = new Worker(BACKEND_URL);
+			final Worker w = new Worker(SHARED_CONTEXT, backends);
+			w.setCredits(WORKER_CREDITS);
+			w.setPngDeflateLevel(PNG_LEVEL);
+			w.setPngFilter(PNG_FILTER);
+			w.setResultCacheBytes(WORKER_CACHE_MB * 1024 * 1024);
 			w.start();
 		}
 	}
 
 	private static class BrokerThread extends Thread {
+		private final int broker;
+
+		BrokerThread(int broker) {
+			this.broker = broker;
+		}
+
 		public void run() {
-			final LBBroker b = new LBBroker(FRONTEND_URL, BACKEND_URL);
+			final LBBroker b = new LBBroker(SHARED_CONTEXT, frontendUrl(broker), backendUrl(broker));
+			b.setStatsIntervalMillis(BROKER_STATS_INTERVAL_MILLIS);
+			b.setStaged(BROKER_STAGED);
+			b.setQueueCapacity(BROKER_QUEUE_CAPACITY);
+			b.setQueueFullPolicy(BROKER_QUEUE_FULL_POLICY);
+			b.setQueueOrder(BROKER_QUEUE_ORDER);
+			b.setLanePolicy(BROKER_LANES);
+			b.setLaneWeights(BROKER_LANE_WEIGHTS);
+			b.setFairQuantumPixels(BROKER_FAIR_QUANTUM);
+			b.setClientQueueCapacity(BROKER_CLIENT_QUEUE);
+			b.setSingleFlight(BROKER_SINGLE_FLIGHT);
+			b.setAffinityLoadFactor(BROKER_AFFINITY);
+			b.setTileCacheBytes(TILE_CACHE_MB * 1024 * 1024);
+			b.setSchedulingPolicy(SchedulingPolicies.forName(SCHEDULING_POLICY));
+			b.setSplitMinPixels(SPLIT_MIN_PIXELS);
+			b.setHedgeBudget(HEDGE_BUDGET);
+			b.setTileStoreDirectory(brokerDirectory(TILE_STORE_DIR, broker));
+			b.setTileStoreBytes(TILE_STORE_MB * 1024 * 1024);
+			b.setJournalDirectory(brokerDirectory(JOURNAL_DIR, broker));
+			b.setJournalSyncMillis(JOURNAL_SYNC_MILLIS);
 			b.start();
 		}
 	}
 
 	public static void main(String[] args) throws InterruptedException {
-		BrokerThread brokerThread = new BrokerThread();
-		brokerThread.start();
+		BrokerThread[] brokerThreads = new BrokerThread[NBR_BROKERS];
+		for (int brokerNbr = 0; brokerNbr < NBR_BROKERS; brokerNbr++) {
+			final BrokerThread brokerThread = new BrokerThread(brokerNbr);
+			brokerThreads[brokerNbr] = brokerThread;
+			brokerThread.start();
+		}
 
+		final List<String> allBackends = new ArrayList<>();
+		for (int brokerNbr = 0; brokerNbr < NBR_BROKERS; brokerNbr++) {
+			allBackends.add(backendUrl(brokerNbr));
+		}
 		WorkerThread[] workerThreads = new WorkerThread[NBR_WORKERS];
 		for (int workerNbr = 0; workerNbr < NBR_WORKERS; workerNbr++) {
-			final WorkerThread workerThread = new WorkerThread();
+			final WorkerThread workerThread = new WorkerThread(WORKERS_ON_ALL_BROKERS ? allBackends
+					: List.of(backendUrl(workerNbr % NBR_BROKERS)));
 			workerThreads[workerNbr] = workerThread;
 			workerThread.start();
 		}
@@ -67,6 +247,12 @@ public class Main {
 			workerThread.join();
 		}
 		
-		brokerThread.join();
+		for (int brokerNbr = 0; brokerNbr < NBR_BROKERS; brokerNbr++) {
+			brokerThreads[brokerNbr].join();
+		}
+
+		if (SHARED_CONTEXT != null) {
+			SHARED_CONTEXT.close();
+		}
 	}
 }
@@ -0,0 +1,37 @@
+package loadbalancingbroker.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads the number of bytes allocated by a thread, as reported by the
+ * HotSpot ThreadMXBean. Returns -1 where the JVM does not support it.
+ */
+public class Allocations {
+	private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+	private Allocations() {
+	}
+
+	public static long allocatedBytes() {
+		return allocatedBytes(Thread.currentThread().getId());
+	}
+
+	public static long allocatedBytes(long threadId) {
+		if (THREADS == null) {
+			return -1;
+		}
+		return THREADS.getThreadAllocatedBytes(threadId);
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (threads.isThreadAllocatedMemorySupported()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+				return threads;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,181 @@
+package loadbalancingbroker.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+import loadbalancingbroker.broker.LBBroker;
+import loadbalancingbroker.codec.ControlHeader;
+import loadbalancingbroker.codec.RawTileCodec;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+import loadbalancingbroker.zmqutils.FrameReader;
+import loadbalancingbroker.zmqutils.FrameWriter;
+import loadbalancingbroker.zmqutils.ZHelper;
+import zmq.Msg;
+
+/**
+ * Measures the routing loop of LBBroker on its own: messages routed per
+ * second and bytes allocated by the broker thread per routed message.
+ * Workers answer instantly with the request frame and clients keep a window
+ * of requests in flight, so the broker is the bottleneck. Everything runs in
+ * one JVM over inproc://. Run it on two revisions to compare the broker loop,
+ * or single-threaded against staged, where the allocations of the broker's
+ * I/O stages are counted as well. Pinned to different numbers of cores (e.g.
+ * with taskset) it shows how the staged broker scales with them.
+ * Run with: java -cp ... loadbalancingbroker.benchmark.BrokerBenchmark [seconds] [workers] [clients] [staged]
+ */
+public class BrokerBenchmark {
+	private static final String FRONTEND_URL = "inproc://benchmark-frontend";
+	private static final String BACKEND_URL = "inproc://benchmark-backend";
+	private static final byte[] EMPTY = new byte[0];
+	// requests every client keeps in flight
+	private static final int CLIENT_WINDOW = 16;
+	private static final int WARMUP_SECONDS = 2;
+
+	public static void main(String[] args) throws InterruptedException {
+		final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		final int workerCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		final int clientCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		final boolean staged = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+		final Context context = ZMQ.context(1);
+		final Thread broker = new Thread(() -> {
+			final LBBroker b = new LBBroker(context, FRONTEND_URL, BACKEND_URL);
+			b.setStaged(staged);
+			b.start();
+		}, "benchmark-broker");
+		broker.setDaemon(true);
+		broker.start();
+		// inproc:// needs the broker bound before anyone connects
+		Thread.sleep(200);
+
+		for (int i = 0; i < workerCount; i++) {
+			startDaemon(() -> echoWorker(context, BACKEND_URL), "benchmark-worker-" + i);
+		}
+		final byte[] request = RawTileCodec.INSTANCE.encodeRequest(Request.newBuilder().
+				setImgWidth(700).
+				setImgHeight(700).
+				setXBegin(100).
+				setXEnd(101).
+				setYBegin(0).
+				setYEnd(700).
+				build());
+		final AtomicLong replies = new AtomicLong();
+		for (int i = 0; i < clientCount; i++) {
+			startDaemon(() -> windowedClient(context, request, replies), "benchmark-client-" + i);
+		}
+
+		Thread.sleep(WARMUP_SECONDS * 1000L);
+		final long repliesBefore = replies.get();
+		final long allocatedBefore = brokerAllocatedBytes(broker);
+		final long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		final long elapsed = System.nanoTime() - start;
+		final long allocated = brokerAllocatedBytes(broker) - allocatedBefore;
+		final long routed = replies.get() - repliesBefore;
+
+		// every round trip is one request and one reply through the broker
+		final long messages = 2 * routed;
+		System.out.println(String.format("%s broker on %d cores, %d workers, %d clients x %d in flight, %d s",
+				staged ? "staged" : "single-threaded", Runtime.getRuntime().availableProcessors(), workerCount,
+				clientCount, CLIENT_WINDOW, seconds));
+		System.out.println(String.format("%14s %14s %14s", "round trips", "msgs/s", "alloc B/msg"));
+		System.out.println(String.format("%14d %14.0f %14d", routed, messages * 1e9 / elapsed,
+				allocatedBefore < 0 || messages == 0 ? -1 : allocated / messages));
+		// the sockets are still in use by the daemon threads, so the context is not terminated
+		System.exit(0);
+	}
+
+	/**
+	 * @return bytes allocated by the broker thread and its I/O stages, named after it
+	 */
+	private static long brokerAllocatedBytes(Thread broker) {
+		long allocated = 0;
+		for (Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+			if (thread.getKey().getName().startsWith(broker.getName())) {
+				final long bytes = Allocations.allocatedBytes(thread.getKey().getId());
+				if (bytes < 0) {
+					return -1;
+				}
+				allocated += bytes;
+			}
+		}
+		return allocated;
+	}
+
+	static void startDaemon(Runnable task, String name) {
+		final Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Worker of the broker protocol that sends every request back as reply.
+	 * @param backendUrl backend of the broker the worker registers with
+	 */
+	static void echoWorker(Context context, String backendUrl) {
+		try (Socket worker = context.socket(SocketType.DEALER)) {
+			ZHelper.setId(worker);
+			// wake up to send a heartbeat when there is no traffic
+			worker.setReceiveTimeOut((int) ControlHeader.HEARTBEAT_INTERVAL_MILLIS);
+			worker.connect(backendUrl);
+			final int workerId = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+			final ControlHeader header = new ControlHeader();
+			final FrameReader frames = new FrameReader();
+			worker.sendMore(EMPTY);
+			worker.send(header.set(ControlHeader.READY, workerId, 1, 0).toByteArray());
+			while (!Thread.currentThread().isInterrupted()) {
+				final Msg delimiter = FrameReader.recvMsg(worker);
+				if (delimiter == null) {
+					worker.sendMore(EMPTY);
+					worker.send(header.set(ControlHeader.HEARTBEAT, workerId, 1, 0).toByteArray());
+					continue;
+				}
+				if (!header.read(frames.recvEnvelope(worker)) || header.getType() != ControlHeader.REQUEST) {
+					// broker heartbeat
+					FrameReader.skipRemaining(worker);
+					continue;
+				}
+				final long requestId = header.getRequestId();
+				final Msg address = FrameReader.recvMsg(worker);
+				final Msg empty = FrameReader.recvMsg(worker);
+				final Msg payload = FrameReader.recvMsg(worker);
+				if (address == null || empty == null || payload == null) {
+					return;
+				}
+				worker.sendMore(EMPTY);
+				worker.sendMore(header.set(ControlHeader.REPLY, workerId, 1, 0, requestId).toByteArray());
+				FrameWriter.send(worker, address, true);
+				worker.sendMore(EMPTY);
+				FrameWriter.send(worker, payload, false);
+			}
+		}
+	}
+
+	/**
+	 * DEALER client speaking the REQ envelope, with a window of requests in flight.
+	 */
+	private static void windowedClient(Context context, byte[] request, AtomicLong replies) {
+		try (Socket client = context.socket(SocketType.DEALER)) {
+			ZHelper.setId(client);
+			client.connect(FRONTEND_URL);
+			for (int i = 0; i < CLIENT_WINDOW; i++) {
+				client.sendMore(EMPTY);
+				client.send(request);
+			}
+			while (!Thread.currentThread().isInterrupted()) {
+				if (FrameReader.recvMsg(client) == null || FrameReader.recvMsg(client) == null) {
+					return;
+				}
+				replies.incrementAndGet();
+				client.sendMore(EMPTY);
+				client.send(request);
+			}
+		}
+	}
+}
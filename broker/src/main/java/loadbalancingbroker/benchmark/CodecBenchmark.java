@@ -0,0 +1,87 @@
+package loadbalancingbroker.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import loadbalancingbroker.codec.ProtobufTileCodec;
+import loadbalancingbroker.codec.RawTileCodec;
+import loadbalancingbroker.codec.TileCodec;
+import loadbalancingbroker.domain.Tile;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+
+/**
+ * Compares encode/decode throughput and allocation of the tile codecs.
+ * Run with: java -cp ... loadbalancingbroker.benchmark.CodecBenchmark [iterations]
+ */
+public class CodecBenchmark {
+	private static final int IMAGE_DIMENSION = 700;
+	private static final int WARMUP_ITERATIONS = 2_000;
+	private static final TileCodec[] CODECS = { ProtobufTileCodec.INSTANCE, RawTileCodec.INSTANCE };
+	// sink for results so the JIT can not drop the measured work
+	private static long blackhole;
+
+	private interface Operation {
+		long run() throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		// one column, the tile size the client requests today, and a wider block
+		final Tile[] tiles = { randomTile(1), randomTile(16) };
+		final Request request = Request.newBuilder().
+				setImgWidth(IMAGE_DIMENSION).
+				setImgHeight(IMAGE_DIMENSION).
+				setXBegin(100).
+				setXEnd(101).
+				setYBegin(0).
+				setYEnd(IMAGE_DIMENSION).
+				build();
+
+		System.out.println(String.format("%-9s %-16s %8s %14s %14s", "codec", "operation", "bytes", "ops/s", "alloc B/op"));
+		for (TileCodec codec : CODECS) {
+			final ByteString requestFrame = UnsafeByteOperations.unsafeWrap(codec.encodeRequest(request));
+			measure(codec, "encodeRequest", requestFrame.size(), iterations,
+					() -> codec.encodeRequest(request).length);
+			measure(codec, "decodeRequest", requestFrame.size(), iterations,
+					() -> codec.decodeRequest(requestFrame).getXBegin());
+			for (Tile tile : tiles) {
+				final ByteString replyFrame = UnsafeByteOperations.unsafeWrap(codec.encodeReply(tile));
+				final String suffix = "[" + tile.getWidth() + "x" + tile.getHeight() + "]";
+				measure(codec, "encodeReply" + suffix, replyFrame.size(), iterations / tile.getWidth(),
+						() -> codec.encodeReply(tile).length);
+				measure(codec, "decodeReply" + suffix, replyFrame.size(), iterations / tile.getWidth(),
+						() -> codec.decodeReply(replyFrame).getSamples().length);
+			}
+		}
+		System.out.println("(checksum " + blackhole + ")");
+	}
+
+	private static void measure(TileCodec codec, String operation, int frameSize, int iterations, Operation op)
+			throws IOException {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			blackhole += op.run();
+		}
+		final long allocatedBefore = Allocations.allocatedBytes();
+		final long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			blackhole += op.run();
+		}
+		final long elapsed = System.nanoTime() - start;
+		final long allocated = Allocations.allocatedBytes() - allocatedBefore;
+		System.out.println(String.format("%-9s %-16s %8d %14.0f %14d", codec.name(), operation, frameSize,
+				iterations * 1e9 / elapsed, allocatedBefore < 0 ? -1 : allocated / iterations));
+	}
+
+	private static Tile randomTile(int width) {
+		final Tile tile = new Tile(100, 100 + width, 0, IMAGE_DIMENSION);
+		final int[] samples = tile.getSamples();
+		for (int i = 0; i < samples.length; i++) {
+			// opaque colors like the worker produces, negative as int32
+			samples[i] = 0xFF000000 | ThreadLocalRandom.current().nextInt(0x1000000);
+		}
+		return tile;
+	}
+}
@@ -0,0 +1,76 @@
+package loadbalancingbroker.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import loadbalancingbroker.broker.RequestJournal;
+import loadbalancingbroker.codec.RawTileCodec;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+
+/**
+ * Measures what the request journal costs the broker per request: the
+ * accepted and the done record, and the share of an fsync, with as many
+ * requests per fsync as the group commit collects.
+ * Run with: java -cp ... loadbalancingbroker.benchmark.JournalBenchmark [requests] [directory]
+ */
+public class JournalBenchmark {
+	private static final int IMAGE_DIMENSION = 700;
+	// requests that share one fsync, from a sync per request to a busy sync interval
+	private static final int[] GROUP_SIZES = { 1, 16, 256 };
+
+	public static void main(String[] args) throws IOException {
+		final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		final Path base = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("journal-benchmark");
+		// a column request from a raw codec client, as the broker receives it
+		final ByteBuffer request = ByteBuffer.wrap(RawTileCodec.INSTANCE.encodeRequest(Request.newBuilder().
+				setImgWidth(IMAGE_DIMENSION).
+				setImgHeight(IMAGE_DIMENSION).
+				setXBegin(100).
+				setXEnd(101).
+				setYBegin(0).
+				setYEnd(IMAGE_DIMENSION).
+				setJobId(42).
+				build()));
+		final ByteBuffer clientId = ByteBuffer.wrap("0A1B-2C3D".getBytes());
+
+		System.out.println(String.format("%10s %12s %12s %12s %12s %12s", "per fsync", "requests/s", "ns/request",
+				"append ns", "fsync ms", "alloc B/req"));
+		for (int group : GROUP_SIZES) {
+			final Path directory = Files.createDirectories(base.resolve("group-" + group));
+			try (RequestJournal journal = new RequestJournal(directory)) {
+				final int count = group == 1 ? Math.min(requests, 2_000) : requests;
+				final long allocatedBefore = Allocations.allocatedBytes();
+				final long start = System.nanoTime();
+				long requestId = 1;
+				for (int i = 0; i < count; i += group) {
+					// a group is accepted, answered and synced together
+					final long first = requestId;
+					for (int j = 0; j < group; j++) {
+						journal.accepted(requestId++, clientId, request);
+					}
+					for (long id = first; id < requestId; id++) {
+						journal.done(id);
+					}
+					journal.sync();
+				}
+				final long elapsed = System.nanoTime() - start;
+				final long allocated = Allocations.allocatedBytes() - allocatedBefore;
+				final long measured = requestId - 1;
+				System.out.println(String.format("%10d %12.0f %12.0f %12.0f %12.3f %12d", group,
+						measured * 1e9 / elapsed, (double) elapsed / measured,
+						(double) journal.getAppendNanos() / measured,
+						journal.getSyncNanos() / 1e6 / Math.max(1, journal.getSyncs()),
+						allocatedBefore < 0 ? -1 : allocated / measured));
+			}
+		}
+		if (args.length < 2) {
+			try (Stream<Path> files = Files.walk(base)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+}
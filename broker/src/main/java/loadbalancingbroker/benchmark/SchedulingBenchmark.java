@@ -0,0 +1,245 @@
+package loadbalancingbroker.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import loadbalancingbroker.broker.IdleWorkerIndex;
+import loadbalancingbroker.broker.InFlightRequest;
+import loadbalancingbroker.broker.RequestQueue;
+import loadbalancingbroker.broker.SchedulingPolicies;
+import loadbalancingbroker.broker.SchedulingPolicy;
+import loadbalancingbroker.broker.TileCostModel;
+import loadbalancingbroker.broker.WorkerCredits;
+import loadbalancingbroker.broker.WorkerScores;
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Compares the broker's scheduling policies in a simulation of
+ * heterogeneous workers, without sockets and in simulated time.
+ *
+ * Frames split into strips of columns arrive at random times, on average at
+ * the rate that keeps the workers busy at the given load. A strip costs as
+ * many iterations as the worker's kernel needs for its columns, so strips
+ * through the set cost far more than edge strips. Every
+ * worker computes its requests one after the other at its own speed. The
+ * broker side uses the real idle index, scores, credits, queue, cost model
+ * and policies, and dispatches like LBBroker: queued requests first, to the
+ * selected worker. Workers report the iterations of their tiles, like Worker.
+ *
+ * Reports per policy the average and worst makespan of a frame and the
+ * median and p99 latency of a request, for every policy in arrival order
+ * and for the cost policy with the most expensive tiles first.
+ * Run with: java -cp ... loadbalancingbroker.benchmark.SchedulingBenchmark [speeds] [frames] [load] [strips]
+ * where speeds are the relative worker speeds, e.g. 8,4,2,1,1,1
+ */
+public class SchedulingBenchmark {
+	private static final int IMAGE_SIZE = 700;
+	private static final int ITERATION_NUM = 255;
+	private static final int CREDITS = 2;
+	// iterations per second of a worker with speed 1
+	private static final double BASE_SPEED = 20e6;
+
+	private static final int ARRIVAL = 0;
+	private static final int COMPLETION = 1;
+
+	/** a frame arriving or a worker finishing its current request */
+	private static class Event implements Comparable<Event> {
+		private final long time;
+		private final int type;
+		private final int value;
+
+		private Event(long time, int type, int value) {
+			this.time = time;
+			this.type = type;
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			return Long.compare(time, other.time);
+		}
+	}
+
+	public static void main(String[] args) {
+		final double[] speeds = Arrays.stream((args.length > 0 ? args[0] : "8,4,2,1,1,1").split(","))
+				.mapToDouble(Double::parseDouble).toArray();
+		final int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		final double load = args.length > 2 ? Double.parseDouble(args[2]) : 0.8;
+		final int strips = args.length > 3 ? Integer.parseInt(args[3]) : 28;
+
+		final long[] stripCost = stripIterations(columnIterations(IMAGE_SIZE), strips);
+		final long frameCost = Arrays.stream(stripCost).sum();
+		final double totalSpeed = Arrays.stream(speeds).sum() * BASE_SPEED;
+		final long frameInterval = (long) (frameCost / totalSpeed / load * 1e9);
+		System.out.printf("%d workers with speeds %s, %d frames of %d strips, load %.2f, a frame every %.1f ms"
+				+ " on average%n", speeds.length, Arrays.toString(speeds), frames, strips, load, frameInterval / 1e6);
+		System.out.printf("Strip cost: min %d, max %d iterations, frame %d iterations%n",
+				Arrays.stream(stripCost).min().getAsLong(), Arrays.stream(stripCost).max().getAsLong(), frameCost);
+		System.out.printf("%-14s %14s %14s %14s %14s%n", "policy", "makespan avg", "makespan max", "latency p50",
+				"latency p99");
+		for (SchedulingPolicy policy : SchedulingPolicies.all()) {
+			run(policy, RequestQueue.Order.FIFO, speeds, stripCost, frames, frameInterval);
+		}
+		run(SchedulingPolicies.COST_AWARE, RequestQueue.Order.LONGEST_FIRST, speeds, stripCost, frames,
+				frameInterval);
+	}
+
+	private static void run(SchedulingPolicy policy, RequestQueue.Order order, double[] speeds, long[] stripCost,
+			int frames, long frameInterval) {
+		final int workerCount = speeds.length;
+		final IdleWorkerIndex idle = new IdleWorkerIndex();
+		final WorkerScores scores = new WorkerScores();
+		final WorkerCredits credits = new WorkerCredits();
+		final RequestQueue queue = new RequestQueue(Integer.MAX_VALUE, order);
+		final TileCostModel costModel = order == RequestQueue.Order.LONGEST_FIRST || policy.usesCost()
+				? new TileCostModel() : null;
+		// requests sent to a worker, the first one is being computed
+		@SuppressWarnings("unchecked")
+		final ArrayDeque<InFlightRequest>[] held = new ArrayDeque[workerCount];
+		for (int slot = 0; slot < workerCount; slot++) {
+			held[slot] = new ArrayDeque<>();
+			credits.grant(slot, CREDITS);
+			scores.reset(slot);
+			idle.offer(slot, policy.score(slot, scores, credits));
+		}
+		final int strips = stripCost.length;
+		final long[] arrivedAt = new long[frames];
+		final long[] finishedAt = new long[frames];
+		final int[] remaining = new int[frames];
+		final long[] latencies = new long[frames * strips];
+		int replies = 0;
+
+		// every policy sees the same arrivals
+		final Random random = new Random(42);
+		final PriorityQueue<Event> events = new PriorityQueue<>();
+		long arrival = 0;
+		for (int frame = 0; frame < frames; frame++) {
+			events.add(new Event(arrival, ARRIVAL, frame));
+			arrival += (long) (-Math.log(1 - random.nextDouble()) * frameInterval);
+		}
+		while (!events.isEmpty()) {
+			final Event event = events.poll();
+			final long now = event.time;
+			if (event.type == ARRIVAL) {
+				final int frame = event.value;
+				arrivedAt[frame] = now;
+				remaining[frame] = strips;
+				for (int strip = 0; strip < strips; strip++) {
+					// the request id tells frame and strip
+					final TileKey key = stripKey(strip, strips);
+					final InFlightRequest request = new InFlightRequest((long) frame * strips + strip, null,
+							null, key.getPixels());
+					request.setTileKey(key);
+					if (costModel != null) {
+						request.setCost(costModel.estimate(key));
+					}
+					queue.offer(request, now);
+				}
+			} else {
+				final int slot = event.value;
+				final InFlightRequest request = held[slot].poll();
+				final long iterations = stripCost[(int) (request.getRequestId() % strips)];
+				scores.replied(slot, request.getPixels(), iterations, request.getDispatchedAt(), now);
+				if (costModel != null) {
+					costModel.record(request.getTileKey(), iterations);
+				}
+				credits.giveBack(slot);
+				idle.offer(slot, policy.score(slot, scores, credits));
+				final int frame = (int) (request.getRequestId() / strips);
+				latencies[replies++] = now - arrivedAt[frame];
+				if (--remaining[frame] == 0) {
+					finishedAt[frame] = now;
+				}
+				if (!held[slot].isEmpty()) {
+					events.add(new Event(now + serviceTime(held[slot].peek(), stripCost, speeds[slot]),
+							COMPLETION, slot));
+				}
+			}
+			// dispatch like the broker does
+			while (!queue.isEmpty() && !idle.isEmpty()) {
+				final InFlightRequest request = queue.poll(now);
+				final int slot = policy.select(request, idle, scores, credits);
+				idle.remove(slot);
+				if (credits.take(slot) > 0) {
+					idle.offer(slot, policy.score(slot, scores, credits));
+				}
+				request.dispatched(slot, now, Long.MAX_VALUE);
+				scores.dispatched(slot, now);
+				held[slot].add(request);
+				if (held[slot].size() == 1) {
+					events.add(new Event(now + serviceTime(request, stripCost, speeds[slot]), COMPLETION, slot));
+				}
+			}
+		}
+
+		long makespanSum = 0;
+		long makespanMax = 0;
+		for (int frame = 0; frame < frames; frame++) {
+			final long makespan = finishedAt[frame] - arrivedAt[frame];
+			makespanSum += makespan;
+			makespanMax = Math.max(makespanMax, makespan);
+		}
+		Arrays.sort(latencies);
+		System.out.printf("%-14s %11.1f ms %11.1f ms %11.1f ms %11.1f ms%n",
+				policy.name() + (order == RequestQueue.Order.LONGEST_FIRST ? "+lpt" : ""),
+				makespanSum / 1e6 / frames, makespanMax / 1e6, latencies[latencies.length / 2] / 1e6,
+				latencies[(int) (latencies.length * 0.99)] / 1e6);
+	}
+
+	private static long serviceTime(InFlightRequest request, long[] stripCost, double speed) {
+		final int strip = (int) (request.getRequestId() % stripCost.length);
+		return (long) (stripCost[strip] / (speed * BASE_SPEED) * 1e9);
+	}
+
+	/**
+	 * @return key of a strip, its columns are split like in stripIterations
+	 */
+	private static TileKey stripKey(int strip, int strips) {
+		final int xBegin = (int) (((long) strip * IMAGE_SIZE + strips - 1) / strips);
+		final int xEnd = (int) (((long) (strip + 1) * IMAGE_SIZE + strips - 1) / strips);
+		return new TileKey("simulated", IMAGE_SIZE, IMAGE_SIZE, xBegin, xEnd, 0, IMAGE_SIZE, 0);
+	}
+
+	/**
+	 * @param columnCost iterations of every column
+	 * @param strips number of strips of about equal width
+	 * @return iterations of every strip
+	 */
+	private static long[] stripIterations(long[] columnCost, int strips) {
+		final long[] cost = new long[strips];
+		for (int column = 0; column < columnCost.length; column++) {
+			cost[(int) ((long) column * strips / columnCost.length)] += columnCost[column];
+		}
+		return cost;
+	}
+
+	/**
+	 * @param size width and height of the image
+	 * @return iterations of the worker's kernel for every column
+	 */
+	private static long[] columnIterations(int size) {
+		final double x0 = (3 * size / 4);
+		final double y0 = (size / 2);
+		final double lengthOfXoY = size * 0.47;
+		final long[] cost = new long[size];
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				final double cx = (i - x0) / lengthOfXoY;
+				final double cy = (j - y0) / lengthOfXoY;
+				double x = cx;
+				double y = cy;
+				int iterations = 1;
+				while (iterations < ITERATION_NUM && x * x + y * y <= 4) {
+					final double xx = x * x - y * y + cx;
+					y = 2 * x * y + cy;
+					x = xx;
+					iterations++;
+				}
+				cost[i] += iterations;
+			}
+		}
+		return cost;
+	}
+}
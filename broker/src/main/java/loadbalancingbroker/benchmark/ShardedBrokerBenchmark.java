@@ -0,0 +1,177 @@
+package loadbalancingbroker.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
+
+import loadbalancingbroker.broker.LBBroker;
+import loadbalancingbroker.client.BrokerRing;
+import loadbalancingbroker.codec.RawTileCodec;
+import loadbalancingbroker.domain.TileKey;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+import loadbalancingbroker.zmqutils.FrameReader;
+import loadbalancingbroker.zmqutils.ZHelper;
+
+/**
+ * Measures how the throughput of a sharded deployment grows with the number
+ * of brokers: every broker gets a pool of echo workers of its own, and the
+ * clients spread the columns of an image over the brokers by consistent
+ * hashing of their tile keys, as loadbalancingbroker.client.Client does.
+ * Workers answer instantly, so the brokers are the bottleneck, as in
+ * BrokerBenchmark. Workers and clients grow with the brokers; everything runs
+ * in one JVM over inproc://, so the brokers scale only as long as there are
+ * cores for them.
+ * Run with: java -cp ... loadbalancingbroker.benchmark.ShardedBrokerBenchmark [seconds] [brokers,...]
+ *           [workers per broker] [clients per broker]
+ */
+public class ShardedBrokerBenchmark {
+	private static final byte[] EMPTY = new byte[0];
+	private static final int IMAGE_DIMENSION = 700;
+	// requests every client keeps in flight, over all brokers
+	private static final int CLIENT_WINDOW = 16;
+	private static final int WARMUP_SECONDS = 2;
+
+	public static void main(String[] args) throws InterruptedException {
+		final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		final int[] brokerCounts = Arrays.stream((args.length > 1 ? args[1] : "1,2,4").split(","))
+				.mapToInt(Integer::parseInt).toArray();
+		final int workersPerBroker = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		final int clientsPerBroker = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+		// one column per request, as a client paints an image
+		final byte[][] requests = new byte[IMAGE_DIMENSION][];
+		final TileKey[] keys = new TileKey[IMAGE_DIMENSION];
+		for (int x = 0; x < IMAGE_DIMENSION; x++) {
+			final Request request = Request.newBuilder().
+					setImgWidth(IMAGE_DIMENSION).
+					setImgHeight(IMAGE_DIMENSION).
+					setXBegin(x).
+					setXEnd(x + 1).
+					setYBegin(0).
+					setYEnd(IMAGE_DIMENSION).
+					build();
+			requests[x] = RawTileCodec.INSTANCE.encodeRequest(request);
+			keys[x] = TileKey.of(RawTileCodec.INSTANCE, request);
+		}
+
+		System.out.println(String.format("%d cores, %d workers and %d clients x %d in flight per broker, %d s",
+				Runtime.getRuntime().availableProcessors(), workersPerBroker, clientsPerBroker, CLIENT_WINDOW,
+				seconds));
+		System.out.println(String.format("%8s %14s %14s %10s %12s", "brokers", "round trips", "msgs/s", "speedup",
+				"max share"));
+		double baseline = 0;
+		for (int round = 0; round < brokerCounts.length; round++) {
+			final int brokerCount = brokerCounts[round];
+			// every round has a context of its own, the idle threads of the last one do not disturb it
+			final Context context = ZMQ.context(1);
+			final List<String> frontends = new ArrayList<>();
+			for (int broker = 0; broker < brokerCount; broker++) {
+				final String frontendUrl = "inproc://shard-frontend-" + broker;
+				final String backendUrl = "inproc://shard-backend-" + broker;
+				frontends.add(frontendUrl);
+				BrokerBenchmark.startDaemon(() -> new LBBroker(context, frontendUrl, backendUrl).start(),
+						"benchmark-broker-" + round + "-" + broker);
+			}
+			// inproc:// needs the brokers bound before anyone connects
+			Thread.sleep(200);
+
+			for (int broker = 0; broker < brokerCount; broker++) {
+				final String backendUrl = "inproc://shard-backend-" + broker;
+				for (int i = 0; i < workersPerBroker; i++) {
+					BrokerBenchmark.startDaemon(() -> BrokerBenchmark.echoWorker(context, backendUrl),
+							"benchmark-worker-" + round + "-" + broker + "-" + i);
+				}
+			}
+			final BrokerRing ring = new BrokerRing(frontends);
+			final int[] brokerOf = new int[IMAGE_DIMENSION];
+			final int[] columns = new int[brokerCount];
+			for (int x = 0; x < IMAGE_DIMENSION; x++) {
+				brokerOf[x] = ring.brokersFor(keys[x]).get(0);
+				columns[brokerOf[x]]++;
+			}
+			final AtomicLong replies = new AtomicLong();
+			final AtomicBoolean running = new AtomicBoolean(true);
+			for (int i = 0; i < brokerCount * clientsPerBroker; i++) {
+				BrokerBenchmark.startDaemon(() -> shardedClient(context, frontends, requests, brokerOf, replies,
+						running), "benchmark-client-" + round + "-" + i);
+			}
+
+			Thread.sleep(WARMUP_SECONDS * 1000L);
+			final long repliesBefore = replies.get();
+			final long start = System.nanoTime();
+			Thread.sleep(seconds * 1000L);
+			final long elapsed = System.nanoTime() - start;
+			final long routed = replies.get() - repliesBefore;
+			running.set(false);
+
+			// every round trip is one request and one reply through a broker
+			final double messagesPerSecond = 2 * routed * 1e9 / elapsed;
+			if (round == 0) {
+				baseline = messagesPerSecond / brokerCount;
+			}
+			System.out.println(String.format("%8d %14d %14.0f %10.2f %11.1f%%", brokerCount, routed,
+					messagesPerSecond, baseline > 0 ? messagesPerSecond / baseline : 0,
+					100.0 * Arrays.stream(columns).max().getAsInt() / IMAGE_DIMENSION));
+			// let the clients of the round stop before the next one starts
+			Thread.sleep(200);
+		}
+		// the sockets are still in use by the daemon threads, so the contexts are not terminated
+		System.exit(0);
+	}
+
+	/**
+	 * DEALER client speaking the REQ envelope with a socket per broker, every
+	 * column goes to the broker its tile key hashes to; a reply frees the
+	 * window for the next column.
+	 */
+	private static void shardedClient(Context context, List<String> frontends, byte[][] requests, int[] brokerOf,
+			AtomicLong replies, AtomicBoolean running) {
+		final List<Socket> sockets = new ArrayList<>();
+		try (Poller items = context.poller(frontends.size())) {
+			for (String frontendUrl : frontends) {
+				final Socket socket = context.socket(SocketType.DEALER);
+				ZHelper.setId(socket);
+				socket.setLinger(0);
+				socket.connect(frontendUrl);
+				sockets.add(socket);
+				items.register(socket, Poller.POLLIN);
+			}
+			int next = ThreadLocalRandom.current().nextInt(requests.length);
+			for (int i = 0; i < CLIENT_WINDOW; i++) {
+				send(sockets, requests, brokerOf, next++ % requests.length);
+			}
+			while (running.get() && !Thread.currentThread().isInterrupted()) {
+				if (items.poll(100) < 0) {
+					return;
+				}
+				for (int i = 0; i < sockets.size(); i++) {
+					if (items.pollin(i)) {
+						final Socket socket = sockets.get(i);
+						if (FrameReader.recvMsg(socket) == null || FrameReader.recvMsg(socket) == null) {
+							return;
+						}
+						replies.incrementAndGet();
+						send(sockets, requests, brokerOf, next++ % requests.length);
+					}
+				}
+			}
+		} finally {
+			sockets.forEach(Socket::close);
+		}
+	}
+
+	private static void send(List<Socket> sockets, byte[][] requests, int[] brokerOf, int column) {
+		final Socket socket = sockets.get(brokerOf[column]);
+		socket.sendMore(EMPTY);
+		socket.send(requests[column]);
+	}
+}
@@ -0,0 +1,69 @@
+package loadbalancingbroker.broker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latencies of the clients that were answered last, by the job id of their
+ * requests: from a request's arrival at the broker to the reply to its
+ * client, and from the first request of a client to its first reply. Shows
+ * whether one client's flood of requests delays the first tiles of others.
+ */
+public class ClientLatencies {
+	/** clients printed in the broker stats */
+	public static final int DEFAULT_MAX_CLIENTS = 8;
+
+	private static class Latency {
+		long firstArrivedAt = Long.MAX_VALUE;
+		long firstRepliedAt = Long.MAX_VALUE;
+		long replies = 0;
+		long totalNanos = 0;
+		long maxNanos = 0;
+	}
+
+	private final LinkedHashMap<Long, Latency> clients;
+
+	/**
+	 * @param maxClients clients kept, the ones answered longest ago are dropped
+	 */
+	public ClientLatencies(int maxClients) {
+		this.clients = new LinkedHashMap<Long, Latency>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Latency> eldest) {
+				return size() > maxClients;
+			}
+		};
+	}
+
+	/**
+	 * @param jobId job of the answered request
+	 * @param arrivedAt System.nanoTime() the request arrived
+	 * @param nanoTime System.nanoTime() of the reply
+	 */
+	public void replied(long jobId, long arrivedAt, long nanoTime) {
+		final Latency latency = clients.computeIfAbsent(jobId, id -> new Latency());
+		final long nanos = nanoTime - arrivedAt;
+		latency.firstArrivedAt = Math.min(latency.firstArrivedAt, arrivedAt);
+		latency.firstRepliedAt = Math.min(latency.firstRepliedAt, nanoTime);
+		latency.replies++;
+		latency.totalNanos += nanos;
+		latency.maxNanos = Math.max(latency.maxNanos, nanos);
+	}
+
+	/**
+	 * Appends a line per client, the most recently answered last.
+	 * @param stats
+	 */
+	public void appendTo(StringBuilder stats) {
+		clients.forEach((jobId, latency) -> stats.append(String.format(
+				"%n  client %016x %6d replies, first after %.1f ms, avg %.1f ms max %.1f ms", jobId,
+				latency.replies, (latency.firstRepliedAt - latency.firstArrivedAt) / 1e6,
+				latency.totalNanos / 1e6 / latency.replies, latency.maxNanos / 1e6)));
+	}
+
+	public int size() {
+		return clients.size();
+	}
+}
@@ -0,0 +1,425 @@
+package loadbalancingbroker.broker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Reply frames of calculated tiles on disk, the second tier behind TileCache.
+ *
+ * Replies are appended to segment files that are memory-mapped as a whole,
+ * an index on the heap maps every tile key to the record of its latest reply.
+ * The index is rebuilt by scanning the segments on open, so after a restart
+ * previously rendered tiles are served at once.
+ *
+ * <pre>
+ * record: magic:4 keyLength:4 valueLength:4 key value crc32:4
+ * </pre>
+ * Numbers are big-endian, a zero magic marks the end of a segment's records.
+ *
+ * The store keeps below its size cap by rolling to a new segment when the
+ * current one is full, compacting sealed segments that are mostly garbage,
+ * and dropping the oldest segment if that is not enough.
+ * Not thread-safe, used by the broker thread only.
+ */
+public class DiskTileStore implements Closeable {
+	/** largest segment file, smaller caps get smaller segments */
+	public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+	private static final int SEGMENTS_PER_CAP = 4;
+	// sealed segments with less live data than this share are compacted
+	private static final double COMPACT_LIVE_RATIO = 0.5;
+
+	private static final int MAGIC = 0x54494C45; // "TILE"
+	private static final int RECORD_HEADER = 12;
+	private static final int RECORD_TRAILER = 4;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".tiles";
+
+	private final Path directory;
+	private final long maxBytes;
+	private final int segmentSize;
+	// segments by number, the last one is written to
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private final Map<TileKey, Location> index = new HashMap<>();
+	private Segment active;
+	private long hits = 0;
+	private long misses = 0;
+	private long compactions = 0;
+	private long droppedSegments = 0;
+
+	/** one mapped segment file and the bytes of its live records */
+	private static class Segment {
+		private final int number;
+		private final Path path;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private int end = 0;
+		private long liveBytes = 0;
+
+		private Segment(int number, Path path, int size) throws IOException {
+			this.number = number;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/** where the latest reply of a key is stored */
+	private static class Location {
+		private final Segment segment;
+		private final int offset;
+		private final int recordLength;
+		private final int valueOffset;
+		private final int valueLength;
+
+		private Location(Segment segment, int offset, int recordLength, int valueOffset, int valueLength) {
+			this.segment = segment;
+			this.offset = offset;
+			this.recordLength = recordLength;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+		}
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if needed, and
+	 * indexes the replies stored there before.
+	 * @param directory
+	 * @param maxBytes size cap of all segment files together
+	 * @throws IOException
+	 */
+	public DiskTileStore(Path directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.segmentSize = (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxBytes / SEGMENTS_PER_CAP));
+		if (maxBytes < 2L * segmentSize) {
+			throw new IllegalArgumentException("Tile store needs room for two segments, cap is " + maxBytes);
+		}
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				final int number = segmentNumber(file);
+				if (number >= 0) {
+					// an existing segment keeps its size, even if the cap changed since
+					final int size = (int) Math.min(Integer.MAX_VALUE, Math.max(segmentSize, Files.size(file)));
+					segments.put(number, new Segment(number, file, size));
+				}
+			}
+		}
+		for (Segment segment : segments.values()) {
+			scan(segment);
+		}
+		active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+	}
+
+	/**
+	 * Looks up a reply and copies it out of its segment.
+	 * @param key
+	 * @return the stored reply frame, or null if there is none
+	 */
+	public byte[] get(TileKey key) {
+		final Location location = index.get(key);
+		if (location == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		final byte[] value = new byte[location.valueLength];
+		final ByteBuffer source = location.segment.buffer.duplicate();
+		source.position(location.valueOffset);
+		source.get(value);
+		return value;
+	}
+
+	/**
+	 * Appends a reply, replacing the one stored for the same key.
+	 * Replies that do not fit into one segment are not stored.
+	 * @param key
+	 * @param value reply frame from position to limit, the position is not changed
+	 * @return true if the reply was stored
+	 * @throws IOException if a new segment can not be created
+	 */
+	public boolean put(TileKey key, ByteBuffer value) throws IOException {
+		final byte[] keyBytes = encodeKey(key);
+		final int recordLength = RECORD_HEADER + keyBytes.length + value.remaining() + RECORD_TRAILER;
+		// a zero magic after the last record must still fit
+		if (recordLength + 4 > segmentSize) {
+			return false;
+		}
+		if (active.end + recordLength + 4 > active.buffer.capacity()) {
+			roll();
+		}
+		append(active, key, keyBytes, value.duplicate());
+		return true;
+	}
+
+	/**
+	 * Copies the live records of sealed segments that are mostly garbage
+	 * into the current segment and deletes them.
+	 * @return number of compacted segments
+	 * @throws IOException
+	 */
+	public int compact() throws IOException {
+		int compacted = 0;
+		for (Segment segment : new ArrayList<>(segments.values())) {
+			if (segment != active && segment.liveBytes < segment.end * COMPACT_LIVE_RATIO) {
+				copyLive(segment);
+				delete(segment);
+				compacted++;
+			}
+		}
+		compactions += compacted;
+		return compacted;
+	}
+
+	/**
+	 * Writes the mapped segments back to disk.
+	 */
+	public void flush() {
+		for (Segment segment : segments.values()) {
+			segment.buffer.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		for (Segment segment : segments.values()) {
+			segment.channel.close();
+		}
+		segments.clear();
+		index.clear();
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return bytes of all segment files
+	 */
+	public long getDiskBytes() {
+		long bytes = 0;
+		for (Segment segment : segments.values()) {
+			bytes += segment.buffer.capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return bytes of the records still in the index
+	 */
+	public long getLiveBytes() {
+		long bytes = 0;
+		for (Segment segment : segments.values()) {
+			bytes += segment.liveBytes;
+		}
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getCompactions() {
+		return compactions;
+	}
+
+	public long getDroppedSegments() {
+		return droppedSegments;
+	}
+
+	/**
+	 * Seals the current segment and starts a new one, making room under the cap.
+	 */
+	private void roll() throws IOException {
+		final int number = active.number + 1;
+		active = newSegment(number);
+		if (getDiskBytes() > maxBytes) {
+			compact();
+		}
+		while (getDiskBytes() > maxBytes && segments.size() > 1) {
+			// the oldest tiles go first
+			delete(segments.firstEntry().getValue());
+			droppedSegments++;
+		}
+	}
+
+	private Segment newSegment(int number) throws IOException {
+		final Path path = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+		final Segment segment = new Segment(number, path, segmentSize);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	private void append(Segment segment, TileKey key, byte[] keyBytes, ByteBuffer value) {
+		final int offset = segment.end;
+		final int valueLength = value.remaining();
+		final ByteBuffer out = segment.buffer.duplicate();
+		out.position(offset + 4);
+		out.putInt(keyBytes.length);
+		out.putInt(valueLength);
+		out.put(keyBytes);
+		final int valueOffset = out.position();
+		out.put(value);
+		final CRC32 crc = new CRC32();
+		final ByteBuffer checked = segment.buffer.duplicate();
+		checked.position(offset + RECORD_HEADER);
+		checked.limit(out.position());
+		crc.update(checked);
+		out.putInt((int) crc.getValue());
+		// the magic is written last, so a torn record ends the scan
+		segment.buffer.putInt(offset, MAGIC);
+		segment.end = out.position();
+		index(key, new Location(segment, offset, segment.end - offset, valueOffset, valueLength));
+	}
+
+	/**
+	 * Indexes the records of a segment, stopping at the first missing or broken one.
+	 */
+	private void scan(Segment segment) {
+		final ByteBuffer in = segment.buffer.duplicate();
+		int offset = 0;
+		while (offset + RECORD_HEADER <= in.capacity() && in.getInt(offset) == MAGIC) {
+			final int keyLength = in.getInt(offset + 4);
+			final int valueLength = in.getInt(offset + 8);
+			final long recordLength = (long) RECORD_HEADER + keyLength + valueLength + RECORD_TRAILER;
+			if (keyLength < 0 || valueLength < 0 || offset + recordLength > in.capacity()) {
+				break;
+			}
+			final int keyOffset = offset + RECORD_HEADER;
+			final int valueOffset = keyOffset + keyLength;
+			final ByteBuffer checked = segment.buffer.duplicate();
+			checked.position(keyOffset);
+			checked.limit(valueOffset + valueLength);
+			final CRC32 crc = new CRC32();
+			crc.update(checked);
+			if (in.getInt(valueOffset + valueLength) != (int) crc.getValue()) {
+				break;
+			}
+			final TileKey key = decodeKey(segment.buffer, keyOffset, keyLength);
+			if (key == null) {
+				break;
+			}
+			index(key, new Location(segment, offset, (int) recordLength, valueOffset, valueLength));
+			offset += recordLength;
+		}
+		segment.end = offset;
+		// anything after a broken record is overwritten by the next append
+		if (offset + 4 <= in.capacity()) {
+			segment.buffer.putInt(offset, 0);
+		}
+	}
+
+	private void index(TileKey key, Location location) {
+		final Location previous = index.put(key, location);
+		if (previous != null) {
+			previous.segment.liveBytes -= previous.recordLength;
+		}
+		location.segment.liveBytes += location.recordLength;
+	}
+
+	private void copyLive(Segment segment) {
+		final List<Map.Entry<TileKey, Location>> live = new ArrayList<>();
+		for (Map.Entry<TileKey, Location> entry : index.entrySet()) {
+			if (entry.getValue().segment == segment) {
+				live.add(entry);
+			}
+		}
+		for (Map.Entry<TileKey, Location> entry : live) {
+			final Location location = entry.getValue();
+			if (active.end + location.recordLength + 4 > active.buffer.capacity()) {
+				// no room left to move it, the tile is dropped with the segment
+				continue;
+			}
+			final ByteBuffer value = segment.buffer.duplicate();
+			value.position(location.valueOffset);
+			value.limit(location.valueOffset + location.valueLength);
+			append(active, entry.getKey(), encodeKey(entry.getKey()), value);
+		}
+	}
+
+	private void delete(Segment segment) throws IOException {
+		for (Iterator<Location> locations = index.values().iterator(); locations.hasNext();) {
+			if (locations.next().segment == segment) {
+				locations.remove();
+			}
+		}
+		segments.remove(segment.number);
+		segment.channel.close();
+		// the mapping stays valid until it is collected, the file can go now
+		Files.deleteIfExists(segment.path);
+	}
+
+	private static int segmentNumber(Path file) {
+		final String name = file.getFileName().toString();
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static byte[] encodeKey(TileKey key) {
+		final byte[] codec = key.getCodec().getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer out = ByteBuffer.allocate(4 + codec.length + 7 * Integer.BYTES);
+		out.putInt(codec.length);
+		out.put(codec);
+		out.putInt(key.getImgWidth());
+		out.putInt(key.getImgHeight());
+		out.putInt(key.getXBegin());
+		out.putInt(key.getXEnd());
+		out.putInt(key.getYBegin());
+		out.putInt(key.getYEnd());
+		out.putInt(key.getFormat());
+		return out.array();
+	}
+
+	private static TileKey decodeKey(ByteBuffer buffer, int offset, int length) {
+		final ByteBuffer in = buffer.duplicate();
+		in.position(offset);
+		in.limit(offset + length);
+		if (in.remaining() < 4) {
+			return null;
+		}
+		final int codecLength = in.getInt();
+		if (codecLength < 0 || in.remaining() != codecLength + 7 * Integer.BYTES) {
+			return null;
+		}
+		final byte[] codec = new byte[codecLength];
+		in.get(codec);
+		return new TileKey(new String(codec, StandardCharsets.UTF_8), in.getInt(), in.getInt(), in.getInt(),
+				in.getInt(), in.getInt(), in.getInt(), in.getInt());
+	}
+}
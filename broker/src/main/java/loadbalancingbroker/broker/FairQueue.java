@@ -0,0 +1,170 @@
+package loadbalancingbroker.broker;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Requests of one lane, served deficit round robin across clients. Every
+ * client (the job id of its requests) has a queue of its own; the clients
+ * with requests waiting take turns, and on its turn a client gets a quantum
+ * of pixels to spend on its requests. A client that floods the broker with
+ * large tiles thus gets the same share of pixels as one that asks for a
+ * few, instead of the share of requests it sent.
+ *
+ * A client may have a limited number of requests waiting, offer() turns the
+ * next ones away. Within a client requests keep the order of the queue
+ * the supplier creates.
+ */
+public class FairQueue extends AbstractQueue<InFlightRequest> {
+
+	private static class Flow {
+		final long jobId;
+		final Queue<InFlightRequest> requests;
+		// pixels the flow may still spend in its turn
+		long deficit = 0;
+		// true once the flow got the quantum of its current turn
+		boolean inTurn = false;
+
+		Flow(long jobId, Queue<InFlightRequest> requests) {
+			this.jobId = jobId;
+			this.requests = requests;
+		}
+	}
+
+	private final long quantumPixels;
+	private final int flowCapacity;
+	private final Supplier<Queue<InFlightRequest>> flowQueues;
+	private final HashMap<Long, Flow> flows = new HashMap<>();
+	// flows with requests waiting, the first one has its turn
+	private final ArrayDeque<Flow> active = new ArrayDeque<>();
+	private int size = 0;
+
+	/**
+	 * @param quantumPixels pixels a client may request per turn, positive
+	 * @param flowCapacity requests a client may have waiting, 0 for no limit
+	 * @param flowQueues creates the queue of a client, ordering its requests
+	 */
+	public FairQueue(long quantumPixels, int flowCapacity, Supplier<Queue<InFlightRequest>> flowQueues) {
+		if (quantumPixels <= 0) {
+			throw new IllegalArgumentException("Fair queuing quantum must be positive, got " + quantumPixels);
+		}
+		this.quantumPixels = quantumPixels;
+		this.flowCapacity = flowCapacity;
+		this.flowQueues = flowQueues;
+	}
+
+	/**
+	 * @return false if the client of the request has as many requests waiting as it may
+	 */
+	@Override
+	public boolean offer(InFlightRequest request) {
+		Flow flow = flows.get(request.getJobId());
+		if (flow == null) {
+			flow = new Flow(request.getJobId(), flowQueues.get());
+			flows.put(flow.jobId, flow);
+			active.addLast(flow);
+		} else if (flowCapacity > 0 && flow.requests.size() >= flowCapacity) {
+			return false;
+		}
+		flow.requests.add(request);
+		size++;
+		return true;
+	}
+
+	@Override
+	public InFlightRequest poll() {
+		while (!active.isEmpty()) {
+			final Flow flow = active.peekFirst();
+			if (!flow.inTurn) {
+				flow.deficit += quantumPixels;
+				flow.inTurn = true;
+			}
+			final InFlightRequest request = flow.requests.peek();
+			final long cost = Math.max(1, request.getPixels());
+			if (cost <= flow.deficit) {
+				flow.requests.poll();
+				flow.deficit -= cost;
+				size--;
+				if (flow.requests.isEmpty()) {
+					// an idle client does not save up pixels
+					active.pollFirst();
+					flows.remove(flow.jobId);
+				}
+				return request;
+			}
+			// the turn is over, the deficit is kept for the next one
+			flow.inTurn = false;
+			active.addLast(active.pollFirst());
+		}
+		return null;
+	}
+
+	@Override
+	public InFlightRequest peek() {
+		final Flow flow = active.peekFirst();
+		return flow != null ? flow.requests.peek() : null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super InFlightRequest> filter) {
+		boolean removed = false;
+		for (Iterator<Flow> flowIterator = active.iterator(); flowIterator.hasNext();) {
+			final Flow flow = flowIterator.next();
+			final int before = flow.requests.size();
+			if (flow.requests.removeIf(filter)) {
+				removed = true;
+				size -= before - flow.requests.size();
+				if (flow.requests.isEmpty()) {
+					flowIterator.remove();
+					flows.remove(flow.jobId);
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Read-only, requests are removed with poll or removeIf.
+	 */
+	@Override
+	public Iterator<InFlightRequest> iterator() {
+		final Iterator<Flow> flowIterator = active.iterator();
+		return new Iterator<InFlightRequest>() {
+			private Iterator<InFlightRequest> requests = null;
+
+			@Override
+			public boolean hasNext() {
+				while ((requests == null || !requests.hasNext()) && flowIterator.hasNext()) {
+					requests = flowIterator.next().requests.iterator();
+				}
+				return requests != null && requests.hasNext();
+			}
+
+			@Override
+			public InFlightRequest next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return requests.next();
+			}
+		};
+	}
+
+	/**
+	 * @return clients with requests waiting
+	 */
+	public int flowCount() {
+		return active.size();
+	}
+}
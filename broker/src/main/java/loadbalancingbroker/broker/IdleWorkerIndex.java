@@ -0,0 +1,229 @@
+package loadbalancingbroker.broker;
+
+import java.util.Arrays;
+
+/**
+ * Idle workers of the broker, best score first.
+ *
+ * An indexed binary max-heap over worker slots (small ints handed out by
+ * WorkerRegistry). Every slot is in the heap at most once, its heap position
+ * is tracked, so a worker can be taken, returned, removed or re-scored in
+ * O(log n) without boxing and without allocating once the arrays have grown.
+ *
+ * Workers with the same score are not merged like in a TreeSet ordered by
+ * score only: ties are broken by the time the worker became idle, so equal
+ * workers take turns (least recently used first).
+ */
+public class IdleWorkerIndex {
+	private static final int ABSENT = -1;
+
+	// heap of slots, heap[0] is the best idle worker
+	private int[] heap;
+	private int size = 0;
+	// per slot: position in heap or ABSENT, score and idle stamp of the slot
+	private int[] positions;
+	private int[] scores;
+	private long[] idleSince;
+	private long stamp = 0;
+
+	public IdleWorkerIndex() {
+		this(64);
+	}
+
+	/**
+	 * @param initialSlots number of worker slots to size the arrays for
+	 */
+	public IdleWorkerIndex(int initialSlots) {
+		final int capacity = Math.max(1, initialSlots);
+		heap = new int[capacity];
+		positions = new int[capacity];
+		Arrays.fill(positions, ABSENT);
+		scores = new int[capacity];
+		idleSince = new long[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(int slot) {
+		return slot >= 0 && slot < positions.length && positions[slot] != ABSENT;
+	}
+
+	/**
+	 * Marks a worker idle with the given score. A worker that is idle
+	 * already keeps its place among equals and only gets the new score.
+	 * @param slot worker slot, not negative
+	 * @param score higher scores are taken first
+	 */
+	public void offer(int slot, int score) {
+		if (slot < 0) {
+			throw new IllegalArgumentException("Negative worker slot " + slot);
+		}
+		ensureSlot(slot);
+		if (positions[slot] != ABSENT) {
+			updateScore(slot, score);
+			return;
+		}
+		if (size == heap.length) {
+			heap = Arrays.copyOf(heap, size * 2);
+		}
+		scores[slot] = score;
+		idleSince[slot] = stamp++;
+		heap[size] = slot;
+		positions[slot] = size;
+		size++;
+		siftUp(size - 1);
+	}
+
+	/**
+	 * @return slot of the best idle worker without taking it, or -1 if none is idle
+	 */
+	public int peek() {
+		return size == 0 ? ABSENT : heap[0];
+	}
+
+	/**
+	 * Idle worker at a position of the heap, for policies that look at
+	 * more than the best one. Positions change with every update.
+	 * @param index between 0 and size() - 1
+	 * @return slot of an idle worker
+	 */
+	public int slotAt(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Idle worker " + index + " of " + size);
+		}
+		return heap[index];
+	}
+
+	/**
+	 * Takes the best idle worker.
+	 * @return its slot, or -1 if none is idle
+	 */
+	public int poll() {
+		if (size == 0) {
+			return ABSENT;
+		}
+		final int best = heap[0];
+		removeAt(0);
+		return best;
+	}
+
+	/**
+	 * Takes a worker out of the index, e.g. because it disconnected.
+	 * @param slot
+	 * @return true if the worker was idle
+	 */
+	public boolean remove(int slot) {
+		if (!contains(slot)) {
+			return false;
+		}
+		removeAt(positions[slot]);
+		return true;
+	}
+
+	/**
+	 * Changes the score of an idle worker.
+	 * @param slot
+	 * @param score
+	 * @return true if the worker was idle
+	 */
+	public boolean updateScore(int slot, int score) {
+		if (!contains(slot)) {
+			return false;
+		}
+		final int old = scores[slot];
+		scores[slot] = score;
+		if (score > old) {
+			siftUp(positions[slot]);
+		} else if (score < old) {
+			siftDown(positions[slot]);
+		}
+		return true;
+	}
+
+	/**
+	 * @param slot
+	 * @return last score the worker was offered or updated with
+	 */
+	public int scoreOf(int slot) {
+		return scores[slot];
+	}
+
+	private void removeAt(int position) {
+		final int removed = heap[position];
+		positions[removed] = ABSENT;
+		size--;
+		if (position == size) {
+			return;
+		}
+		final int last = heap[size];
+		heap[position] = last;
+		positions[last] = position;
+		siftDown(position);
+		if (heap[position] == last) {
+			siftUp(position);
+		}
+	}
+
+	// true if worker a should be taken before worker b
+	private boolean before(int a, int b) {
+		if (scores[a] != scores[b]) {
+			return scores[a] > scores[b];
+		}
+		return idleSince[a] < idleSince[b];
+	}
+
+	private void siftUp(int position) {
+		final int slot = heap[position];
+		while (position > 0) {
+			final int parent = (position - 1) >>> 1;
+			final int parentSlot = heap[parent];
+			if (!before(slot, parentSlot)) {
+				break;
+			}
+			heap[position] = parentSlot;
+			positions[parentSlot] = position;
+			position = parent;
+		}
+		heap[position] = slot;
+		positions[slot] = position;
+	}
+
+	private void siftDown(int position) {
+		final int slot = heap[position];
+		final int half = size >>> 1;
+		while (position < half) {
+			int child = 2 * position + 1;
+			final int right = child + 1;
+			if (right < size && before(heap[right], heap[child])) {
+				child = right;
+			}
+			final int childSlot = heap[child];
+			if (!before(childSlot, slot)) {
+				break;
+			}
+			heap[position] = childSlot;
+			positions[childSlot] = position;
+			position = child;
+		}
+		heap[position] = slot;
+		positions[slot] = position;
+	}
+
+	private void ensureSlot(int slot) {
+		if (slot < positions.length) {
+			return;
+		}
+		final int oldLength = positions.length;
+		final int newLength = Math.max(slot + 1, oldLength * 2);
+		positions = Arrays.copyOf(positions, newLength);
+		Arrays.fill(positions, oldLength, newLength, ABSENT);
+		scores = Arrays.copyOf(scores, newLength);
+		idleSince = Arrays.copyOf(idleSince, newLength);
+	}
+}
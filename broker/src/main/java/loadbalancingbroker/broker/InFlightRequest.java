@@ -0,0 +1,312 @@
+package loadbalancingbroker.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import loadbalancingbroker.domain.TileKey;
+import loadbalancingbroker.domain.TilePriority;
+import zmq.Msg;
+
+/**
+ * A client request the broker dispatched and has not seen the reply for.
+ * Keeps the received client id and request frames, so the request can be
+ * sent to another worker without the client noticing.
+ */
+public class InFlightRequest {
+	private final long requestId;
+	private final Msg clientId;
+	private final Msg request;
+	private final long pixels;
+	// System.nanoTime() the broker received the request
+	private final long arrivedAt;
+	private int workerSlot = -1;
+	private long dispatchedAt;
+	private long deadline;
+	private int attempts = 0;
+	// how long the worker is expected to take, 0 if it is not known
+	private long expectedNanos = 0;
+	// worker computing a duplicate of the request, -1 if it is not hedged
+	private int hedgeSlot = -1;
+	private long hedgedAt;
+	private long queuedAt;
+	// key of the requested tile, null if it was not read
+	private TileKey tileKey;
+	// estimated kernel iterations of the tile, 0 if not estimated
+	private long cost = 0;
+	// lane the request waits in when no worker is idle
+	private TilePriority priority = TilePriority.INTERACTIVE;
+	// job the client put into the request, 0 if it has none or it was not read
+	private long jobId = 0;
+	// split this request is a part of (part >= 0), or that splits this request (part -1)
+	private SplitTile split;
+	private int part = -1;
+	// requests for the same tile that arrived while this one was in flight, answered with its reply
+	private List<InFlightRequest> waiters;
+	// true once the client cancelled the request while waiters still want the tile
+	private boolean clientCancelled = false;
+
+	/**
+	 * @param requestId id the broker gave the request
+	 * @param clientId received client id frame
+	 * @param request received request frame
+	 * @param pixels size of the requested tile
+	 */
+	public InFlightRequest(long requestId, Msg clientId, Msg request, long pixels) {
+		this.requestId = requestId;
+		this.clientId = clientId;
+		this.request = request;
+		this.pixels = pixels;
+		this.arrivedAt = System.nanoTime();
+	}
+
+	/**
+	 * Notes that the request was (again) sent to a worker.
+	 * @param workerSlot
+	 * @param nanoTime System.nanoTime() of the dispatch
+	 * @param deadline System.currentTimeMillis() after which the request is sent elsewhere
+	 */
+	public void dispatched(int workerSlot, long nanoTime, long deadline) {
+		this.workerSlot = workerSlot;
+		this.dispatchedAt = nanoTime;
+		this.deadline = deadline;
+		this.attempts++;
+		this.hedgeSlot = -1;
+	}
+
+	/**
+	 * Notes that a duplicate of the request was sent to another worker,
+	 * the first of the two replies answers the client.
+	 * @param hedgeSlot
+	 * @param nanoTime System.nanoTime() the duplicate was sent
+	 */
+	public void hedged(int hedgeSlot, long nanoTime) {
+		this.hedgeSlot = hedgeSlot;
+		this.hedgedAt = nanoTime;
+	}
+
+	/**
+	 * Forgets the duplicate, e.g. because its worker was lost.
+	 */
+	public void dropHedge() {
+		this.hedgeSlot = -1;
+	}
+
+	/**
+	 * Makes the duplicate the only copy of the request, e.g. because the
+	 * first worker was lost or is late.
+	 * @param deadline System.currentTimeMillis() after which the request is sent elsewhere
+	 */
+	public void promoteHedge(long deadline) {
+		this.workerSlot = hedgeSlot;
+		this.dispatchedAt = hedgedAt;
+		this.deadline = deadline;
+		this.expectedNanos = 0;
+		this.hedgeSlot = -1;
+	}
+
+	/**
+	 * Notes that the request waits for another worker, it is not
+	 * held by any worker and has no deadline until it is dispatched.
+	 */
+	public void requeued() {
+		this.workerSlot = -1;
+		this.deadline = Long.MAX_VALUE;
+		this.hedgeSlot = -1;
+	}
+
+	/**
+	 * Notes that the request waits in the broker's queue.
+	 * @param nanoTime System.nanoTime() it was queued
+	 */
+	public void queued(long nanoTime) {
+		this.queuedAt = nanoTime;
+	}
+
+	public long getRequestId() {
+		return requestId;
+	}
+
+	public Msg getClientId() {
+		return clientId;
+	}
+
+	public Msg getRequest() {
+		return request;
+	}
+
+	public long getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * @return slot of the worker the request was last sent to, -1 before the first dispatch
+	 */
+	public int getWorkerSlot() {
+		return workerSlot;
+	}
+
+	public long getDispatchedAt() {
+		return dispatchedAt;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public TileKey getTileKey() {
+		return tileKey;
+	}
+
+	/**
+	 * @param tileKey key of the requested tile, the reply is cached and the
+	 *        tile's cost learned under it; null if the request was not read
+	 */
+	public void setTileKey(TileKey tileKey) {
+		this.tileKey = tileKey;
+	}
+
+	public long getCost() {
+		return cost;
+	}
+
+	/**
+	 * @param cost estimated kernel iterations of the tile, 0 if not estimated
+	 */
+	public void setCost(long cost) {
+		this.cost = cost;
+	}
+
+	public TilePriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @param priority lane the request waits in, read from the request when it is queued
+	 */
+	public void setPriority(TilePriority priority) {
+		this.priority = priority;
+	}
+
+	public long getArrivedAt() {
+		return arrivedAt;
+	}
+
+	/**
+	 * @return job of the request, fair queuing serves the jobs in turns
+	 */
+	public long getJobId() {
+		return jobId;
+	}
+
+	/**
+	 * @param jobId job the client put into the request
+	 */
+	public void setJobId(long jobId) {
+		this.jobId = jobId;
+	}
+
+	/**
+	 * Attaches a request for the same tile, it is answered with the reply to this one.
+	 * @param waiter
+	 */
+	public void addWaiter(InFlightRequest waiter) {
+		if (waiters == null) {
+			waiters = new ArrayList<>(2);
+		}
+		waiters.add(waiter);
+	}
+
+	/**
+	 * @return requests answered with the reply to this one, in arrival order
+	 */
+	public List<InFlightRequest> getWaiters() {
+		return waiters != null ? waiters : Collections.emptyList();
+	}
+
+	public boolean hasWaiters() {
+		return waiters != null && !waiters.isEmpty();
+	}
+
+	/**
+	 * Detaches the waiters the filter matches, e.g. the ones of a cancelled job.
+	 * @param filter
+	 * @return detached waiters
+	 */
+	public List<InFlightRequest> removeWaiters(Predicate<InFlightRequest> filter) {
+		final List<InFlightRequest> removed = new ArrayList<>();
+		if (waiters != null) {
+			waiters.removeIf(waiter -> filter.test(waiter) && removed.add(waiter));
+		}
+		return removed;
+	}
+
+	/**
+	 * Notes that the client no longer wants the reply, the request is still
+	 * computed for its waiters.
+	 */
+	public void clientCancelled() {
+		this.clientCancelled = true;
+	}
+
+	public boolean isClientCancelled() {
+		return clientCancelled;
+	}
+
+	/**
+	 * @return split this request is a part of or is split by, null if none
+	 */
+	public SplitTile getSplit() {
+		return split;
+	}
+
+	/**
+	 * @return index of this request among the parts of its split, -1 if it is not a part
+	 */
+	public int getPart() {
+		return part;
+	}
+
+	/**
+	 * @param split split this request is a part of or is split by, null if none
+	 * @param part index among the parts of the split, -1 for the request that is split
+	 */
+	public void setSplit(SplitTile split, int part) {
+		this.split = split;
+		this.part = part;
+	}
+
+	public long getExpectedNanos() {
+		return expectedNanos;
+	}
+
+	/**
+	 * @param expectedNanos how long the worker is expected to take from the dispatch, 0 if not known
+	 */
+	public void setExpectedNanos(long expectedNanos) {
+		this.expectedNanos = expectedNanos;
+	}
+
+	/**
+	 * @return worker computing a duplicate of the request, -1 if it is not hedged
+	 */
+	public int getHedgeSlot() {
+		return hedgeSlot;
+	}
+
+	public long getHedgedAt() {
+		return hedgedAt;
+	}
+
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+
+	/**
+	 * @return number of times the request was dispatched
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+}
@@ -0,0 +1,144 @@
+package loadbalancingbroker.broker;
+
+import java.util.function.Consumer;
+
+/**
+ * Requests dispatched to workers and not answered yet, by request id.
+ *
+ * An open addressing table with linear probing keyed by the primitive
+ * request id, so lookups on every reply do not box. Removal shifts the
+ * following entries back instead of leaving tombstones.
+ */
+public class InFlightTable {
+	private long[] ids;
+	private InFlightRequest[] requests;
+	private int size = 0;
+
+	public InFlightTable() {
+		this(64);
+	}
+
+	/**
+	 * @param expected number of requests expected in flight at once
+	 */
+	public InFlightTable(int expected) {
+		int length = 16;
+		while (length < expected * 2) {
+			length *= 2;
+		}
+		ids = new long[length];
+		requests = new InFlightRequest[length];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Adds a request, replacing one with the same id.
+	 * @param request
+	 */
+	public void put(InFlightRequest request) {
+		if ((size + 1) * 2 > requests.length) {
+			resize(requests.length * 2);
+		}
+		final long id = request.getRequestId();
+		int index = indexOf(id);
+		while (requests[index] != null) {
+			if (ids[index] == id) {
+				requests[index] = request;
+				return;
+			}
+			index = (index + 1) & (requests.length - 1);
+		}
+		ids[index] = id;
+		requests[index] = request;
+		size++;
+	}
+
+	/**
+	 * @param requestId
+	 * @return the request with that id, or null if it is not in flight
+	 */
+	public InFlightRequest get(long requestId) {
+		int index = indexOf(requestId);
+		while (requests[index] != null) {
+			if (ids[index] == requestId) {
+				return requests[index];
+			}
+			index = (index + 1) & (requests.length - 1);
+		}
+		return null;
+	}
+
+	/**
+	 * @param requestId
+	 * @return the removed request, or null if it was not in flight
+	 */
+	public InFlightRequest remove(long requestId) {
+		final int mask = requests.length - 1;
+		int index = indexOf(requestId);
+		while (requests[index] != null) {
+			if (ids[index] == requestId) {
+				final InFlightRequest removed = requests[index];
+				shiftBack(index);
+				size--;
+				return removed;
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Calls the action for every request in flight. The action must not
+	 * change the table, collect the requests to remove first.
+	 * @param action
+	 */
+	public void forEach(Consumer<InFlightRequest> action) {
+		for (InFlightRequest request : requests) {
+			if (request != null) {
+				action.accept(request);
+			}
+		}
+	}
+
+	// closes the gap at index by moving back entries probed past it
+	private void shiftBack(int gap) {
+		final int mask = requests.length - 1;
+		int index = (gap + 1) & mask;
+		while (requests[index] != null) {
+			final int home = indexOf(ids[index]);
+			// move the entry if its home is not between the gap and its position
+			if (((index - home) & mask) >= ((index - gap) & mask)) {
+				ids[gap] = ids[index];
+				requests[gap] = requests[index];
+				gap = index;
+			}
+			index = (index + 1) & mask;
+		}
+		requests[gap] = null;
+	}
+
+	private int indexOf(long id) {
+		// ids are handed out in sequence, mix them so neighbours spread out
+		final long hash = id * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & (requests.length - 1);
+	}
+
+	private void resize(int length) {
+		final InFlightRequest[] oldRequests = requests;
+		ids = new long[length];
+		requests = new InFlightRequest[length];
+		size = 0;
+		for (int i = 0; i < oldRequests.length; i++) {
+			if (oldRequests[i] != null) {
+				put(oldRequests[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package loadbalancingbroker.broker;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
+
+import loadbalancingbroker.zmqutils.FrameChannel;
+import zmq.Msg;
+
+/**
+ * I/O stage of the staged broker: a thread of its own that owns one socket,
+ * the frontend or the backend. Whole messages received on the socket are
+ * handed to the scheduler thread through one ring, the messages the scheduler
+ * sends come back through another; both rings have a single producer and a
+ * single consumer. The socket is not touched by any other thread while the
+ * stage runs, ZeroMQ sockets are not thread-safe.
+ *
+ * The scheduler uses the stage as FrameChannel, the way the single-threaded
+ * broker uses the socket: receive() takes the next message, its frames are
+ * read one by one, the frames sent are collected until the last one and then
+ * queued as one message. The frame arrays of the messages go back to the
+ * side that fills them through a ring of their own once the other side is
+ * done with them, so the rings move messages without allocating.
+ * An idle stage waits in a poll on its socket and on a
+ * doorbell socket that flush() rings when it queued messages for it; an idle
+ * scheduler parks until a stage has received something, see SchedulerWakeup.
+ */
+public class IoStage implements FrameChannel {
+	/** messages the rings hold in each direction */
+	public static final int DEFAULT_RING_CAPACITY = 1024;
+	// messages moved in one direction before the other one is served
+	private static final int BATCH = 256;
+	// how long an idle stage waits before it looks at its rings again
+	private static final long IDLE_POLL_MILLIS = 100;
+	private static final long FULL_POLL_MILLIS = 1;
+	private static final byte[] RING = new byte[0];
+
+	/**
+	 * Parks the scheduler thread while no stage has a message for it.
+	 * Created on the scheduler thread.
+	 */
+	public static class SchedulerWakeup {
+		private final Thread scheduler = Thread.currentThread();
+		private final AtomicBoolean parked = new AtomicBoolean();
+
+		/**
+		 * Parks the scheduler unless one of the stages has a message for it.
+		 * @param wakeUp System.currentTimeMillis() to wake up at the latest
+		 * @param stages stages the scheduler takes messages from, null entries are ignored
+		 */
+		public void park(long wakeUp, IoStage... stages) {
+			parked.set(true);
+			for (IoStage stage : stages) {
+				if (stage != null && !stage.inbound.isEmpty()) {
+					parked.set(false);
+					return;
+				}
+			}
+			final long millis = wakeUp - System.currentTimeMillis();
+			if (millis > 0) {
+				LockSupport.parkNanos(this, millis * 1_000_000);
+			}
+			parked.set(false);
+		}
+
+		private void wake() {
+			if (parked.getAndSet(false)) {
+				LockSupport.unpark(scheduler);
+			}
+		}
+	}
+
+	private final Context context;
+	private final Socket socket;
+	private final String name;
+	private final SchedulerWakeup wakeup;
+	private final SpscRing<Frames> inbound;
+	private final SpscRing<Frames> outbound;
+	// emptied messages on their way back: to the stage for receiving, to the scheduler for sending
+	private final SpscRing<Frames> inboundFree;
+	private final SpscRing<Frames> outboundFree;
+	// the stage waits on one end, the scheduler rings the other one
+	private final Socket doorbell;
+	private final Socket bell;
+	private final AtomicBoolean parked = new AtomicBoolean();
+	private volatile boolean running = true;
+	private Thread thread;
+	// messages moved so far, written by the stage thread only
+	private volatile long received = 0;
+	private volatile long sent = 0;
+
+	// scheduler side: the message being read and the next frame of it,
+	// the message being written, null until its first frame
+	private Frames current;
+	private int next;
+	private Frames sending;
+	private boolean queued = false;
+
+	/**
+	 * Frames of one message. Reused: the side that took it from a ring hands
+	 * it back empty, the frames themselves may live on.
+	 */
+	private static final class Frames {
+		private Msg[] frames = new Msg[8];
+		private int length = 0;
+
+		private void add(Msg msg) {
+			if (length == frames.length) {
+				frames = Arrays.copyOf(frames, length * 2);
+			}
+			frames[length++] = msg;
+		}
+
+		private void clear() {
+			Arrays.fill(frames, 0, length, null);
+			length = 0;
+		}
+	}
+
+	/**
+	 * Must be created on the scheduler thread, the socket is used by the stage thread from start() on.
+	 * @param context context of the socket, for the doorbell
+	 * @param socket bound socket
+	 * @param name name of the stage thread
+	 * @param wakeup created by the scheduler thread
+	 * @param ringCapacity messages the rings hold in each direction
+	 */
+	public IoStage(Context context, Socket socket, String name, SchedulerWakeup wakeup, int ringCapacity) {
+		this.context = context;
+		this.socket = socket;
+		this.name = name;
+		this.wakeup = wakeup;
+		this.inbound = new SpscRing<>(ringCapacity);
+		this.outbound = new SpscRing<>(ringCapacity);
+		// room for every message of a direction: the ones in the ring, the one being read and the one being filled
+		this.inboundFree = new SpscRing<>(ringCapacity + 2);
+		this.outboundFree = new SpscRing<>(ringCapacity + 2);
+		final String doorbellURL = "inproc://" + name + "-doorbell-" + System.identityHashCode(this);
+		this.doorbell = context.socket(SocketType.PAIR);
+		this.doorbell.bind(doorbellURL);
+		this.bell = context.socket(SocketType.PAIR);
+		this.bell.connect(doorbellURL);
+	}
+
+	/**
+	 * Starts the stage thread.
+	 */
+	public void start() {
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the stage thread and waits for it, the socket can be closed by the caller afterwards.
+	 * Messages still queued for the socket are dropped.
+	 */
+	public void stop() {
+		running = false;
+		bell.send(RING);
+		boolean interrupted = false;
+		while (thread != null && thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		bell.close();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Scheduler only: takes the next received message, the frames of the previous one are dropped.
+	 * @return false if no message was received
+	 */
+	public boolean receive() {
+		if (current != null) {
+			current.clear();
+			inboundFree.offer(current);
+		}
+		current = inbound.poll();
+		next = 0;
+		return current != null;
+	}
+
+	/**
+	 * Scheduler only: lets the stage know about the messages queued since the last call.
+	 */
+	public void flush() {
+		if (queued) {
+			queued = false;
+			ring();
+		}
+	}
+
+	private void ring() {
+		if (parked.getAndSet(false)) {
+			bell.send(RING);
+		}
+	}
+
+	@Override
+	public ByteBuffer recvEnvelope() {
+		final Msg msg = recvMsg();
+		return msg != null ? msg.buf() : null;
+	}
+
+	/**
+	 * @return next frame of the received message, null if there is none
+	 */
+	@Override
+	public Msg recvMsg() {
+		if (current == null || next == current.length) {
+			return null;
+		}
+		return current.frames[next++];
+	}
+
+	@Override
+	public void skipRemaining() {
+		if (current != null) {
+			next = current.length;
+		}
+	}
+
+	/**
+	 * Collects a frame, the message is queued with its last frame. Waits while
+	 * the ring to the stage is full, the scheduler must not get ahead of the socket.
+	 */
+	@Override
+	public boolean send(Msg msg, boolean more) {
+		if (sending == null) {
+			sending = outboundFree.poll();
+			if (sending == null) {
+				// until enough messages went round
+				sending = new Frames();
+			}
+		}
+		sending.add(msg);
+		if (more) {
+			return true;
+		}
+		final Frames message = sending;
+		sending = null;
+		queued = true;
+		while (!outbound.offer(message)) {
+			if (!running) {
+				return false;
+			}
+			// the stage needs the core more than a spinning scheduler
+			ring();
+			Thread.yield();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean sendMore(byte[] frame) {
+		return send(new Msg(frame), true);
+	}
+
+	@Override
+	public boolean send(byte[] frame) {
+		return send(new Msg(frame), false);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return messages received on the socket so far
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return messages sent on the socket so far
+	 */
+	public long getSent() {
+		return sent;
+	}
+
+	/**
+	 * @return received messages the scheduler did not take yet
+	 */
+	public int getReceivedWaiting() {
+		return inbound.size();
+	}
+
+	/**
+	 * @return messages waiting to be sent on the socket
+	 */
+	public int getSendWaiting() {
+		return outbound.size();
+	}
+
+	private void run() {
+		try (Poller both = context.poller(2);
+				Poller doorbellOnly = context.poller(1)) {
+			both.register(socket, Poller.POLLIN);
+			final int doorbellId = both.register(doorbell, Poller.POLLIN);
+			final int doorbellOnlyId = doorbellOnly.register(doorbell, Poller.POLLIN);
+			while (running) {
+				final boolean sentSome = sendQueued();
+				final boolean receivedSome = receiveAvailable();
+				if (sentSome || receivedSome) {
+					continue;
+				}
+				parked.set(true);
+				if (!outbound.isEmpty() || !running) {
+					parked.set(false);
+					continue;
+				}
+				// while the scheduler has no room for more, messages are left in the socket
+				final boolean full = inbound.isFull();
+				final Poller items = full ? doorbellOnly : both;
+				final int ready = items.poll(full ? FULL_POLL_MILLIS : IDLE_POLL_MILLIS);
+				parked.set(false);
+				if (ready < 0) {
+					break;
+				}
+				// received messages are taken at the start of the next pass
+				if (items.pollin(full ? doorbellOnlyId : doorbellId)) {
+					while (doorbell.base().recv(ZMQ.DONTWAIT) != null) {
+						// rings only wake the stage up
+					}
+				}
+			}
+		} finally {
+			doorbell.close();
+		}
+	}
+
+	/**
+	 * @return true if messages of the scheduler were sent
+	 */
+	private boolean sendQueued() {
+		int count = 0;
+		Frames message;
+		while (count < BATCH && (message = outbound.poll()) != null) {
+			for (int i = 0; i < message.length; i++) {
+				socket.base().send(message.frames[i], i < message.length - 1 ? ZMQ.SNDMORE : 0);
+			}
+			message.clear();
+			outboundFree.offer(message);
+			count++;
+		}
+		if (count > 0) {
+			sent += count;
+		}
+		return count > 0;
+	}
+
+	/**
+	 * @return true if messages were received for the scheduler
+	 */
+	private boolean receiveAvailable() {
+		int count = 0;
+		while (count < BATCH && !inbound.isFull()) {
+			Msg msg = socket.base().recv(ZMQ.DONTWAIT);
+			if (msg == null) {
+				break;
+			}
+			Frames message = inboundFree.poll();
+			if (message == null) {
+				// until enough messages went round
+				message = new Frames();
+			}
+			// the frames of a message arrive together
+			message.add(msg);
+			while (msg != null && msg.hasMore()) {
+				msg = socket.base().recv(0);
+				if (msg != null) {
+					message.add(msg);
+				}
+			}
+			inbound.offer(message);
+			count++;
+		}
+		if (count > 0) {
+			received += count;
+			wakeup.wake();
+		}
+		return count > 0;
+	}
+}
@@ -3,9 +3,14 @@
 
 package loadbalancingbroker.broker;
 
-import java.util.Comparator;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import org.zeromq.SocketType;
 import org.zeromq.ZMQ;
@@ -13,20 +18,173 @@ import org.zeromq.ZMQ.Context;
 import org.zeromq.ZMQ.Poller;
 import org.zeromq.ZMQ.Socket;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import loadbalancingbroker.codec.ControlHeader;
+import loadbalancingbroker.codec.TileCodec;
+import loadbalancingbroker.codec.TileCodecs;
+import loadbalancingbroker.domain.TileKey;
+import loadbalancingbroker.domain.TilePriority;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+import loadbalancingbroker.zmqutils.FrameChannel;
+import loadbalancingbroker.zmqutils.FrameWriter;
+import loadbalancingbroker.zmqutils.SocketFrameChannel;
+import zmq.Msg;
+
 public class LBBroker {
+	// empty delimiter frame of the envelopes
+	private static final byte[] EMPTY = new byte[0];
+	// unused hedge budget is saved up for at most this many hedges
+	private static final double HEDGE_BURST = 10;
+	// a request is never hedged sooner than this after its dispatch, short requests vary too much
+	private static final long HEDGE_MIN_DELAY_NANOS = 10_000_000;
+
 	private final String fronendURL;
 	private final String backendURL;
+	// context shared with workers and clients in the same JVM, null if the broker owns its context
+	private final Context sharedContext;
 	private boolean started = false;
+	// how often worker scores are printed, 0 to never print them
+	private long statsIntervalMillis = 0;
+	// heartbeats: how often they are sent, and how many may be missed before a worker is dead
+	private long heartbeatIntervalMillis = ControlHeader.HEARTBEAT_INTERVAL_MILLIS;
+	private int heartbeatLiveness = ControlHeader.HEARTBEAT_LIVENESS;
+	// a request not answered this long after its dispatch is sent to another worker
+	private long requestTimeoutMillis = 5_000;
+	// dispatches of one request before the broker gives up on it
+	private int maxAttempts = 3;
+	// requests waiting for a worker, and what to do with new ones when that many wait
+	private int queueCapacity = 1_000;
+	private RequestQueue.FullPolicy queueFullPolicy = RequestQueue.FullPolicy.BACKPRESSURE;
+	// order queued requests are dispatched in, and how the priority lanes share the workers
+	private RequestQueue.Order queueOrder = RequestQueue.Order.FIFO;
+	private RequestQueue.LanePolicy lanePolicy = RequestQueue.LanePolicy.STRICT;
+	private int[] laneWeights = RequestQueue.DEFAULT_LANE_WEIGHTS;
+	// fair queuing: pixels a client gets per turn in its lane, 0 to serve every lane in order alone,
+	// and how many requests a client may have waiting in a lane, 0 for no limit
+	private long fairQuantumPixels = 0;
+	private int clientQueueCapacity = 0;
+	// off-heap bytes for cached replies, 0 to not cache them
+	private long tileCacheBytes = 0;
+	// directory and size cap of the tile store on disk, null to not store tiles on disk
+	private String tileStoreDirectory = null;
+	private long tileStoreBytes = 1024L * 1024 * 1024;
+	// decides which idle worker gets a request
+	private SchedulingPolicy schedulingPolicy = SchedulingPolicies.FASTEST_IDLE;
+	// tiles of at least this many pixels are split among workers with nothing to do, 0 to never split
+	private long splitMinPixels = 0;
+	private int maxSplitParts = 4;
+	// share of requests that may be sent to a second worker when late, 0 to never hedge,
+	// and how many times its expected latency a request must be late for that
+	private double hedgeBudget = 0;
+	private double hedgeLatencyFactor = 2;
+	// socket I/O on threads of its own, see routeStaged
+	private boolean staged = false;
+	// requests for a tile that is in flight already wait for its reply instead of being computed again
+	private boolean singleFlight = false;
+	// directory of the journal of accepted requests, null to not journal them,
+	// and how long appended records may wait for the fsync they share
+	private String journalDirectory = null;
+	private long journalSyncMillis = 5;
+	// tile regions go to the worker that computed them before, while it is not loaded above
+	// this factor times the average, 0 to leave every request to the scheduling policy
+	private double affinityLoadFactor = 0;
+
+	// routing state of a running broker, see start()
+	private FrameChannel frontend;
+	private FrameChannel backend;
+	private IoStage frontendStage;
+	private IoStage backendStage;
+	private WorkerRegistry workers;
+	private IdleWorkerIndex idleWorkers;
+	private WorkerCredits credits;
+	private WorkerScores scores;
+	private WorkerLiveness liveness;
+	private InFlightTable inFlight;
+	private RequestQueue queue;
+	private TileCache cache;
+	private DiskTileStore store;
+	private TileCostModel costModel;
+	private ClientLatencies clientLatencies;
+	// request in flight for each tile, the one later requests for the tile wait for
+	private HashMap<TileKey, InFlightRequest> leaders;
+	private RequestJournal journal;
+	private long nextJournalSync;
+	private TileAffinity affinity;
+	private long nextRequestId;
+	// split tiles since the broker started: on arrival, stolen from a busy worker,
+	// answered from their parts, and of those the stolen ones answered before their worker did
+	private long splitsOnArrival;
+	private long steals;
+	private long splitsAnswered;
+	private long stealsWon;
+	// hedges that may be sent now, and hedges since the broker started: sent, answered
+	// first by the duplicate, answered first by the original worker
+	private double hedgeTokens;
+	private long hedgesSent;
+	private long hedgesWon;
+	private long hedgesLost;
+	// cancels since the broker started: jobs, and their requests dropped from the queue or stopped at a worker
+	private long jobsCancelled;
+	private long cancelledWaiting;
+	private long cancelledDispatched;
+	// requests that waited for a tile in flight, and how many of them got its reply
+	private long singleFlightJoined;
+	private long singleFlightAnswered;
+	private ControlHeader header;
+	private long nextStats;
+	private long nextHeartbeat;
 
 	public LBBroker(String frontendURL, String backendURL) {
+		this(null, frontendURL, backendURL);
+	}
+
+	/**
+	 * @param sharedContext context shared by all roles of a single JVM deployment
+	 *        (required for inproc:// endpoints), or null to open an own context
+	 * @param frontendURL
+	 * @param backendURL
+	 */
+	public LBBroker(Context sharedContext, String frontendURL, String backendURL) {
+		this.sharedContext = sharedContext;
 		this.fronendURL = frontendURL;
 		this.backendURL = backendURL;
 	}
 
 	/**
 	 * This is the broker's main task. It routes messages between clients and workers. Workers signal READY when they
-	 * start; after that we treat them as ready when they reply with a response back to a client. The load-balancing
-	 * data structure is just a SortedSet of workers sorted by benchmark value (Preformance Index).
+	 * start, announcing how many requests they take at once (credits); every dispatch uses up a credit and every
+	 * response back to a client gives it back. A worker is ready as long as it has a credit left. The load-balancing
+	 * data structure is an index of idle workers ordered by the score the scheduling policy gives them, by default
+	 * the pixels per second the broker measured for the worker's past requests. Workers with the same score take
+	 * turns. The policy selects the idle worker for every request.
+	 *
+	 * Replies are cached by the tile they show when a cache budget is set, a request for a cached tile is answered
+	 * by the broker itself. Behind the cache, a tile store on disk keeps replies across restarts; its hits are put
+	 * into the cache again.
+	 *
+	 * Requests that arrive while no worker is idle wait in a bounded queue and are dispatched as soon as a worker
+	 * has a credit again, in arrival order or most expensive first by the cost the broker estimates for the tile.
+	 * Interactive requests wait in a lane ahead of background ones, strictly or weighted. While the queue is full,
+	 * new requests are rejected or left in the frontend socket.
+	 *
+	 * Large tiles are split into parts for workers that have nothing to do, when they arrive with no request queued
+	 * or, as work stealing, while they wait behind another request at a busy worker. The client gets the parts
+	 * put together as one reply.
+	 *
+	 * A request that is late against the latency expected of its worker is hedged within a budget: a duplicate
+	 * goes to a worker with nothing to do, the first reply answers the client and the other one is dropped.
+	 *
+	 * With affinity, a tile goes to the worker its region hashes to on a ring of the workers, as long as that one is
+	 * idle and not loaded much above the average; a busy one passes its regions on to the next worker of the ring.
+	 * Workers that see a region again answer it from their own cache.
+	 *
+	 * Broker and workers exchange heartbeats. Every accepted request is kept in an in-flight table until it is
+	 * answered; when its worker dies or does not answer in time, the request is queued for another worker.
+	 *
+	 * All of this runs on the calling thread, unless the broker is staged: then the frontend and the backend
+	 * socket are served by threads of their own and the calling thread only schedules.
 	 */
 	public synchronized void start() {
 		if (started) {
@@ -34,169 +192,1650 @@ public class LBBroker {
 		}
 		started = true;
 		
-		try (Context context = ZMQ.context(1);
-				// Prepare our context and sockets
-				Socket frontend = context.socket(SocketType.ROUTER);
-				Socket backend = context.socket(SocketType.ROUTER)) {
-			frontend.bind(fronendURL);
-			backend.bind(backendURL);
-
-			// Here is the main loop for the load-balancing-sorted set. It has two sockets:
+		final Context context = sharedContext != null ? sharedContext : ZMQ.context(1);
+		try (// Prepare our context and sockets
+				Socket frontendSocket = context.socket(SocketType.ROUTER);
+				Socket backendSocket = context.socket(SocketType.ROUTER)) {
+			frontendSocket.bind(fronendURL);
+			// a worker reconnects with the identity derived from its id, the new connection takes it over
+			// even while the old one is not torn down yet, so the worker keeps its slot
+			backendSocket.setRouterHandover(true);
+			backendSocket.bind(backendURL);
+
+			// Here is the main loop for the load-balancing-sorted set, see routeSockets. It has two sockets:
 			// - a frontend for clients and
 			// - a backend for workers.
 			//
-			// It polls the backend in all cases, and polls the frontend only when there
-			// are one or more workers ready. as next available worker for client request 
-			// It will be chosen the worker with highest benchmark-value
+			// It polls the backend in all cases, and polls the frontend as long as
+			// there is room in the request queue (or full queues reject requests).
+			// as next available worker for client request 
+			// It will be chosen the worker with highest score
 			//
 			// When we get a client request, we pop the next available worker with highest 
-			// benchmark value from the sorted set of available workers, 
-			// and send the request to this worker. The request
+			// score from the index of available workers, 
+			// and send the request to this worker, or queue it if no worker is idle. The request
 			// message includes the originating client identity.
-			// When a worker replies, we re-add that worker, and we forward the reply
-			// to the original client, using the reply envelope.
-			
-
-			// comparator for sorting by benchmark value of WorkerIDWrapper 
-			Comparator<WorkerIDWrapper> comparator = (w1, w2) -> {
-				return w1.getWorkerBenchmark().
-					   compareTo(w2.getWorkerBenchmark());
-			};
-			
-			// Tree set of available workers, sorted by benchmark value, 
-			// that tells about performance speed of worker 
-			TreeSet<WorkerIDWrapper> workerTree = new TreeSet<>(comparator);
+			// When a worker replies, we re-add that worker with a score updated by the
+			// time the request took, and we forward the reply
+			// to the original client, using the reply envelope. Queued requests
+			// are dispatched before the next poll.
+			//
+			// Once per heartbeat interval we send heartbeats to all live workers, drop
+			// workers we did not hear of for too long and requeue their requests.
+
+			// every worker identity gets a slot, idle slots are kept ordered
+			// by score, that tells about performance speed of worker
+			workers = new WorkerRegistry();
+			// a worker counts as idle here while it has a credit left
+			idleWorkers = new IdleWorkerIndex();
+			credits = new WorkerCredits();
+			scores = new WorkerScores();
+			liveness = new WorkerLiveness(heartbeatIntervalMillis, heartbeatLiveness);
+			inFlight = new InFlightTable();
+			queue = new RequestQueue(queueCapacity, queueOrder, lanePolicy, laneWeights, fairQuantumPixels,
+					clientQueueCapacity);
+			clientLatencies = statsIntervalMillis > 0 ? new ClientLatencies(ClientLatencies.DEFAULT_MAX_CLIENTS) : null;
+			leaders = singleFlight ? new HashMap<>() : null;
+			journal = journalDirectory != null ? openJournal() : null;
+			affinity = affinityLoadFactor > 0
+					? new TileAffinity(TileAffinity.DEFAULT_VIRTUAL_NODES, Math.max(1, affinityLoadFactor)) : null;
+			// tile costs are only estimated when the queue order or the policy looks at them
+			costModel = queueOrder == RequestQueue.Order.LONGEST_FIRST || schedulingPolicy.usesCost()
+					? new TileCostModel() : null;
+			cache = tileCacheBytes > 0 ? new TileCache(tileCacheBytes) : null;
+			store = tileStoreDirectory != null ? openStore() : null;
+			nextRequestId = 1;
+			splitsOnArrival = 0;
+			steals = 0;
+			splitsAnswered = 0;
+			stealsWon = 0;
+			hedgeTokens = 0;
+			hedgesSent = 0;
+			hedgesWon = 0;
+			hedgesLost = 0;
+			jobsCancelled = 0;
+			cancelledWaiting = 0;
+			cancelledDispatched = 0;
+			singleFlightJoined = 0;
+			singleFlightAnswered = 0;
+
+			// reused for every message, control headers are parsed without allocating
+			header = new ControlHeader();
+
+			nextStats = System.currentTimeMillis() + statsIntervalMillis;
+			nextHeartbeat = System.currentTimeMillis() + heartbeatIntervalMillis;
+			nextJournalSync = System.currentTimeMillis();
+			if (journal != null) {
+				recoverJournal();
+			}
+
+			if (staged) {
+				routeStaged(context, frontendSocket, backendSocket);
+			} else {
+				routeSockets(context, frontendSocket, backendSocket);
+			}
+		} finally {
+			if (context != sharedContext) {
+				context.close();
+			}
+			if (store != null) {
+				try {
+					store.close();
+				} catch (IOException e) {
+					System.out.println("Broker could not close tile store: " + e);
+				}
+			}
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					System.out.println("Broker could not close journal: " + e);
+				}
+			}
+			frontend = null;
+			backend = null;
+			frontendStage = null;
+			backendStage = null;
+			inFlight = null;
+			queue = null;
+			cache = null;
+			store = null;
+			costModel = null;
+			journal = null;
+			affinity = null;
+			started = false;
+		}
+	}
+
+	/**
+	 * Routes on the calling thread: polls both sockets and handles one message of each per round.
+	 */
+	private void routeSockets(Context context, Socket frontendSocket, Socket backendSocket) {
+		frontend = new SocketFrameChannel(frontendSocket);
+		backend = new SocketFrameChannel(backendSocket);
+		// poll sets live as long as the loop: the backend is always polled,
+		// the frontend only while a new request can be dispatched, queued or rejected
+		try (Poller backendOnly = context.poller(1);
+				Poller both = context.poller(2)) {
+			final int backendOnlyId = backendOnly.register(backendSocket, Poller.POLLIN);
+			final int backendId = both.register(backendSocket, Poller.POLLIN);
+			final int frontendId = both.register(frontendSocket, Poller.POLLIN);
 
 			while (!Thread.currentThread().isInterrupted()) {
-				// Initialize poll set
-				Poller items = context.poller(2);
-				// Always poll for worker activity on backend
-				int backendPollerId = items.register(backend, Poller.POLLIN);
-				// Poll front-end only if we have available workers
-				int frontendPollerId = -1;
-				if (workerTree.size() > 0)
-					frontendPollerId = items.register(frontend, Poller.POLLIN);
-
-				if (items.poll() < 0)
+				final long wakeUp = prepareRound();
+				final boolean pollFrontend = acceptsRequests();
+				final Poller items = pollFrontend ? both : backendOnly;
+				if (items.poll(Math.max(0, wakeUp - System.currentTimeMillis())) < 0)
 					break;
 
 				// handle worker activity on backend
-				if (items.pollin(backendPollerId)) {
-					//Properties for a new WorkerIdWrapper
-	                final String workerId = backend.recvStr();
-				    Integer workerBenchmark = null;
-
-					{
-						// second frame is always empty
-						final String empty = backend.recvStr();
-						assert (empty.length() == 0);
-					}
+				if (items.pollin(pollFrontend ? backendId : backendOnlyId)) {
+					if (!handleWorker())
+						break;
+				}
+
+				if (pollFrontend && items.pollin(frontendId)) {
+					if (!handleClient())
+						break;
+				}
+				runTimers();
+			}
+		}
+	}
 
-					{
-						// third frame is "READY" and benchmark or else a client reply ID
-						final String clientId = backend.recvStr();
-						if(clientId.contains("READY")){
-							// split and retrieve a benchmark value 
-							workerBenchmark = Integer.valueOf(clientId.split(",")[1]);
-						} 
-						// if client reply, send rest of message back to frontend
-						else if (!clientId.equals("READY")) {
-							{
-								// forth frame is empty
-								final String empty = backend.recvStr();
-								assert (empty.length() == 0);
-							}
-							
-							{
-								workerBenchmark = Integer.valueOf(backend.recvStr());
-							}
-							
-							{
-							//fifth frame is empty
-							final String empty = backend.recvStr();
-							}
-							
-							{
-							// sixth frame is worker's reply to be passed on to client
-							final byte[] replyBytes = backend.recv();
-							// pass worker's reply on the client with given ID
-							frontend.sendMore(clientId);
-							frontend.sendMore("");
-							frontend.send(replyBytes);
-							}
-						}
-						// create and add the available worker to sorted 
-						// set sorted by benchmark of each worker (see comparator on the top ^)
-						workerTree.add(new WorkerIDWrapper(workerId, workerBenchmark));
+	/**
+	 * Routes with staged I/O: a frontend and a backend stage receive and send on the sockets, the calling thread
+	 * takes one message of each per round from their rings and queues what it sends for them. Only the scheduling
+	 * state stays on the calling thread, so decoding, sending and receiving run on other cores. A client message
+	 * is not taken while the frontend would not be polled, the frontend stage then stops receiving once its ring
+	 * is full.
+	 */
+	private void routeStaged(Context context, Socket frontendSocket, Socket backendSocket) {
+		final String name = Thread.currentThread().getName();
+		final IoStage.SchedulerWakeup wakeup = new IoStage.SchedulerWakeup();
+		frontendStage = new IoStage(context, frontendSocket, name + "-frontend", wakeup,
+				IoStage.DEFAULT_RING_CAPACITY);
+		backendStage = new IoStage(context, backendSocket, name + "-backend", wakeup,
+				IoStage.DEFAULT_RING_CAPACITY);
+		frontend = frontendStage;
+		backend = backendStage;
+		frontendStage.start();
+		backendStage.start();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final long wakeUp = prepareRound();
+				final boolean pollFrontend = acceptsRequests();
+				boolean handled = false;
+				// a message cut short is dropped, there is no socket that could be interrupted
+				if (backendStage.receive()) {
+					handled = true;
+					if (!handleWorker()) {
+						System.out.println("Broker dropped incomplete message of a worker");
+					}
+				}
+				if (pollFrontend && frontendStage.receive()) {
+					handled = true;
+					if (!handleClient()) {
+						System.out.println("Broker dropped incomplete message of a client");
 					}
 				}
+				frontendStage.flush();
+				backendStage.flush();
+				runTimers();
+				if (!handled) {
+					wakeup.park(wakeUp, backendStage, pollFrontend ? frontendStage : null);
+				}
+			}
+		} finally {
+			frontendStage.stop();
+			backendStage.stop();
+		}
+	}
+
+	/**
+	 * Serves queued requests, the moment a worker is ready, and hedges overdue ones.
+	 * @return System.currentTimeMillis() to wake up at for heartbeats, stats and hedges even if there is no traffic
+	 */
+	private long prepareRound() {
+		dispatchQueued();
+		final long nextOverdue = hedgeStragglers();
+		long wakeUp = nextHeartbeat;
+		if (statsIntervalMillis > 0) {
+			wakeUp = Math.min(wakeUp, nextStats);
+		}
+		if (nextOverdue != Long.MAX_VALUE) {
+			wakeUp = Math.min(wakeUp, System.currentTimeMillis() + (nextOverdue - System.nanoTime()) / 1_000_000 + 1);
+		}
+		if (journal != null && journal.isDirty()) {
+			wakeUp = Math.min(wakeUp, nextJournalSync);
+		}
+		return wakeUp;
+	}
 
-				if (items.pollin(frontendPollerId)) {
-					// Now get next client request and route it to LRU worker;
-					// Client request is [address][empty][request]
-					final String clientId = frontend.recvStr();
+	/**
+	 * @return true if a new request can be dispatched, queued or rejected now
+	 */
+	private boolean acceptsRequests() {
+		return queueFullPolicy == RequestQueue.FullPolicy.REJECT || !idleWorkers.isEmpty() || !queue.isFull();
+	}
 
-					{
-						// Second frame is always empty
-						final String empty = frontend.recvStr();
-						assert (empty.length() == 0);
-					}
+	/**
+	 * Once per heartbeat interval sends heartbeats and expires workers and requests, prints stats when due.
+	 * Syncs the journal at most once per sync interval, the records of all requests since share the fsync.
+	 */
+	private void runTimers() {
+		final long now = System.currentTimeMillis();
+		if (journal != null && journal.isDirty() && now >= nextJournalSync) {
+			journal.sync();
+			nextJournalSync = now + journalSyncMillis;
+		}
+		if (now >= nextHeartbeat) {
+			sendHeartbeats();
+			expireWorkers(now);
+			expireRequests(now);
+			nextHeartbeat = now + heartbeatIntervalMillis;
+		}
+		if (statsIntervalMillis > 0 && now >= nextStats) {
+			printStats();
+			nextStats = now + statsIntervalMillis;
+		}
+	}
+
+	/**
+	 * Handles one message of a worker: [worker id][empty][control header] and,
+	 * for a reply, [client id][empty][reply].
+	 * @return false if receiving was interrupted
+	 */
+	private boolean handleWorker() {
+		// the identity frame is looked up in place, known workers cost no allocation
+		final ByteBuffer workerId = backend.recvEnvelope();
+		if (workerId == null)
+			return false;
+		final int slot = workers.slotOf(workerId);
+		// any message tells that the worker is alive
+		liveness.seen(slot, System.currentTimeMillis());
 
-					final byte[] requestBytes = frontend.recv();
+		{
+			// second frame is always empty
+			final ByteBuffer empty = backend.recvEnvelope();
+			assert (empty.remaining() == 0);
+		}
 
-					WorkerIDWrapper workerIDWrapper = workerTree.pollLast(); 
-					final String workerId = workerIDWrapper.getWorkerID();
+		// third frame is the binary control header, READY, HEARTBEAT or REPLY
+		if (!header.read(backend.recvEnvelope())) {
+			System.out.println("Broker dropped message of worker " + workerName(slot)
+					+ " with unsupported control header");
+			backend.skipRemaining();
+			return true;
+		}
 
-					// pass client's request on this worker
-					backend.sendMore(workerId);
-					backend.sendMore("");
-					backend.sendMore(clientId);
-					backend.sendMore("");
-					backend.send(requestBytes);
-					//remove the worker wrapped by workerIDWrapper from sorted set
-					workerTree.remove(workerIDWrapper);
+		switch (header.getType()) {
+		case ControlHeader.READY:
+			// a (re)connected worker starts with all its credits,
+			// whatever it had before is lost
+			requeueRequestsOf(slot);
+			credits.grant(slot, header.getCapacity());
+			scores.reset(slot);
+			if (affinity != null) {
+				affinity.join(slot, header.getWorkerId());
+			}
+			break;
+		case ControlHeader.HEARTBEAT:
+			grantUnknown(slot);
+			break;
+		case ControlHeader.REPLY:
+			final InFlightRequest request = inFlight.remove(header.getRequestId());
+			// the header is reused for the cancel of a hedge's other copy, the metric is read before
+			final int metric = header.getMetric();
+			// a reply measures the worker only if the request (or its duplicate) was still its own
+			final boolean hedge = request != null && request.getHedgeSlot() == slot;
+			final boolean own = request != null && (request.getWorkerSlot() == slot || hedge);
+			scores.replied(slot, own ? request.getPixels() : 0, metric,
+					own ? (hedge ? request.getHedgedAt() : request.getDispatchedAt()) : 0, System.nanoTime());
+			if (request != null && request.getHedgeSlot() >= 0) {
+				// the other copy's worker stops computing and gives its credit back
+				// with an empty reply, which is dropped like a late one
+				sendCancel(hedge ? request.getWorkerSlot() : request.getHedgeSlot(), request.getRequestId());
+				if (hedge) {
+					hedgesWon++;
+				} else {
+					hedgesLost++;
 				}
 			}
-		} finally {
-			started = false;
+			if (costModel != null && request != null && request.getTileKey() != null) {
+				// the worker reports the iterations the tile took
+				costModel.record(request.getTileKey(), metric);
+			}
+			if (credits.isGranted(slot)) {
+				credits.giveBack(slot);
+			} else {
+				grantUnknown(slot);
+			}
+			if (request == null) {
+				// already answered by another worker, or given up on
+				backend.skipRemaining();
+				break;
+			}
+			if (request.getPart() >= 0) {
+				// part of a split tile, the client gets the tile once all parts are in
+				if (!receivePart(request, metric))
+					return false;
+				break;
+			}
+			if (request.getSplit() != null) {
+				// the worker was faster than the parts of its stolen request
+				abandonSplit(request.getSplit());
+			}
+			finished(request);
+			if (clientLatencies != null && !request.isClientCancelled()) {
+				clientLatencies.replied(request.getJobId(), request.getArrivedAt(), System.nanoTime());
+			}
+			final boolean storeReply = request.getTileKey() != null && (cache != null || store != null);
+			if (!storeReply && !request.hasWaiters() && !request.isClientCancelled()) {
+				// if client reply, send rest of message back to frontend:
+				// client id, empty frame and worker's reply to be passed on to client,
+				// all frames are forwarded without copying them
+				FrameWriter.forward(backend, frontend, true);
+				FrameWriter.forward(backend, frontend, true);
+				FrameWriter.forward(backend, frontend, false);
+				break;
+			}
+			// the reply is kept: a copy goes into the cache and the tile store, and to the waiters
+			final Msg clientId = backend.recvMsg();
+			if (clientId == null || backend.recvMsg() == null)
+				return false;
+			final Msg reply = backend.recvMsg();
+			if (reply == null)
+				return false;
+			if (storeReply && reply.buf().hasRemaining()) {
+				storeTile(request.getTileKey(), reply.buf());
+			}
+			answerWaiters(request, reply);
+			if (!request.isClientCancelled()) {
+				frontend.send(clientId, true);
+				frontend.sendMore(EMPTY);
+				frontend.send(reply, false);
+			}
+			break;
+		default:
+			System.out.println("Broker dropped message of worker " + workerName(slot)
+					+ " with unknown type " + header.getType());
+			backend.skipRemaining();
+		}
+		// the worker is available again (or still), ordered by its measured score
+		if (credits.available(slot) > 0) {
+			offerIdle(slot);
 		}
+		return true;
 	}
-	
+
 	/**
-	 * Wraps two properties of Worker 
-	 * to give the ability to sort WorkerIds by benchmark value
-	 * @author salavat
+	 * Handles one client request [client id][empty][request].
+	 * @return false if receiving was interrupted
 	 */
-	class WorkerIDWrapper {
-		private String workerID;
-		private Integer workerBenchmark;
-		
-		public WorkerIDWrapper() {}
-		
-		public WorkerIDWrapper(String workerID, Integer workerBenchmark) {
-			this.workerID = workerID;
-			this.workerBenchmark = workerBenchmark;
+	private boolean handleClient() {
+		// Now get next client request and route it to LRU worker;
+		// Client request is [address][empty][request]
+		final Msg clientId = frontend.recvMsg();
+		if (clientId == null)
+			return false;
+
+		{
+			// Second frame is always empty
+			final ByteBuffer empty = frontend.recvEnvelope();
+			assert (empty.remaining() == 0);
 		}
-		
-		public WorkerIDWrapper(String workerID) {
-			this.workerID = workerID;
-			this.workerBenchmark = null;
+
+		// the request is read in place to know how many pixels the worker
+		// has to compute, then passed on without copying it
+		final Msg request = frontend.recvMsg();
+		if (request == null)
+			return false;
+		if (header.read(request.buf()) && header.getType() == ControlHeader.CANCEL) {
+			// a control header instead of a request drops the requests of a job, it is not answered
+			cancelJob(header.getRequestId());
+			return true;
 		}
-		
-		public String getWorkerID() {
-			return workerID;
+		final TileKey key = cache != null || store != null || costModel != null || leaders != null
+				|| affinity != null ? tileKey(request) : null;
+		if (key != null) {
+			final byte[] cached = cache != null || store != null ? lookupTile(key) : null;
+			if (cached != null) {
+				// answered from the cache or the tile store, no worker involved
+				frontend.send(clientId, true);
+				frontend.sendMore(EMPTY);
+				frontend.send(cached);
+				return true;
+			}
 		}
-		public Integer getWorkerBenchmark() {
-			return workerBenchmark;
+		// every new request adds to the hedge budget
+		hedgeTokens = Math.min(HEDGE_BURST, hedgeTokens + hedgeBudget);
+		final InFlightRequest inFlightRequest = new InFlightRequest(nextRequestId++, clientId, request,
+				key != null ? key.getPixels() : requestedPixels(request));
+		inFlightRequest.setTileKey(key);
+		if (fairQuantumPixels > 0 || clientLatencies != null) {
+			// the job is the client fair queuing and the latency figures go by
+			inFlightRequest.setJobId(requestedJobId(request));
+		}
+		if (leaders != null && key != null) {
+			final InFlightRequest leader = leaders.get(key);
+			if (leader != null) {
+				// the tile is computed already, the reply is sent to this client as well
+				leader.addWaiter(inFlightRequest);
+				journalAccepted(inFlightRequest);
+				singleFlightJoined++;
+				return true;
+			}
+		}
+		if (costModel != null && key != null) {
+			inFlightRequest.setCost(costModel.estimate(key));
+		}
+		if (!idleWorkers.isEmpty() && queue.isEmpty()) {
+			inFlight.put(inFlightRequest);
+			lead(inFlightRequest);
+			journalAccepted(inFlightRequest);
+			// a large tile is shared by the workers that have nothing to do
+			if (split(inFlightRequest)) {
+				splitsOnArrival++;
+			} else {
+				dispatch(inFlightRequest);
+			}
+		} else if (!queue.isFull() && queue.offer(withPriority(inFlightRequest), System.nanoTime())) {
+			inFlight.put(inFlightRequest);
+			lead(inFlightRequest);
+			journalAccepted(inFlightRequest);
+		} else {
+			// queue, or the client's share of it, is full: an empty reply tells the client to try again later
+			queue.rejected();
+			frontend.send(clientId, true);
+			frontend.sendMore(EMPTY);
+			frontend.send(EMPTY);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a request to the idle worker its region hashes to, or the one the scheduling policy selects, as
+	 * [worker id][empty][REQUEST header][client id][empty][request].
+	 * There must be an idle worker.
+	 * @param request
+	 */
+	private void dispatch(InFlightRequest request) {
+		final int slot = affinity != null && request.getTileKey() != null
+				? affinity.select(request.getTileKey(), idleWorkers, credits) : -1;
+		dispatchTo(request, slot >= 0 ? slot : schedulingPolicy.select(request, idleWorkers, scores, credits));
+	}
+
+	/**
+	 * Sends a request to the given idle worker.
+	 * @param request
+	 * @param slot
+	 */
+	private void dispatchTo(InFlightRequest request, int slot) {
+		takeCredit(slot);
+		final long nanoTime = System.nanoTime();
+		request.dispatched(slot, nanoTime, System.currentTimeMillis() + requestTimeoutMillis);
+		request.setExpectedNanos(expectedNanos(request, slot));
+		scores.dispatched(slot, nanoTime);
+		send(request, slot, request.getAttempts() == 1);
+	}
+
+	/**
+	 * Sends a duplicate of a dispatched request to another idle worker.
+	 * @param request
+	 * @param slot
+	 */
+	private void hedge(InFlightRequest request, int slot) {
+		takeCredit(slot);
+		final long nanoTime = System.nanoTime();
+		request.hedged(slot, nanoTime);
+		scores.dispatched(slot, nanoTime);
+		send(request, slot, false);
+		hedgesSent++;
+		hedgeTokens--;
+	}
+
+	/**
+	 * Takes a credit of an idle worker, it stays available
+	 * behind its equals while it has credits left.
+	 * @param slot
+	 */
+	private void takeCredit(int slot) {
+		idleWorkers.remove(slot);
+		if (credits.take(slot) > 0) {
+			offerIdle(slot);
 		}
+	}
 
-		public void setWorkerID(String workerID) {
-			this.workerID = workerID;
+	/**
+	 * Writes [worker id][empty][REQUEST header][client id][empty][request].
+	 * @param request
+	 * @param slot
+	 * @param first true if the received frames were not sent before
+	 */
+	private void send(InFlightRequest request, int slot, boolean first) {
+		backend.sendMore(workers.identityOf(slot));
+		backend.sendMore(EMPTY);
+		backend.sendMore(header.set(ControlHeader.REQUEST, 0, 0, 0, request.getRequestId()).toByteArray());
+		if (first) {
+			// first dispatch, the received frames are passed on as they are
+			backend.send(request.getClientId(), true);
+			backend.sendMore(EMPTY);
+			backend.send(request.getRequest(), false);
+		} else {
+			// the received frames were sent before, new frames share their bytes
+			backend.resend(request.getClientId(), true);
+			backend.sendMore(EMPTY);
+			backend.resend(request.getRequest(), false);
 		}
+	}
 
-		public void setWorkerBenchmark(Integer workerBenchmark) {
-			this.workerBenchmark = workerBenchmark;
+	/**
+	 * Drops the requests of a job: waiting ones leave the queue, the workers of
+	 * dispatched ones are told to stop. Every client gets the empty reply of a
+	 * rejected request, the replies the workers still send are dropped.
+	 * @param jobId job id the client put into its requests
+	 */
+	private void cancelJob(long jobId) {
+		jobsCancelled++;
+		if (jobId == 0 || inFlight.isEmpty()) {
+			return;
 		}
-		
+		final List<InFlightRequest> cancelled = new ArrayList<>();
+		final List<InFlightRequest> waited = new ArrayList<>();
+		inFlight.forEach(request -> {
+			if (request.hasWaiters()) {
+				for (InFlightRequest waiter : request.removeWaiters(w -> requestedJobId(w.getRequest()) == jobId)) {
+					answerEmpty(waiter);
+					journalDone(waiter);
+				}
+			}
+			if (requestedJobId(request.getRequest()) == jobId) {
+				(request.hasWaiters() ? waited : cancelled).add(request);
+			}
+		});
+		for (InFlightRequest request : waited) {
+			// other clients wait for the tile, it is still computed for them
+			if (!request.isClientCancelled()) {
+				request.clientCancelled();
+				answerEmpty(request);
+			}
+		}
+		if (cancelled.isEmpty()) {
+			return;
+		}
+		cancelledWaiting += queue.removeIf(new HashSet<>(cancelled)::contains);
+		for (InFlightRequest request : cancelled) {
+			inFlight.remove(request.getRequestId());
+			finished(request);
+			if (request.getWorkerSlot() >= 0) {
+				sendCancel(request.getWorkerSlot(), request.getRequestId());
+				cancelledDispatched++;
+			}
+			if (request.getHedgeSlot() >= 0) {
+				sendCancel(request.getHedgeSlot(), request.getRequestId());
+			}
+			if (request.getSplit() != null) {
+				// parts of the job are cancelled along with their parent
+				request.getSplit().finish();
+			}
+			if (request.getPart() < 0 && !request.isClientCancelled()) {
+				answerEmpty(request);
+			}
+		}
+	}
+
+	/**
+	 * Sends the client of a request the empty reply of a rejected request.
+	 * @param request
+	 */
+	private void answerEmpty(InFlightRequest request) {
+		frontend.resend(request.getClientId(), true);
+		frontend.sendMore(EMPTY);
+		frontend.send(EMPTY);
+	}
+
+	/**
+	 * Makes a new request the one later requests for its tile wait for.
+	 * @param request
+	 */
+	private void lead(InFlightRequest request) {
+		if (leaders != null && request.getTileKey() != null) {
+			leaders.put(request.getTileKey(), request);
+		}
+	}
+
+	/**
+	 * Forgets a request that leaves the broker, answered or not: the next request for
+	 * its tile is computed again, a restarted broker does not compute it again.
+	 * @param request
+	 */
+	private void finished(InFlightRequest request) {
+		if (leaders != null && request.getTileKey() != null && request.getPart() < 0) {
+			leaders.remove(request.getTileKey(), request);
+		}
+		journalDone(request);
+	}
+
+	/**
+	 * Journals a request the broker accepted, if there is a journal.
+	 * @param request
+	 */
+	private void journalAccepted(InFlightRequest request) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.accepted(request.getRequestId(), request.getClientId().buf(), request.getRequest().buf());
+		} catch (IOException e) {
+			System.out.println("Broker could not journal request " + request.getRequestId() + ": " + e);
+		}
+	}
+
+	/**
+	 * Journals that a request left the broker, if there is a journal.
+	 * @param request
+	 */
+	private void journalDone(InFlightRequest request) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.done(request.getRequestId());
+		} catch (IOException e) {
+			System.out.println("Broker could not journal request " + request.getRequestId() + ": " + e);
+		}
+	}
+
+	/**
+	 * Queues the requests a previous broker accepted and did not answer. Their
+	 * clients most likely sent them again meanwhile, or will: the tiles are then
+	 * in the cache and tile store, or in flight already.
+	 */
+	private void recoverJournal() {
+		int recovered = 0;
+		int stored = 0;
+		for (RequestJournal.Entry entry : journal.getRecovered()) {
+			final Msg clientId = new Msg(entry.getClientId());
+			final Msg request = new Msg(entry.getRequest());
+			final TileKey key = tileKey(request);
+			if (key != null && (cache != null || store != null) && lookupTile(key) != null) {
+				// computed before the restart
+				stored++;
+				continue;
+			}
+			final InFlightRequest inFlightRequest = new InFlightRequest(nextRequestId++, clientId, request,
+					key != null ? key.getPixels() : requestedPixels(request));
+			inFlightRequest.setTileKey(key);
+			inFlightRequest.setJobId(requestedJobId(request));
+			if (costModel != null && key != null) {
+				inFlightRequest.setCost(costModel.estimate(key));
+			}
+			final InFlightRequest leader = leaders != null && key != null ? leaders.get(key) : null;
+			if (leader != null) {
+				leader.addWaiter(inFlightRequest);
+			} else {
+				inFlight.put(inFlightRequest);
+				lead(inFlightRequest);
+				// accepted before, so it does not count against the queue capacity
+				queue.requeue(withPriority(inFlightRequest), System.nanoTime());
+			}
+			journalAccepted(inFlightRequest);
+			recovered++;
+		}
+		try {
+			journal.releaseRecovered();
+		} catch (IOException e) {
+			System.out.println("Broker could not drop the old journal segments: " + e);
+		}
+		System.out.println("Broker recovered " + recovered + " unanswered requests from journal " + journalDirectory
+				+ ", " + stored + " more were stored already");
+	}
+
+	/**
+	 * Sends the reply to a request to the clients waiting for the same tile.
+	 * @param request
+	 * @param reply the reply, sent to the request's client after the waiters; null for the empty reply
+	 */
+	private void answerWaiters(InFlightRequest request, Msg reply) {
+		final long nanoTime = System.nanoTime();
+		for (InFlightRequest waiter : request.getWaiters()) {
+			frontend.send(waiter.getClientId(), true);
+			frontend.sendMore(EMPTY);
+			if (reply == null) {
+				frontend.send(EMPTY);
+				journalDone(waiter);
+				continue;
+			}
+			// the frames share the reply's bytes
+			frontend.resend(reply, false);
+			journalDone(waiter);
+			singleFlightAnswered++;
+			if (clientLatencies != null) {
+				clientLatencies.replied(waiter.getJobId(), waiter.getArrivedAt(), nanoTime);
+			}
+		}
+	}
+
+	/**
+	 * Writes [worker id][empty][CANCEL header], the worker stops computing the request.
+	 * @param slot
+	 * @param requestId
+	 */
+	private void sendCancel(int slot, long requestId) {
+		backend.sendMore(workers.identityOf(slot));
+		backend.sendMore(EMPTY);
+		backend.send(header.set(ControlHeader.CANCEL, 0, 0, 0, requestId).toByteArray());
+	}
+
+	/**
+	 * Marks a worker with credits left idle, or updates its score.
+	 * @param slot
+	 */
+	private void offerIdle(int slot) {
+		idleWorkers.offer(slot, schedulingPolicy.score(slot, scores, credits));
+	}
+
+	/**
+	 * Sends queued requests to idle workers, as long as there are any.
+	 */
+	private void dispatchQueued() {
+		while (!queue.isEmpty() && !idleWorkers.isEmpty()) {
+			final InFlightRequest request = queue.poll(System.nanoTime());
+			// skip requests answered by their previous worker in the meantime
+			if (inFlight.get(request.getRequestId()) == request) {
+				dispatch(request);
+			}
+		}
+		if (splitMinPixels > 0 && queue.isEmpty()) {
+			stealWork();
+		}
+	}
+
+	/**
+	 * Splits a large request among the workers that have nothing outstanding,
+	 * if there are at least two. Parts are sized by the speed of their workers.
+	 * The request stays in flight until its client is answered.
+	 * @param request
+	 * @return true if the request was split
+	 */
+	private boolean split(InFlightRequest request) {
+		if (splitMinPixels <= 0 || request.getPixels() < splitMinPixels || request.getSplit() != null) {
+			return false;
+		}
+		int[] free = freeWorkers();
+		if (free.length < 2) {
+			return false;
+		}
+		final ByteString bytes = UnsafeByteOperations.unsafeWrap(request.getRequest().buf());
+		final TileCodec codec;
+		final Request decoded;
+		try {
+			codec = TileCodecs.detect(bytes);
+			decoded = codec.decodeRequest(bytes);
+		} catch (IOException e) {
+			return false;
+		}
+		final int longerSide = Math.max(decoded.getXEnd() - decoded.getXBegin(),
+				decoded.getYEnd() - decoded.getYBegin());
+		free = Arrays.copyOf(free, Math.min(free.length, longerSide));
+		if (!SplitTile.canSplit(decoded, free.length)) {
+			return false;
+		}
+		final double[] weights = new double[free.length];
+		for (int i = 0; i < free.length; i++) {
+			weights[i] = scores.pixelsPerSecond(free[i]);
+		}
+		if (Arrays.stream(weights).anyMatch(weight -> weight <= 0)) {
+			// not all of them measured yet, equal parts
+			Arrays.fill(weights, 1);
+		}
+		final SplitTile split = new SplitTile(request, codec, decoded, weights, nextRequestId);
+		nextRequestId += free.length;
+		request.setSplit(split, -1);
+		for (int i = 0; i < free.length; i++) {
+			final InFlightRequest part = split.getParts()[i];
+			inFlight.put(part);
+			dispatchTo(part, free[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Work stealing: while the queue is empty and at least two workers have nothing to do,
+	 * the request that waits the longest behind another one at a busy worker is split among them.
+	 * The busy worker keeps its copy, whichever answer is complete first goes to the client.
+	 */
+	private void stealWork() {
+		if (idleWorkers.size() < 2 || inFlight.isEmpty() || freeWorkers().length < 2) {
+			return;
+		}
+		final List<InFlightRequest> dispatched = new ArrayList<>();
+		inFlight.forEach(request -> {
+			if (request.getWorkerSlot() >= 0) {
+				dispatched.add(request);
+			}
+		});
+		// a worker computes the request it received first, the others wait in its socket
+		final long[] firstDispatch = new long[workers.size()];
+		Arrays.fill(firstDispatch, Long.MAX_VALUE);
+		for (InFlightRequest request : dispatched) {
+			final int slot = request.getWorkerSlot();
+			firstDispatch[slot] = Math.min(firstDispatch[slot], request.getDispatchedAt());
+		}
+		InFlightRequest victim = null;
+		double longestSeconds = 0;
+		for (InFlightRequest request : dispatched) {
+			final int slot = request.getWorkerSlot();
+			// a hedged request runs twice already
+			if (request.getPart() >= 0 || request.getSplit() != null || request.getHedgeSlot() >= 0
+					|| request.getPixels() < splitMinPixels || request.getDispatchedAt() == firstDispatch[slot]) {
+				continue;
+			}
+			final double pixelsPerSecond = scores.pixelsPerSecond(slot);
+			final double seconds = pixelsPerSecond > 0 ? request.getPixels() / pixelsPerSecond : Double.MAX_VALUE;
+			if (victim == null || seconds > longestSeconds) {
+				victim = request;
+				longestSeconds = seconds;
+			}
+		}
+		if (victim != null && split(victim)) {
+			steals++;
+		}
+	}
+
+	/**
+	 * @param request
+	 * @param slot worker the request was just dispatched to
+	 * @return time the worker is expected to take for the request and the ones it holds
+	 *         before it, 0 if the worker was not measured yet
+	 */
+	private long expectedNanos(InFlightRequest request, int slot) {
+		final double iterationsPerSecond = scores.iterationsPerSecond(slot);
+		final double pixelsPerSecond = scores.pixelsPerSecond(slot);
+		final double seconds;
+		if (request.getCost() > 0 && iterationsPerSecond > 0) {
+			seconds = request.getCost() / iterationsPerSecond;
+		} else if (pixelsPerSecond > 0) {
+			seconds = request.getPixels() / pixelsPerSecond;
+		} else {
+			return 0;
+		}
+		// requests the worker holds are taken to be like this one
+		return (long) (seconds * 1e9 * credits.outstanding(slot));
+	}
+
+	/**
+	 * Hedging: while the queue is empty, requests that are late by hedgeLatencyFactor
+	 * times their expected latency are sent to idle workers with nothing outstanding
+	 * as well, the most overdue first, as far as the hedge budget allows.
+	 * @return System.nanoTime() the next request becomes overdue, Long.MAX_VALUE if none will
+	 */
+	private long hedgeStragglers() {
+		if (hedgeBudget <= 0 || !queue.isEmpty() || idleWorkers.isEmpty() || inFlight.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		final long now = System.nanoTime();
+		final List<InFlightRequest> overdue = new ArrayList<>();
+		final long[] nextOverdue = { Long.MAX_VALUE };
+		inFlight.forEach(request -> {
+			// a stolen request is worked on by the parts of its split already
+			if (request.getWorkerSlot() < 0 || request.getHedgeSlot() >= 0 || request.getExpectedNanos() <= 0
+					|| (request.getSplit() != null && request.getPart() < 0)) {
+				return;
+			}
+			final long overdueAt = overdueAt(request);
+			if (overdueAt <= now) {
+				overdue.add(request);
+			} else {
+				nextOverdue[0] = Math.min(nextOverdue[0], overdueAt);
+			}
+		});
+		if (overdue.isEmpty() || hedgeTokens < 1) {
+			return nextOverdue[0];
+		}
+		overdue.sort((a, b) -> Long.compare(overdueAt(a), overdueAt(b)));
+		final int[] free = freeWorkers(overdue.size() + 1);
+		int next = 0;
+		for (InFlightRequest request : overdue) {
+			if (hedgeTokens < 1) {
+				break;
+			}
+			while (next < free.length && free[next] == request.getWorkerSlot()) {
+				next++;
+			}
+			if (next == free.length) {
+				break;
+			}
+			hedge(request, free[next++]);
+		}
+		return nextOverdue[0];
+	}
+
+	private long overdueAt(InFlightRequest request) {
+		return request.getDispatchedAt()
+				+ Math.max(HEDGE_MIN_DELAY_NANOS, (long) (request.getExpectedNanos() * hedgeLatencyFactor));
+	}
+
+	/**
+	 * @return idle workers without outstanding requests, fastest first, at most maxSplitParts
+	 */
+	private int[] freeWorkers() {
+		return freeWorkers(maxSplitParts);
+	}
+
+	/**
+	 * @param limit
+	 * @return idle workers without outstanding requests, fastest first, at most limit
+	 */
+	private int[] freeWorkers(int limit) {
+		final List<Integer> free = new ArrayList<>();
+		for (int i = 0; i < idleWorkers.size(); i++) {
+			final int slot = idleWorkers.slotAt(i);
+			if (credits.outstanding(slot) == 0) {
+				free.add(slot);
+			}
+		}
+		free.sort((a, b) -> Double.compare(scores.pixelsPerSecond(b), scores.pixelsPerSecond(a)));
+		return free.stream().limit(limit).mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Takes the reply of a part of a split tile, [client id][empty][reply],
+	 * and answers the client once all parts are in.
+	 * @param part
+	 * @param iterations kernel iterations the worker reported
+	 * @return false if receiving was interrupted
+	 */
+	private boolean receivePart(InFlightRequest part, long iterations) {
+		// client id and empty frame are the parent's, the reply is decoded
+		if (backend.recvMsg() == null || backend.recvMsg() == null)
+			return false;
+		final Msg reply = backend.recvMsg();
+		if (reply == null)
+			return false;
+		final SplitTile split = part.getSplit();
+		if (split.isDone()) {
+			return true;
+		}
+		final ByteString bytes = UnsafeByteOperations.unsafeWrap(reply.buf());
+		final boolean complete;
+		try {
+			complete = split.replied(part, TileCodecs.detect(bytes).decodeReply(bytes), iterations);
+		} catch (IOException | RuntimeException e) {
+			// the frame comes from a worker, whatever is wrong with it must not stop the routing loop
+			System.out.println("Broker dropped split of request " + split.getParent().getRequestId() + ": " + e);
+			abandonSplit(split);
+			return true;
+		}
+		if (complete) {
+			completeSplit(split);
+		}
+		return true;
+	}
+
+	/**
+	 * Answers the client of a split tile with its assembled reply, unless it was answered already.
+	 * @param split split with all parts in
+	 */
+	private void completeSplit(SplitTile split) {
+		split.finish();
+		final InFlightRequest parent = split.getParent();
+		parent.setSplit(null, -1);
+		if (inFlight.remove(parent.getRequestId()) == null) {
+			// answered whole in the meantime, or given up on
+			return;
+		}
+		finished(parent);
+		final byte[] reply = split.assemble();
+		answerWaiters(parent, new Msg(reply));
+		if (!parent.isClientCancelled()) {
+			if (clientLatencies != null) {
+				clientLatencies.replied(parent.getJobId(), parent.getArrivedAt(), System.nanoTime());
+			}
+			frontend.resend(parent.getClientId(), true);
+			frontend.sendMore(EMPTY);
+			frontend.send(reply);
+		}
+		splitsAnswered++;
+		if (parent.getAttempts() > 0) {
+			stealsWon++;
+		}
+		final TileKey key = parent.getTileKey();
+		if (key != null) {
+			if (costModel != null) {
+				costModel.record(key, split.getIterations());
+			}
+			storeTile(key, ByteBuffer.wrap(reply));
+		}
+	}
+
+	/**
+	 * Drops the parts of a split that are still in flight. A tile that was split
+	 * on arrival is queued whole instead, a stolen one is still at its worker.
+	 * @param split
+	 */
+	private void abandonSplit(SplitTile split) {
+		split.finish();
+		for (InFlightRequest part : split.getParts()) {
+			if (inFlight.get(part.getRequestId()) == part) {
+				inFlight.remove(part.getRequestId());
+			}
+		}
+		final InFlightRequest parent = split.getParent();
+		parent.setSplit(null, -1);
+		if (parent.getAttempts() == 0 && inFlight.get(parent.getRequestId()) == parent) {
+			queue.requeue(withPriority(parent), System.nanoTime());
+		}
+	}
+
+	/**
+	 * Queues a request for another dispatch, or gives up on it after maxAttempts.
+	 * @param request
+	 */
+	private void requeue(InFlightRequest request) {
+		if (request.getHedgeSlot() >= 0) {
+			// its duplicate is still computed and becomes the only copy
+			request.promoteHedge(System.currentTimeMillis() + requestTimeoutMillis);
+			return;
+		}
+		if (request.getAttempts() >= maxAttempts) {
+			inFlight.remove(request.getRequestId());
+			System.out.println("Broker gave up on request " + request.getRequestId() + " after "
+					+ request.getAttempts() + " attempts");
+			finished(request);
+			// the waiters try again on their own, as after a rejection
+			answerWaiters(request, null);
+			if (request.getPart() >= 0 && !request.getSplit().isDone()) {
+				// the tile is sent whole instead
+				abandonSplit(request.getSplit());
+			}
+			return;
+		}
+		request.requeued();
+		queue.requeue(withPriority(request), System.nanoTime());
+	}
+
+	private void requeueRequestsOf(int slot) {
+		if (inFlight.isEmpty()) {
+			return;
+		}
+		final List<InFlightRequest> lost = new ArrayList<>();
+		inFlight.forEach(request -> {
+			if (request.getWorkerSlot() == slot || request.getHedgeSlot() == slot) {
+				lost.add(request);
+			}
+		});
+		for (InFlightRequest request : lost) {
+			if (request.getHedgeSlot() == slot) {
+				// the first copy is still computed
+				request.dropHedge();
+			} else {
+				requeue(request);
+			}
+		}
+	}
+
+	/**
+	 * Drops workers that were silent for too long, their requests go to other workers.
+	 * @param now
+	 */
+	private void expireWorkers(long now) {
+		for (int slot = 0; slot < workers.size(); slot++) {
+			if (liveness.expire(slot, now)) {
+				System.out.println("Broker lost worker " + workerName(slot) + " with "
+						+ credits.outstanding(slot) + " outstanding requests");
+				idleWorkers.remove(slot);
+				credits.revoke(slot);
+				scores.reset(slot);
+				if (affinity != null) {
+					affinity.leave(slot);
+				}
+				requeueRequestsOf(slot);
+			}
+		}
+	}
+
+	/**
+	 * Requeues requests that were not answered in time by a live worker.
+	 * The worker keeps the credit until it answers.
+	 * @param now
+	 */
+	private void expireRequests(long now) {
+		if (inFlight.isEmpty()) {
+			return;
+		}
+		final List<InFlightRequest> late = new ArrayList<>();
+		inFlight.forEach(request -> {
+			if (request.getWorkerSlot() >= 0 && request.getDeadline() <= now) {
+				late.add(request);
+			}
+		});
+		late.forEach(this::requeue);
+	}
+
+	private void sendHeartbeats() {
+		final byte[] heartbeat = header.set(ControlHeader.HEARTBEAT, 0, 0, 0).toByteArray();
+		for (int slot = 0; slot < workers.size(); slot++) {
+			if (liveness.isAlive(slot)) {
+				backend.sendMore(workers.identityOf(slot));
+				backend.sendMore(EMPTY);
+				backend.send(heartbeat);
+			}
+		}
+	}
+
+	/**
+	 * Takes over the credits of a worker that was connected before this
+	 * broker started or before it was declared dead.
+	 * @param slot
+	 */
+	private void grantUnknown(int slot) {
+		if (!credits.isGranted(slot)) {
+			credits.grant(slot, header.getCapacity());
+			if (affinity != null) {
+				affinity.join(slot, header.getWorkerId());
+			}
+		}
+	}
+
+	private String workerName(int slot) {
+		return new String(workers.identityOf(slot), ZMQ.CHARSET);
+	}
+
+	/**
+	 * @param request request frame in any codec the workers understand
+	 * @return pixels of the requested tile, 0 if the request can not be read
+	 */
+	private static long requestedPixels(Msg request) {
+		if (request == null) {
+			return 0;
+		}
+		final ByteString bytes = UnsafeByteOperations.unsafeWrap(request.buf());
+		try {
+			return TileCodecs.detect(bytes).requestedPixels(bytes);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param request request frame in any codec the workers understand
+	 * @return job the request belongs to, 0 if it has none or can not be read
+	 */
+	private static long requestedJobId(Msg request) {
+		final ByteString bytes = UnsafeByteOperations.unsafeWrap(request.buf());
+		try {
+			return TileCodecs.detect(bytes).requestedJobId(bytes);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Reads the priority of a request that is about to wait, only waiting requests need it.
+	 * @param request
+	 * @return the request, in the lane it asked for; unknown or unreadable priorities wait in the lowest lane
+	 */
+	private static InFlightRequest withPriority(InFlightRequest request) {
+		final ByteString bytes = UnsafeByteOperations.unsafeWrap(request.getRequest().buf());
+		try {
+			request.setPriority(TilePriority.laneOf(TileCodecs.detect(bytes).requestedPriority(bytes)));
+		} catch (IOException e) {
+			request.setPriority(TilePriority.BACKGROUND);
+		}
+		return request;
+	}
+
+	/**
+	 * Looks a tile up in the cache, then in the tile store. Tiles found on
+	 * disk are put into the cache, so the next request does not read the disk.
+	 * @param key
+	 * @return the reply frame, or null if neither has the tile
+	 */
+	private byte[] lookupTile(TileKey key) {
+		byte[] reply = cache != null ? cache.get(key) : null;
+		if (reply == null && store != null) {
+			reply = store.get(key);
+			if (reply != null && cache != null) {
+				cache.put(key, ByteBuffer.wrap(reply));
+			}
+		}
+		return reply;
+	}
+
+	/**
+	 * Puts a reply into the cache and the tile store.
+	 * @param key
+	 * @param reply reply frame, the position is not changed
+	 */
+	private void storeTile(TileKey key, ByteBuffer reply) {
+		if (cache != null) {
+			cache.put(key, reply);
+		}
+		if (store != null) {
+			try {
+				store.put(key, reply);
+			} catch (IOException e) {
+				System.out.println("Broker could not store tile " + key + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return the journal in the configured directory, null if it can not be opened
+	 */
+	private RequestJournal openJournal() {
+		try {
+			return new RequestJournal(Paths.get(journalDirectory));
+		} catch (IOException e) {
+			System.out.println("Broker runs without journal, " + journalDirectory + " can not be opened: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the tile store in the configured directory, null if it can not be opened
+	 */
+	private DiskTileStore openStore() {
+		try {
+			final DiskTileStore opened = new DiskTileStore(Paths.get(tileStoreDirectory), tileStoreBytes);
+			System.out.println("Broker opened tile store " + tileStoreDirectory + " with " + opened.size()
+					+ " tiles");
+			return opened;
+		} catch (IOException e) {
+			System.out.println("Broker runs without tile store, " + tileStoreDirectory + " can not be opened: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param request request frame in any codec the workers understand
+	 * @return key of the requested tile, null if the request can not be read
+	 */
+	private static TileKey tileKey(Msg request) {
+		final ByteString bytes = UnsafeByteOperations.unsafeWrap(request.buf());
+		try {
+			final TileCodec codec = TileCodecs.detect(bytes);
+			return TileKey.of(codec, codec.decodeRequest(bytes));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void printStats() {
+		final StringBuilder stats = new StringBuilder("Broker stats: ").
+				append(workers.size()).append(" workers, ").
+				append(idleWorkers.size()).append(" idle, ").
+				append(inFlight.size()).append(" requests in flight, ").
+				append(schedulingPolicy.name()).append(" scheduling").
+				append(String.format("%n  queue: %d/%d waiting, max %d, %d queued, %d rejected,"
+						+ " wait avg %.1f ms max %.1f ms", queue.size(), queue.getCapacity(), queue.getMaxDepth(),
+						queue.getQueued(), queue.getRejected(), queue.getAverageWaitMillis(),
+						queue.getMaxWaitMillis()));
+		stats.append(String.format("%n  lanes (%s):", queue.getLanePolicy().name().toLowerCase()));
+		for (TilePriority priority : TilePriority.values()) {
+			stats.append(String.format(" %s %d waiting, %d queued, wait avg %.1f ms max %.1f ms;",
+					priority.name().toLowerCase(), queue.laneSize(priority), queue.getLaneQueued(priority),
+					queue.getLaneAverageWaitMillis(priority), queue.getLaneMaxWaitMillis(priority)));
+		}
+		if (fairQuantumPixels > 0) {
+			stats.append(String.format("%n  fair queuing: %d clients waiting, %d px per turn", queue.clientCount(),
+					fairQuantumPixels));
+		}
+		if (clientLatencies != null) {
+			clientLatencies.appendTo(stats);
+		}
+		if (cache != null) {
+			stats.append(String.format("%n  cache: %d tiles, %d of %d KiB used (%d KiB in pages),"
+					+ " hit rate %.1f%% (%d hits, %d misses), %d evicted", cache.size(), cache.getUsedBytes() / 1024,
+					cache.getBudgetBytes() / 1024, cache.getReservedBytes() / 1024, cache.getHitRate() * 100,
+					cache.getHits(), cache.getMisses(), cache.getEvictions()));
+		}
+		if (store != null) {
+			stats.append(String.format("%n  store: %d tiles, %d of %d MiB on disk (%d MiB live) in %d segments,"
+					+ " %d hits, %d misses, %d compactions, %d segments dropped", store.size(),
+					store.getDiskBytes() >> 20, store.getMaxBytes() >> 20, store.getLiveBytes() >> 20,
+					store.getSegmentCount(), store.getHits(), store.getMisses(), store.getCompactions(),
+					store.getDroppedSegments()));
+		}
+		if (frontendStage != null) {
+			stats.append(String.format("%n  stages: frontend %d in, %d out, %d/%d waiting;"
+					+ " backend %d in, %d out, %d/%d waiting", frontendStage.getReceived(), frontendStage.getSent(),
+					frontendStage.getReceivedWaiting(), frontendStage.getSendWaiting(), backendStage.getReceived(),
+					backendStage.getSent(), backendStage.getReceivedWaiting(), backendStage.getSendWaiting()));
+		}
+		if (splitMinPixels > 0) {
+			stats.append(String.format("%n  splits: %d on arrival, %d stolen, %d answered from their parts"
+					+ " (%d stolen ones before their worker)", splitsOnArrival, steals, splitsAnswered, stealsWon));
+		}
+		if (hedgeBudget > 0) {
+			final long decided = hedgesWon + hedgesLost;
+			stats.append(String.format("%n  hedges: %d sent, %d answered first by the duplicate, %d by the original,"
+					+ " win rate %.1f%%", hedgesSent, hedgesWon, hedgesLost,
+					decided > 0 ? 100.0 * hedgesWon / decided : 0));
+		}
+		if (leaders != null) {
+			stats.append(String.format("%n  single-flight: %d tiles in flight, %d requests waited for one,"
+					+ " %d answered with its reply", leaders.size(), singleFlightJoined, singleFlightAnswered));
+		}
+		if (affinity != null) {
+			stats.append(String.format("%n  affinity: %d workers on the ring, %d requests to their preferred worker,"
+					+ " %d passed on, %d left to the policy", affinity.size(), affinity.getPreferred(),
+					affinity.getPassedOn(), affinity.getUnplaced()));
+		}
+		if (journal != null) {
+			final long records = Math.max(1, journal.getRecords());
+			stats.append(String.format("%n  journal: %d requests open in %d segments, %d records of %.0f bytes,"
+					+ " append avg %.0f ns, %d fsyncs of %.1f records avg %.2f ms", journal.size(),
+					journal.getSegmentCount(), journal.getRecords(), (double) journal.getBytes() / records,
+					(double) journal.getAppendNanos() / records, journal.getSyncs(),
+					(double) journal.getRecords() / Math.max(1, journal.getSyncs()),
+					journal.getSyncNanos() / 1e6 / Math.max(1, journal.getSyncs())));
+		}
+		if (jobsCancelled > 0) {
+			stats.append(String.format("%n  cancels: %d jobs, %d waiting and %d dispatched requests dropped",
+					jobsCancelled, cancelledWaiting, cancelledDispatched));
+		}
+		if (costModel != null) {
+			stats.append(String.format("%n  cost model: %d tiles known, estimates %d exact, %d from the grid,"
+					+ " %d probed", costModel.size(), costModel.getExactEstimates(), costModel.getGridEstimates(),
+					costModel.getProbes()));
+		}
+		for (int slot = 0; slot < workers.size(); slot++) {
+			stats.append(String.format("%n  %-12s %12.0f px/s %8d replies %3d outstanding%s",
+					workerName(slot), scores.pixelsPerSecond(slot), scores.samples(slot),
+					credits.outstanding(slot),
+					!liveness.isAlive(slot) ? " dead" : idleWorkers.contains(slot) ? " idle" : ""));
+		}
+		System.out.println(stats);
+	}
+
+	public long getStatsIntervalMillis() {
+		return statsIntervalMillis;
+	}
+
+	/**
+	 * @param statsIntervalMillis print worker scores this often, 0 to never print them
+	 */
+	public void setStatsIntervalMillis(long statsIntervalMillis) {
+		this.statsIntervalMillis = statsIntervalMillis;
+	}
+
+	public long getHeartbeatIntervalMillis() {
+		return heartbeatIntervalMillis;
+	}
+
+	/**
+	 * @param heartbeatIntervalMillis how often heartbeats are sent, workers should use the same interval
+	 */
+	public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+	}
+
+	public int getHeartbeatLiveness() {
+		return heartbeatLiveness;
+	}
+
+	/**
+	 * @param heartbeatLiveness heartbeat intervals without a message after which a worker is dead
+	 */
+	public void setHeartbeatLiveness(int heartbeatLiveness) {
+		this.heartbeatLiveness = heartbeatLiveness;
+	}
+
+	public long getRequestTimeoutMillis() {
+		return requestTimeoutMillis;
+	}
+
+	/**
+	 * @param requestTimeoutMillis time a worker has to answer before its request is sent to another one
+	 */
+	public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity number of requests that may wait for a worker, 0 to never queue them
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public RequestQueue.FullPolicy getQueueFullPolicy() {
+		return queueFullPolicy;
+	}
+
+	/**
+	 * @param queueFullPolicy what to do with new requests while the queue is full
+	 */
+	public void setQueueFullPolicy(RequestQueue.FullPolicy queueFullPolicy) {
+		this.queueFullPolicy = queueFullPolicy;
+	}
+
+	public RequestQueue.Order getQueueOrder() {
+		return queueOrder;
+	}
+
+	/**
+	 * @param queueOrder order queued requests are dispatched in; LONGEST_FIRST estimates
+	 *        the cost of every tile and is best combined with the "cost" scheduling policy
+	 */
+	public void setQueueOrder(RequestQueue.Order queueOrder) {
+		this.queueOrder = queueOrder;
+	}
+
+	public RequestQueue.LanePolicy getLanePolicy() {
+		return lanePolicy;
+	}
+
+	/**
+	 * @param lanePolicy how the priority lanes of the queue share the workers
+	 */
+	public void setLanePolicy(RequestQueue.LanePolicy lanePolicy) {
+		this.lanePolicy = lanePolicy;
+	}
+
+	public int[] getLaneWeights() {
+		return laneWeights.clone();
+	}
+
+	/**
+	 * @param laneWeights weight of every TilePriority, by id, used by weighted lanes
+	 */
+	public void setLaneWeights(int[] laneWeights) {
+		this.laneWeights = laneWeights.clone();
+	}
+
+	public String getJournalDirectory() {
+		return journalDirectory;
+	}
+
+	/**
+	 * @param journalDirectory directory of the journal of accepted requests, the requests
+	 *        a previous broker left unanswered are computed again on start; null to not journal
+	 */
+	public void setJournalDirectory(String journalDirectory) {
+		this.journalDirectory = journalDirectory;
+	}
+
+	public long getJournalSyncMillis() {
+		return journalSyncMillis;
+	}
+
+	/**
+	 * @param journalSyncMillis longest time journal records wait for the fsync they share,
+	 *        0 to sync after every routing round
+	 */
+	public void setJournalSyncMillis(long journalSyncMillis) {
+		this.journalSyncMillis = journalSyncMillis;
+	}
+
+	public boolean isSingleFlight() {
+		return singleFlight;
+	}
+
+	/**
+	 * @param singleFlight true to answer requests for a tile that is in flight already with
+	 *        its reply, instead of computing the tile once per request
+	 */
+	public void setSingleFlight(boolean singleFlight) {
+		this.singleFlight = singleFlight;
+	}
+
+	public double getAffinityLoadFactor() {
+		return affinityLoadFactor;
+	}
+
+	/**
+	 * @param affinityLoadFactor how many times the average outstanding requests a worker may have and still get the
+	 *        regions that hash to it (at least 1), 0 to leave every request to the scheduling policy
+	 */
+	public void setAffinityLoadFactor(double affinityLoadFactor) {
+		this.affinityLoadFactor = affinityLoadFactor;
+	}
+
+	public long getFairQuantumPixels() {
+		return fairQuantumPixels;
+	}
+
+	/**
+	 * @param fairQuantumPixels pixels a client (the job id of its requests) gets per turn when the
+	 *        clients of a lane take turns, about the size of a tile; 0 to serve a lane in order alone
+	 */
+	public void setFairQuantumPixels(long fairQuantumPixels) {
+		this.fairQuantumPixels = fairQuantumPixels;
+	}
+
+	public int getClientQueueCapacity() {
+		return clientQueueCapacity;
+	}
+
+	/**
+	 * @param clientQueueCapacity requests a client may have waiting in a lane with fair queuing,
+	 *        the next ones are rejected; 0 for no limit but the queue capacity
+	 */
+	public void setClientQueueCapacity(int clientQueueCapacity) {
+		this.clientQueueCapacity = clientQueueCapacity;
+	}
+
+	public long getTileCacheBytes() {
+		return tileCacheBytes;
+	}
+
+	/**
+	 * @param tileCacheBytes off-heap bytes for cached replies (below 2 GiB), 0 to not cache them
+	 */
+	public void setTileCacheBytes(long tileCacheBytes) {
+		this.tileCacheBytes = tileCacheBytes;
+	}
+
+	public String getTileStoreDirectory() {
+		return tileStoreDirectory;
+	}
+
+	/**
+	 * @param tileStoreDirectory directory of the tile store on disk, null to not store tiles on disk
+	 */
+	public void setTileStoreDirectory(String tileStoreDirectory) {
+		this.tileStoreDirectory = tileStoreDirectory;
+	}
+
+	public SchedulingPolicy getSchedulingPolicy() {
+		return schedulingPolicy;
+	}
+
+	/**
+	 * @param schedulingPolicy decides which idle worker gets a request, see SchedulingPolicies
+	 */
+	public void setSchedulingPolicy(SchedulingPolicy schedulingPolicy) {
+		this.schedulingPolicy = schedulingPolicy;
+	}
+
+	public long getSplitMinPixels() {
+		return splitMinPixels;
+	}
+
+	/**
+	 * @param splitMinPixels tiles of at least this many pixels are split among workers
+	 *        with nothing to do, 0 to never split tiles; only RGB tiles are split
+	 */
+	public void setSplitMinPixels(long splitMinPixels) {
+		this.splitMinPixels = splitMinPixels;
+	}
+
+	public int getMaxSplitParts() {
+		return maxSplitParts;
+	}
+
+	/**
+	 * @param maxSplitParts most parts a tile is split into, at least 2
+	 */
+	public void setMaxSplitParts(int maxSplitParts) {
+		if (maxSplitParts < 2) {
+			throw new IllegalArgumentException("A tile is split into at least 2 parts, got " + maxSplitParts);
+		}
+		this.maxSplitParts = maxSplitParts;
+	}
+
+	public boolean isStaged() {
+		return staged;
+	}
+
+	/**
+	 * @param staged true to receive and send on threads of their own, the calling thread of start() only schedules
+	 */
+	public void setStaged(boolean staged) {
+		this.staged = staged;
+	}
+
+	public double getHedgeBudget() {
+		return hedgeBudget;
+	}
+
+	/**
+	 * @param hedgeBudget share of requests that may be sent to a second worker
+	 *        when they are late, e.g. 0.05; 0 to never hedge
+	 */
+	public void setHedgeBudget(double hedgeBudget) {
+		this.hedgeBudget = hedgeBudget;
+	}
+
+	public double getHedgeLatencyFactor() {
+		return hedgeLatencyFactor;
+	}
+
+	/**
+	 * @param hedgeLatencyFactor a request is hedged when it takes this many times
+	 *        the latency expected of its worker
+	 */
+	public void setHedgeLatencyFactor(double hedgeLatencyFactor) {
+		this.hedgeLatencyFactor = hedgeLatencyFactor;
+	}
+
+	public long getTileStoreBytes() {
+		return tileStoreBytes;
+	}
+
+	/**
+	 * @param tileStoreBytes size cap of the tile store's segment files
+	 */
+	public void setTileStoreBytes(long tileStoreBytes) {
+		this.tileStoreBytes = tileStoreBytes;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param maxAttempts dispatches of one request before the broker gives up on it
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
 	}
 }
@@ -0,0 +1,369 @@
+package loadbalancingbroker.broker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the requests the broker accepted and has not
+ * answered yet, so a restarted broker can compute them again.
+ *
+ * Every accepted request is appended with its client id and request frame,
+ * every answered (or dropped) one with a done record. Records go into
+ * memory-mapped segment files and reach the disk on sync(), which the broker
+ * calls at most once per sync interval: the requests of that interval share
+ * one fsync (group commit). A request accepted after the last sync may be
+ * lost with the broker, its client sends it again anyway.
+ *
+ * <pre>
+ * record: magic:4 type:1 requestId:8 clientIdLength:4 requestLength:4 clientId request crc32:4
+ * </pre>
+ * Numbers are big-endian, a zero magic marks the end of a segment's records.
+ * The oldest segments are deleted once every request accepted in them is done.
+ * Not thread-safe, used by the broker thread only.
+ */
+public class RequestJournal implements Closeable {
+	/** size of a segment file */
+	public static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private static final int MAGIC = 0x4A524E4C; // "JRNL"
+	private static final byte ACCEPTED = 1;
+	private static final byte DONE = 2;
+	private static final int RECORD_HEADER = 21;
+	private static final int RECORD_TRAILER = 4;
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final byte[] NONE = new byte[0];
+
+	/** a request accepted before the restart and not done */
+	public static class Entry {
+		private final byte[] clientId;
+		private final byte[] request;
+
+		private Entry(byte[] clientId, byte[] request) {
+			this.clientId = clientId;
+			this.request = request;
+		}
+
+		public byte[] getClientId() {
+			return clientId;
+		}
+
+		public byte[] getRequest() {
+			return request;
+		}
+	}
+
+	/** one mapped segment file and the number of its requests that are not done */
+	private static class Segment {
+		private final int number;
+		private final Path path;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private int end = 0;
+		private int live = 0;
+
+		private Segment(int number, Path path, int size) throws IOException {
+			this.number = number;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private final Path directory;
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	// segment of the accepted record of every request that is not done
+	private final Map<Long, Segment> open = new HashMap<>();
+	private final List<Entry> recovered = new ArrayList<>();
+	// segments of the previous broker, kept until its requests are journaled again
+	private final List<Path> previousFiles = new ArrayList<>();
+	private final CRC32 crc = new CRC32();
+	private Segment active;
+	// true while records were appended since the last sync
+	private boolean dirty = false;
+	private long records = 0;
+	private long bytes = 0;
+	private long appendNanos = 0;
+	private long syncs = 0;
+	private long syncNanos = 0;
+
+	/**
+	 * Opens the journal in the given directory, creating it if needed. The
+	 * requests a previous broker left unfinished are kept for getRecovered(),
+	 * the broker journals them again when it accepts them anew and then drops
+	 * the old segments with releaseRecovered().
+	 * @param directory
+	 * @throws IOException
+	 */
+	public RequestJournal(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		final TreeMap<Integer, Path> previous = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				final int number = segmentNumber(file);
+				if (number >= 0) {
+					previous.put(number, file);
+				}
+			}
+		}
+		final Map<Long, Entry> unfinished = new LinkedHashMap<>();
+		for (Path file : previous.values()) {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), unfinished);
+			}
+		}
+		recovered.addAll(unfinished.values());
+		previousFiles.addAll(previous.values());
+		active = newSegment(previous.isEmpty() ? 1 : previous.lastKey() + 1);
+	}
+
+	/**
+	 * @return requests accepted before the restart and not done, in the order they were accepted
+	 */
+	public List<Entry> getRecovered() {
+		return recovered;
+	}
+
+	/**
+	 * Syncs the journal and deletes the segments of the previous broker, its
+	 * unfinished requests must be journaled again before.
+	 * @throws IOException
+	 */
+	public void releaseRecovered() throws IOException {
+		dirty = true;
+		sync();
+		for (Path file : previousFiles) {
+			Files.deleteIfExists(file);
+		}
+		previousFiles.clear();
+		recovered.clear();
+	}
+
+	/**
+	 * Appends an accepted request.
+	 * @param requestId id the broker gave the request
+	 * @param clientId client id frame from position to limit
+	 * @param request request frame from position to limit
+	 * @throws IOException if a new segment can not be created
+	 */
+	public void accepted(long requestId, ByteBuffer clientId, ByteBuffer request) throws IOException {
+		final long start = System.nanoTime();
+		final Segment segment = append(ACCEPTED, requestId, clientId, request);
+		if (segment != null) {
+			segment.live++;
+			open.put(requestId, segment);
+		}
+		appendNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Appends that a request was answered or dropped, unless it was not journaled.
+	 * @param requestId
+	 * @throws IOException if a new segment can not be created
+	 */
+	public void done(long requestId) throws IOException {
+		final Segment accepted = open.remove(requestId);
+		if (accepted == null) {
+			return;
+		}
+		final long start = System.nanoTime();
+		append(DONE, requestId, ByteBuffer.wrap(NONE), ByteBuffer.wrap(NONE));
+		accepted.live--;
+		// a done record refers to an accepted one in its own or an older segment,
+		// so segments are deleted oldest first
+		while (segments.size() > 1 && segments.firstEntry().getValue().live == 0) {
+			delete(segments.firstEntry().getValue());
+		}
+		appendNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Writes the records appended since the last sync to disk, one fsync for all of them.
+	 */
+	public void sync() {
+		if (!dirty) {
+			return;
+		}
+		final long start = System.nanoTime();
+		active.buffer.force();
+		dirty = false;
+		syncs++;
+		syncNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * @return true if records were appended since the last sync
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	@Override
+	public void close() throws IOException {
+		sync();
+		for (Segment segment : segments.values()) {
+			segment.channel.close();
+		}
+		segments.clear();
+		open.clear();
+	}
+
+	/**
+	 * @return journaled requests that are not done
+	 */
+	public int size() {
+		return open.size();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return records appended since the journal was opened
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return bytes appended since the journal was opened
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return time spent appending records, in nanoseconds
+	 */
+	public long getAppendNanos() {
+		return appendNanos;
+	}
+
+	public long getSyncs() {
+		return syncs;
+	}
+
+	/**
+	 * @return time spent in fsync, in nanoseconds
+	 */
+	public long getSyncNanos() {
+		return syncNanos;
+	}
+
+	/**
+	 * @return segment the record went into, null if it does not fit into one
+	 */
+	private Segment append(byte type, long requestId, ByteBuffer clientId, ByteBuffer request) throws IOException {
+		final int recordLength = RECORD_HEADER + clientId.remaining() + request.remaining() + RECORD_TRAILER;
+		// a zero magic after the last record must still fit
+		if (recordLength + 4 > SEGMENT_SIZE) {
+			return null;
+		}
+		if (active.end + recordLength + 4 > active.buffer.capacity()) {
+			// the sealed segment goes to disk with the next sync of its own
+			active.buffer.force();
+			active = newSegment(active.number + 1);
+		}
+		final int offset = active.end;
+		final ByteBuffer out = active.buffer.duplicate();
+		out.position(offset + 4);
+		out.put(type);
+		out.putLong(requestId);
+		out.putInt(clientId.remaining());
+		out.putInt(request.remaining());
+		out.put(clientId.duplicate());
+		out.put(request.duplicate());
+		final ByteBuffer checked = active.buffer.duplicate();
+		checked.position(offset + 4);
+		checked.limit(out.position());
+		crc.reset();
+		crc.update(checked);
+		out.putInt((int) crc.getValue());
+		// the magic is written last, so a torn record ends the scan
+		active.buffer.putInt(offset, MAGIC);
+		active.end = out.position();
+		dirty = true;
+		records++;
+		bytes += recordLength;
+		return active;
+	}
+
+	/**
+	 * Replays the records of a previous segment, stopping at the first missing or broken one.
+	 */
+	private void scan(ByteBuffer in, Map<Long, Entry> unfinished) {
+		int offset = 0;
+		while (offset + RECORD_HEADER <= in.capacity() && in.getInt(offset) == MAGIC) {
+			final byte type = in.get(offset + 4);
+			final long requestId = in.getLong(offset + 5);
+			final int clientIdLength = in.getInt(offset + 13);
+			final int requestLength = in.getInt(offset + 17);
+			final long recordLength = (long) RECORD_HEADER + clientIdLength + requestLength + RECORD_TRAILER;
+			if (clientIdLength < 0 || requestLength < 0 || offset + recordLength > in.capacity()) {
+				break;
+			}
+			final int dataEnd = offset + RECORD_HEADER + clientIdLength + requestLength;
+			final ByteBuffer checked = in.duplicate();
+			checked.position(offset + 4);
+			checked.limit(dataEnd);
+			crc.reset();
+			crc.update(checked);
+			if (in.getInt(dataEnd) != (int) crc.getValue()) {
+				break;
+			}
+			if (type == ACCEPTED) {
+				final byte[] clientId = new byte[clientIdLength];
+				final byte[] request = new byte[requestLength];
+				final ByteBuffer data = in.duplicate();
+				data.position(offset + RECORD_HEADER);
+				data.get(clientId);
+				data.get(request);
+				unfinished.put(requestId, new Entry(clientId, request));
+			} else if (type == DONE) {
+				unfinished.remove(requestId);
+			}
+			offset += recordLength;
+		}
+	}
+
+	private Segment newSegment(int number) throws IOException {
+		final Path path = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+		final Segment segment = new Segment(number, path, SEGMENT_SIZE);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	private void delete(Segment segment) throws IOException {
+		segments.remove(segment.number);
+		segment.channel.close();
+		// the mapping stays valid until it is collected, the file can go now
+		Files.deleteIfExists(segment.path);
+	}
+
+	private static int segmentNumber(Path file) {
+		final String name = file.getFileName().toString();
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
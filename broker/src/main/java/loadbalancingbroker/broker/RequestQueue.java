@@ -0,0 +1,371 @@
+package loadbalancingbroker.broker;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import loadbalancingbroker.domain.TilePriority;
+
+/**
+ * Requests the broker accepted and could not dispatch yet because no worker
+ * was idle. New requests are bounded by the capacity and served in arrival
+ * order; requests taken back from lost or late workers were accepted before,
+ * so they do not count against the capacity and are served first.
+ * New requests are served in arrival order, or most expensive first.
+ *
+ * Every priority has a lane of its own. Interactive requests go ahead of
+ * background ones, strictly or in proportion to the lane weights. With fair
+ * queuing the clients of a lane take turns, see FairQueue.
+ *
+ * Keeps the depth and wait time figures printed in the broker stats, also per lane.
+ */
+public class RequestQueue {
+	/** What the broker does with client requests while the queue is full */
+	public enum FullPolicy {
+		/** answer at once with an empty reply, the client may try again later */
+		REJECT,
+		/** stop reading the frontend, requests wait in the ZeroMQ buffers */
+		BACKPRESSURE
+	}
+
+	/** Order new requests are served in */
+	public enum Order {
+		/** arrival order */
+		FIFO,
+		/**
+		 * highest estimated cost first (longest processing time first) among the requests
+		 * that arrived in the same window of {@value RequestQueue#LONGEST_FIRST_WINDOW_MILLIS} ms,
+		 * windows in arrival order; the expensive tiles of a frame start early, on the fastest
+		 * workers, without holding back the cheap tiles of earlier frames
+		 */
+		LONGEST_FIRST
+	}
+
+	/** How the lanes share the workers */
+	public enum LanePolicy {
+		/** a lane is served only while all lanes of higher priority are empty */
+		STRICT,
+		/**
+		 * lanes with requests waiting are served in proportion to their weights,
+		 * background work keeps moving while users are busy
+		 */
+		WEIGHTED
+	}
+
+	/** weights of the interactive and the background lane */
+	public static final int[] DEFAULT_LANE_WEIGHTS = { 4, 1 };
+
+	/** requests arriving this close together are ordered by cost, e.g. the tiles of one frame */
+	public static final long LONGEST_FIRST_WINDOW_MILLIS = 50;
+	private static final long LONGEST_FIRST_WINDOW_NANOS = LONGEST_FIRST_WINDOW_MILLIS * 1_000_000;
+
+	// earlier window first, most expensive first within a window, then the older request
+	private static final Comparator<InFlightRequest> LONGEST_FIRST = Comparator
+			.comparingLong((InFlightRequest request) -> Math.floorDiv(request.getQueuedAt(),
+					LONGEST_FIRST_WINDOW_NANOS))
+			.thenComparing(Comparator.comparingLong(InFlightRequest::getCost).reversed())
+			.thenComparingLong(InFlightRequest::getRequestId);
+
+	private final int capacity;
+	private final Order order;
+	private final LanePolicy lanePolicy;
+	private final int[] laneWeights;
+	private final ArrayDeque<InFlightRequest> retries = new ArrayDeque<>();
+	// new requests by lane, and how many of them there are
+	private final Queue<InFlightRequest>[] lanes;
+	private int freshSize = 0;
+	// weighted lanes: virtual time a lane is served next at, advanced by 1/weight
+	// per request, and the virtual time of the last request served
+	private final double[] lanePass;
+	private double virtualTime = 0;
+	// metrics since the broker started
+	private int maxDepth = 0;
+	private long queued = 0;
+	private long rejected = 0;
+	private long waitedNanos = 0;
+	private long maxWaitNanos = 0;
+	private final long[] laneQueued;
+	private final long[] laneServed;
+	private final long[] laneWaitedNanos;
+	private final long[] laneMaxWaitNanos;
+
+	/**
+	 * @param capacity number of new requests that may wait, 0 to never queue them
+	 */
+	public RequestQueue(int capacity) {
+		this(capacity, Order.FIFO);
+	}
+
+	/**
+	 * @param capacity number of new requests that may wait, 0 to never queue them
+	 * @param order order new requests are served in
+	 */
+	public RequestQueue(int capacity, Order order) {
+		this(capacity, order, LanePolicy.STRICT, DEFAULT_LANE_WEIGHTS);
+	}
+
+	/**
+	 * @param capacity number of new requests that may wait in all lanes, 0 to never queue them
+	 * @param order order new requests are served in within their lane
+	 * @param lanePolicy how the lanes share the workers
+	 * @param laneWeights positive weight of every TilePriority, by id, for weighted lanes
+	 */
+	public RequestQueue(int capacity, Order order, LanePolicy lanePolicy, int[] laneWeights) {
+		this(capacity, order, lanePolicy, laneWeights, 0, 0);
+	}
+
+	/**
+	 * @param capacity number of new requests that may wait in all lanes, 0 to never queue them
+	 * @param order order new requests are served in within a client's requests
+	 * @param lanePolicy how the lanes share the workers
+	 * @param laneWeights positive weight of every TilePriority, by id, for weighted lanes
+	 * @param fairQuantumPixels pixels a client gets per turn in its lane, 0 to serve the lane in order alone
+	 * @param clientCapacity new requests a client may have waiting in a lane with fair queuing, 0 for no limit
+	 */
+	@SuppressWarnings("unchecked")
+	public RequestQueue(int capacity, Order order, LanePolicy lanePolicy, int[] laneWeights,
+			long fairQuantumPixels, int clientCapacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative queue capacity " + capacity);
+		}
+		final int laneCount = TilePriority.values().length;
+		if (laneWeights.length != laneCount) {
+			throw new IllegalArgumentException("Expected " + laneCount + " lane weights, got " + laneWeights.length);
+		}
+		for (int weight : laneWeights) {
+			if (weight <= 0) {
+				throw new IllegalArgumentException("Lane weights must be positive");
+			}
+		}
+		this.capacity = capacity;
+		this.order = order;
+		this.lanePolicy = lanePolicy;
+		this.laneWeights = laneWeights.clone();
+		this.lanes = new Queue[laneCount];
+		final Supplier<Queue<InFlightRequest>> ordered = () -> order == Order.LONGEST_FIRST
+				? new PriorityQueue<>(LONGEST_FIRST) : new ArrayDeque<>();
+		for (int lane = 0; lane < laneCount; lane++) {
+			lanes[lane] = fairQuantumPixels > 0 ? new FairQueue(fairQuantumPixels, clientCapacity, ordered)
+					: ordered.get();
+		}
+		this.lanePass = new double[laneCount];
+		this.laneQueued = new long[laneCount];
+		this.laneServed = new long[laneCount];
+		this.laneWaitedNanos = new long[laneCount];
+		this.laneMaxWaitNanos = new long[laneCount];
+	}
+
+	/**
+	 * Queues a new request if there is room.
+	 * @param request
+	 * @param nanoTime System.nanoTime() of arrival
+	 * @return false if the queue is full, or the client has as many requests waiting as it may
+	 */
+	public boolean offer(InFlightRequest request, long nanoTime) {
+		if (isFull()) {
+			return false;
+		}
+		request.queued(nanoTime);
+		final int lane = request.getPriority().getId();
+		final boolean wasEmpty = lanes[lane].isEmpty();
+		if (!lanes[lane].offer(request)) {
+			return false;
+		}
+		if (wasEmpty) {
+			// a lane that was empty does not get to catch up on the time it had nothing to do
+			lanePass[lane] = Math.max(lanePass[lane], virtualTime);
+		}
+		freshSize++;
+		added(lane);
+		return true;
+	}
+
+	/**
+	 * Queues a request taken back from a worker, ahead of new requests.
+	 * @param request
+	 * @param nanoTime System.nanoTime() it was taken back
+	 */
+	public void requeue(InFlightRequest request, long nanoTime) {
+		request.queued(nanoTime);
+		retries.add(request);
+		added(request.getPriority().getId());
+	}
+
+	/**
+	 * Takes the next request to dispatch and records how long it waited.
+	 * @param nanoTime System.nanoTime() of the dispatch
+	 * @return the request, or null if the queue is empty
+	 */
+	public InFlightRequest poll(long nanoTime) {
+		InFlightRequest request = retries.poll();
+		if (request == null) {
+			final int lane = nextLane();
+			if (lane < 0) {
+				return null;
+			}
+			request = lanes[lane].poll();
+			freshSize--;
+			if (lanePolicy == LanePolicy.WEIGHTED) {
+				virtualTime = lanePass[lane];
+				lanePass[lane] += 1.0 / laneWeights[lane];
+			}
+		}
+		final int lane = request.getPriority().getId();
+		final long waited = nanoTime - request.getQueuedAt();
+		waitedNanos += waited;
+		maxWaitNanos = Math.max(maxWaitNanos, waited);
+		laneServed[lane]++;
+		laneWaitedNanos[lane] += waited;
+		laneMaxWaitNanos[lane] = Math.max(laneMaxWaitNanos[lane], waited);
+		return request;
+	}
+
+	/**
+	 * @return lane to serve next, -1 if all are empty
+	 */
+	private int nextLane() {
+		int next = -1;
+		for (int lane = 0; lane < lanes.length; lane++) {
+			if (lanes[lane].isEmpty()) {
+				continue;
+			}
+			if (lanePolicy == LanePolicy.STRICT) {
+				return lane;
+			}
+			if (next < 0 || lanePass[lane] < lanePass[next]) {
+				next = lane;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Drops the waiting requests the filter matches, e.g. the requests of a cancelled job.
+	 * @param filter
+	 * @return number of requests dropped
+	 */
+	public int removeIf(Predicate<InFlightRequest> filter) {
+		final int retried = retries.size();
+		retries.removeIf(filter);
+		int removed = retried - retries.size();
+		for (Queue<InFlightRequest> lane : lanes) {
+			final int before = lane.size();
+			lane.removeIf(filter);
+			removed += before - lane.size();
+			freshSize -= before - lane.size();
+		}
+		return removed;
+	}
+
+	/**
+	 * @return clients with new requests waiting, 0 without fair queuing
+	 */
+	public int clientCount() {
+		int clients = 0;
+		for (Queue<InFlightRequest> lane : lanes) {
+			if (lane instanceof FairQueue) {
+				clients += ((FairQueue) lane).flowCount();
+			}
+		}
+		return clients;
+	}
+
+	/**
+	 * Counts a request that was turned away because the queue was full.
+	 */
+	public void rejected() {
+		rejected++;
+	}
+
+	public boolean isEmpty() {
+		return retries.isEmpty() && freshSize == 0;
+	}
+
+	/**
+	 * @return true if no new request fits in
+	 */
+	public boolean isFull() {
+		return freshSize >= capacity;
+	}
+
+	public int size() {
+		return retries.size() + freshSize;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Order getOrder() {
+		return order;
+	}
+
+	public LanePolicy getLanePolicy() {
+		return lanePolicy;
+	}
+
+	/**
+	 * @param priority
+	 * @return new requests waiting in the lane of the priority
+	 */
+	public int laneSize(TilePriority priority) {
+		return lanes[priority.getId()].size();
+	}
+
+	/**
+	 * @param priority
+	 * @return requests of the priority that had to wait in the queue
+	 */
+	public long getLaneQueued(TilePriority priority) {
+		return laneQueued[priority.getId()];
+	}
+
+	/**
+	 * @param priority
+	 * @return average time a queued request of the priority waited for a worker, in milliseconds
+	 */
+	public double getLaneAverageWaitMillis(TilePriority priority) {
+		final long served = laneServed[priority.getId()];
+		return served > 0 ? laneWaitedNanos[priority.getId()] / 1e6 / served : 0;
+	}
+
+	public double getLaneMaxWaitMillis(TilePriority priority) {
+		return laneMaxWaitNanos[priority.getId()] / 1e6;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return number of requests that had to wait in the queue
+	 */
+	public long getQueued() {
+		return queued;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return average time a queued request waited for a worker, in milliseconds
+	 */
+	public double getAverageWaitMillis() {
+		final long dispatched = queued - size();
+		return dispatched > 0 ? waitedNanos / 1e6 / dispatched : 0;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos / 1e6;
+	}
+
+	private void added(int lane) {
+		queued++;
+		laneQueued[lane]++;
+		maxDepth = Math.max(maxDepth, size());
+	}
+}
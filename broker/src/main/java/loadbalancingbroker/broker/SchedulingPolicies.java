@@ -0,0 +1,161 @@
+package loadbalancingbroker.broker;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The built-in scheduling policies of the broker.
+ */
+public class SchedulingPolicies {
+	/** the idle worker with the most measured pixels per second, new workers first */
+	public static final SchedulingPolicy FASTEST_IDLE = new FastestIdle();
+	/** the worker idle the longest, like the zguide load balancing broker */
+	public static final SchedulingPolicy LRU = new LeastRecentlyUsed();
+	/** the idle worker with the fewest outstanding requests */
+	public static final SchedulingPolicy LEAST_LOADED = new LeastLoaded();
+	/** the less loaded of two idle workers picked at random */
+	public static final SchedulingPolicy POWER_OF_TWO = new PowerOfTwoChoices();
+	/** the idle worker expected to finish the request first */
+	public static final SchedulingPolicy COST_AWARE = new CostAware();
+
+	private static final SchedulingPolicy[] ALL = { FASTEST_IDLE, LRU, LEAST_LOADED, POWER_OF_TWO, COST_AWARE };
+
+	private SchedulingPolicies() {
+	}
+
+	/**
+	 * @param name "fastest", "lru", "least-loaded", "p2c" or "cost"
+	 * @return policy with the given name
+	 */
+	public static SchedulingPolicy forName(String name) {
+		for (SchedulingPolicy policy : ALL) {
+			if (policy.name().equals(name)) {
+				return policy;
+			}
+		}
+		throw new IllegalArgumentException("Unknown scheduling policy " + name);
+	}
+
+	/**
+	 * @return all built-in policies
+	 */
+	public static SchedulingPolicy[] all() {
+		return ALL.clone();
+	}
+
+	private static class FastestIdle implements SchedulingPolicy {
+		@Override
+		public String name() {
+			return "fastest";
+		}
+
+		@Override
+		public int score(int slot, WorkerScores scores, WorkerCredits credits) {
+			return scores.score(slot);
+		}
+	}
+
+	private static class LeastRecentlyUsed implements SchedulingPolicy {
+		@Override
+		public String name() {
+			return "lru";
+		}
+
+		@Override
+		public int score(int slot, WorkerScores scores, WorkerCredits credits) {
+			// all equal, the index hands them out in the order they became idle
+			return 0;
+		}
+	}
+
+	private static class LeastLoaded implements SchedulingPolicy {
+		@Override
+		public String name() {
+			return "least-loaded";
+		}
+
+		@Override
+		public int score(int slot, WorkerScores scores, WorkerCredits credits) {
+			return -credits.outstanding(slot);
+		}
+	}
+
+	private static class PowerOfTwoChoices implements SchedulingPolicy {
+		@Override
+		public String name() {
+			return "p2c";
+		}
+
+		@Override
+		public int score(int slot, WorkerScores scores, WorkerCredits credits) {
+			return scores.score(slot);
+		}
+
+		@Override
+		public int select(InFlightRequest request, IdleWorkerIndex idle, WorkerScores scores,
+				WorkerCredits credits) {
+			final int size = idle.size();
+			if (size == 1) {
+				return idle.peek();
+			}
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			final int first = random.nextInt(size);
+			final int second = (first + 1 + random.nextInt(size - 1)) % size;
+			final int a = idle.slotAt(first);
+			final int b = idle.slotAt(second);
+			final int loadA = credits.outstanding(a);
+			final int loadB = credits.outstanding(b);
+			if (loadA != loadB) {
+				return loadA < loadB ? a : b;
+			}
+			return idle.scoreOf(a) >= idle.scoreOf(b) ? a : b;
+		}
+	}
+
+	private static class CostAware implements SchedulingPolicy {
+		@Override
+		public String name() {
+			return "cost";
+		}
+
+		@Override
+		public int score(int slot, WorkerScores scores, WorkerCredits credits) {
+			return scores.score(slot);
+		}
+
+		@Override
+		public boolean usesCost() {
+			return true;
+		}
+
+		/**
+		 * Estimates for every idle worker when it would be done with the request:
+		 * the requests it holds plus this one, at its measured speed. The estimated
+		 * kernel iterations of the request are used with the worker's iterations per
+		 * second, its pixels with the pixels per second otherwise. Workers without a
+		 * measurement are tried first.
+		 */
+		@Override
+		public int select(InFlightRequest request, IdleWorkerIndex idle, WorkerScores scores,
+				WorkerCredits credits) {
+			int best = idle.peek();
+			double bestSeconds = Double.MAX_VALUE;
+			final long pixels = Math.max(1, request.getPixels());
+			for (int i = 0; i < idle.size(); i++) {
+				final int slot = idle.slotAt(i);
+				final double pixelsPerSecond = scores.pixelsPerSecond(slot);
+				if (scores.samples(slot) == 0 || pixelsPerSecond <= 0) {
+					return slot;
+				}
+				final double iterationsPerSecond = scores.iterationsPerSecond(slot);
+				final double requestSeconds = request.getCost() > 0 && iterationsPerSecond > 0
+						? request.getCost() / iterationsPerSecond : pixels / pixelsPerSecond;
+				final double seconds = (credits.outstanding(slot) + 1) * requestSeconds;
+				if (seconds < bestSeconds) {
+					best = slot;
+					bestSeconds = seconds;
+				}
+			}
+			return best;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package loadbalancingbroker.broker;
+
+/**
+ * Decides which idle worker gets a request.
+ *
+ * The broker keeps idle workers (workers with a credit left) in an
+ * IdleWorkerIndex ordered by the score the policy gives them; workers with
+ * equal scores take turns. When a request is dispatched, the policy selects
+ * one of the idle workers, usually the best one.
+ *
+ * Policies are called by the broker thread only and must not change the
+ * index, scores or credits they are shown.
+ */
+public interface SchedulingPolicy {
+
+	/**
+	 * @return name of the policy, as accepted by SchedulingPolicies.forName
+	 */
+	String name();
+
+	/**
+	 * Scores an idle worker, taken again after every dispatch to and reply of the worker.
+	 * @param slot
+	 * @param scores measured throughput of the workers
+	 * @param credits credits of the workers
+	 * @return higher scores are selected first
+	 */
+	int score(int slot, WorkerScores scores, WorkerCredits credits);
+
+	/**
+	 * @return true if the policy looks at the estimated cost of requests,
+	 *         the broker only estimates it when needed
+	 */
+	default boolean usesCost() {
+		return false;
+	}
+
+	/**
+	 * Selects the worker for a request, by default the one with the best score.
+	 * @param request request to dispatch
+	 * @param idle idle workers, not empty
+	 * @param scores measured throughput of the workers
+	 * @param credits credits of the workers
+	 * @return slot of an idle worker
+	 */
+	default int select(InFlightRequest request, IdleWorkerIndex idle, WorkerScores scores, WorkerCredits credits) {
+		return idle.peek();
+	}
+}
@@ -0,0 +1,169 @@
+package loadbalancingbroker.broker;
+
+import loadbalancingbroker.codec.TileCodec;
+import loadbalancingbroker.domain.Tile;
+import loadbalancingbroker.domain.TileFormat;
+import loadbalancingbroker.domain.TileKey;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+import zmq.Msg;
+
+/**
+ * A client request the broker split into sub-tiles for several workers, and
+ * the replies of the parts collected so far.
+ *
+ * The tile is cut along its longer side, every part is an InFlightRequest of
+ * its own that is dispatched, timed out and retried like any other request.
+ * When all parts are in, their samples are copied into one tile and encoded
+ * as the single reply the client asked for. Only RGB tiles are split, encoded
+ * tiles can not be put together without decoding them.
+ */
+public class SplitTile {
+	private final InFlightRequest parent;
+	private final TileCodec codec;
+	private final Request request;
+	private final InFlightRequest[] parts;
+	private final Tile[] tiles;
+	private int remaining;
+	private long iterations = 0;
+	private boolean done = false;
+
+	/**
+	 * Cuts a request into parts, their sizes in proportion to the given weights.
+	 * @param parent request to split, not changed
+	 * @param codec codec of the request, the parts and the reply use it as well
+	 * @param request decoded parent request, see canSplit
+	 * @param weights relative speed of the workers the parts are meant for, one per part
+	 * @param firstRequestId id of the first part, the others follow
+	 */
+	public SplitTile(InFlightRequest parent, TileCodec codec, Request request, double[] weights,
+			long firstRequestId) {
+		if (!canSplit(request, weights.length)) {
+			throw new IllegalArgumentException("Request can not be split in " + weights.length + " parts");
+		}
+		this.parent = parent;
+		this.codec = codec;
+		this.request = request;
+		this.parts = new InFlightRequest[weights.length];
+		this.tiles = new Tile[weights.length];
+		this.remaining = weights.length;
+
+		final boolean columns = request.getXEnd() - request.getXBegin() >= request.getYEnd() - request.getYBegin();
+		final int begin = columns ? request.getXBegin() : request.getYBegin();
+		final int end = columns ? request.getXEnd() : request.getYEnd();
+		double totalWeight = 0;
+		for (double weight : weights) {
+			totalWeight += weight;
+		}
+		double weightSoFar = 0;
+		int partBegin = begin;
+		for (int part = 0; part < parts.length; part++) {
+			weightSoFar += weights[part];
+			// every part gets at least one row or column
+			int partEnd = part == parts.length - 1 ? end
+					: begin + (int) Math.round((end - begin) * weightSoFar / totalWeight);
+			partEnd = Math.max(partBegin + 1, Math.min(partEnd, end - (parts.length - 1 - part)));
+			final Request.Builder sub = request.toBuilder();
+			if (columns) {
+				sub.setXBegin(partBegin).setXEnd(partEnd);
+			} else {
+				sub.setYBegin(partBegin).setYEnd(partEnd);
+			}
+			final Request subRequest = sub.build();
+			final TileKey key = TileKey.of(codec, subRequest);
+			final InFlightRequest partRequest = new InFlightRequest(firstRequestId + part,
+					new Msg(parent.getClientId().buf()), new Msg(codec.encodeRequest(subRequest)), key.getPixels());
+			partRequest.setTileKey(key);
+			if (parent.getCost() > 0 && parent.getPixels() > 0) {
+				partRequest.setCost(Math.max(1, parent.getCost() * key.getPixels() / parent.getPixels()));
+			}
+			partRequest.setSplit(this, part);
+			parts[part] = partRequest;
+			partBegin = partEnd;
+		}
+	}
+
+	/**
+	 * @param request decoded request
+	 * @param parts number of parts
+	 * @return true if the request is an RGB tile with at least one row or column per part
+	 */
+	public static boolean canSplit(Request request, int parts) {
+		final int width = request.getXEnd() - request.getXBegin();
+		final int height = request.getYEnd() - request.getYBegin();
+		return parts >= 2 && request.getFormat() == TileFormat.RGB.getId() && Math.max(width, height) >= parts;
+	}
+
+	public InFlightRequest getParent() {
+		return parent;
+	}
+
+	public InFlightRequest[] getParts() {
+		return parts;
+	}
+
+	/**
+	 * Takes the reply of a part.
+	 * @param part one of the parts
+	 * @param tile decoded reply of the part
+	 * @param partIterations kernel iterations the worker reported, 0 if none
+	 * @return true if all parts are in now
+	 */
+	public boolean replied(InFlightRequest part, Tile tile, long partIterations) {
+		final int index = part.getPart();
+		final TileKey key = part.getTileKey();
+		if (tile.getFormat() != TileFormat.RGB || tile.getXBegin() != key.getXBegin()
+				|| tile.getXEnd() != key.getXEnd() || tile.getYBegin() != key.getYBegin()
+				|| tile.getYEnd() != key.getYEnd()) {
+			throw new IllegalArgumentException("Reply does not match part " + index + " of request "
+					+ parent.getRequestId());
+		}
+		if (tiles[index] == null) {
+			tiles[index] = tile;
+			iterations += Math.max(0, partIterations);
+			remaining--;
+		}
+		return remaining == 0;
+	}
+
+	/**
+	 * @return the reply to the parent request, encoded with its codec; all parts must be in
+	 */
+	public byte[] assemble() {
+		if (remaining > 0) {
+			throw new IllegalStateException(remaining + " parts of request " + parent.getRequestId() + " missing");
+		}
+		final Tile whole = new Tile(request.getXBegin(), request.getXEnd(), request.getYBegin(),
+				request.getYEnd());
+		final int[] samples = whole.getSamples();
+		for (Tile tile : tiles) {
+			// samples are stored column by column, every column of a part is one copy
+			for (int x = tile.getXBegin(); x < tile.getXEnd(); x++) {
+				System.arraycopy(tile.getSamples(), (x - tile.getXBegin()) * tile.getHeight(), samples,
+						(x - whole.getXBegin()) * whole.getHeight() + (tile.getYBegin() - whole.getYBegin()),
+						tile.getHeight());
+			}
+		}
+		return codec.encodeReply(whole);
+	}
+
+	/**
+	 * @return kernel iterations reported for the parts so far
+	 */
+	public long getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return true once the parent was answered or the split given up
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Notes that the parent was answered or the split given up, later part replies are dropped.
+	 */
+	public void finish() {
+		done = true;
+	}
+}
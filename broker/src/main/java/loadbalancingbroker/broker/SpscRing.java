@@ -0,0 +1,96 @@
+package loadbalancingbroker.broker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue between exactly one producer thread and one
+ * consumer thread. The capacity is rounded up to a power of two. Each side
+ * only writes its own counter, published with an ordered write, and reads the
+ * other side's counter only when its cached copy says the ring is full or
+ * empty, so neither side takes a lock or a full fence per element.
+ * @param <E> element type
+ */
+public class SpscRing<E> {
+	private final Object[] elements;
+	private final int mask;
+	// next index to read, written by the consumer; caches the tail for the consumer
+	private final Counter head = new Counter();
+	// next index to write, written by the producer; caches the head for the producer
+	private final Counter tail = new Counter();
+
+	/** a counter on a cache line of its own, with the owner's copy of the other counter */
+	@SuppressWarnings({ "serial", "unused" })
+	private static final class Counter extends AtomicLong {
+		private long cached;
+		private long p1, p2, p3, p4, p5, p6;
+	}
+
+	/**
+	 * @param capacity at least 2, rounded up to a power of two
+	 */
+	public SpscRing(int capacity) {
+		if (capacity < 2 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Ring capacity out of range: " + capacity);
+		}
+		final int size = Integer.highestOneBit(capacity - 1) << 1;
+		this.elements = new Object[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Producer only.
+	 * @param element not null
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E element) {
+		final long index = tail.get();
+		if (index - tail.cached >= elements.length) {
+			tail.cached = head.get();
+			if (index - tail.cached >= elements.length) {
+				return false;
+			}
+		}
+		elements[(int) index & mask] = element;
+		tail.lazySet(index + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer only.
+	 * @return oldest element, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		final long index = head.get();
+		if (index >= head.cached) {
+			head.cached = tail.get();
+			if (index >= head.cached) {
+				return null;
+			}
+		}
+		final int slot = (int) index & mask;
+		final E element = (E) elements[slot];
+		elements[slot] = null;
+		head.lazySet(index + 1);
+		return element;
+	}
+
+	/**
+	 * @return elements in the ring, a snapshot if called by a third thread
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public boolean isFull() {
+		return size() >= elements.length;
+	}
+
+	public int capacity() {
+		return elements.length;
+	}
+}
@@ -0,0 +1,220 @@
+package loadbalancingbroker.broker;
+
+import java.util.Arrays;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Consistent hashing of tile regions to workers, so a region that is
+ * rendered again goes to the worker that computed it before and finds its
+ * result in that worker's cache.
+ *
+ * Every worker takes a number of points on a hash ring, derived from the id
+ * in its control header; that id stays the same when the worker reconnects
+ * with a new socket, so it keeps its regions. A region goes to the first
+ * worker after the region's hash on the ring that is idle and not loaded
+ * above its bound: at most the load factor times the average number of
+ * outstanding requests (bounded-load consistent hashing). A busy preferred
+ * worker thus hands the region on to the next worker of the ring, the same
+ * one every time, instead of piling requests up. When no worker qualifies,
+ * the scheduling policy decides.
+ *
+ * Not thread-safe, used by the broker thread only.
+ */
+public class TileAffinity {
+	/** points of a worker on the ring, more spread the regions more evenly */
+	public static final int DEFAULT_VIRTUAL_NODES = 64;
+	/** share above the average load a worker may take before its regions go to the next worker */
+	public static final double DEFAULT_LOAD_FACTOR = 1.25;
+
+	private final int virtualNodes;
+	private final double loadFactor;
+	// worker id of every slot on the ring, valid where member is set
+	private int[] workerIds = new int[16];
+	private boolean[] member = new boolean[16];
+	private int memberCount = 0;
+	// ring, sorted by point, and the slot of every point
+	private int[] points = new int[0];
+	private int[] pointSlots = new int[0];
+	private long preferred = 0;
+	private long passedOn = 0;
+	private long unplaced = 0;
+
+	public TileAffinity() {
+		this(DEFAULT_VIRTUAL_NODES, DEFAULT_LOAD_FACTOR);
+	}
+
+	/**
+	 * @param virtualNodes points of a worker on the ring, positive
+	 * @param loadFactor at least 1, a worker may have this times the average outstanding requests
+	 */
+	public TileAffinity(int virtualNodes, double loadFactor) {
+		if (virtualNodes <= 0 || loadFactor < 1) {
+			throw new IllegalArgumentException("Affinity needs virtual nodes and a load factor of at least 1, got "
+					+ virtualNodes + " and " + loadFactor);
+		}
+		this.virtualNodes = virtualNodes;
+		this.loadFactor = loadFactor;
+	}
+
+	/**
+	 * Puts a worker on the ring, or moves it if its id changed.
+	 * @param slot
+	 * @param workerId id of the worker's control header
+	 */
+	public void join(int slot, int workerId) {
+		ensureSlot(slot);
+		if (member[slot] && workerIds[slot] == workerId) {
+			return;
+		}
+		if (!member[slot]) {
+			member[slot] = true;
+			memberCount++;
+		}
+		workerIds[slot] = workerId;
+		rebuild();
+	}
+
+	/**
+	 * Takes a lost worker off the ring, its regions go to the next workers.
+	 * @param slot
+	 */
+	public void leave(int slot) {
+		if (slot >= member.length || !member[slot]) {
+			return;
+		}
+		member[slot] = false;
+		memberCount--;
+		rebuild();
+	}
+
+	/**
+	 * @param slot
+	 * @return true if the worker is on the ring
+	 */
+	public boolean contains(int slot) {
+		return slot < member.length && member[slot];
+	}
+
+	/**
+	 * Selects the worker for a region.
+	 * @param key requested tile
+	 * @param idle idle workers
+	 * @param credits credits of the workers, their outstanding requests are the load
+	 * @return slot of an idle worker, -1 if none on the ring is idle and below its bound
+	 */
+	public int select(TileKey key, IdleWorkerIndex idle, WorkerCredits credits) {
+		if (points.length == 0) {
+			unplaced++;
+			return -1;
+		}
+		long load = 0;
+		for (int slot = 0; slot < member.length; slot++) {
+			if (member[slot]) {
+				load += credits.outstanding(slot);
+			}
+		}
+		// the bound counts the request being placed
+		final long bound = (long) Math.ceil(loadFactor * (load + 1) / memberCount);
+		int index = Arrays.binarySearch(points, regionHash(key));
+		if (index < 0) {
+			index = -index - 1;
+		}
+		final int first = pointSlots[index % points.length];
+		for (int step = 0; step < points.length; step++) {
+			final int slot = pointSlots[(index + step) % points.length];
+			if (idle.contains(slot) && credits.outstanding(slot) < bound) {
+				if (slot == first) {
+					preferred++;
+				} else {
+					passedOn++;
+				}
+				return slot;
+			}
+		}
+		unplaced++;
+		return -1;
+	}
+
+	/**
+	 * @return workers on the ring
+	 */
+	public int size() {
+		return memberCount;
+	}
+
+	/**
+	 * @return requests sent to the first worker of their region
+	 */
+	public long getPreferred() {
+		return preferred;
+	}
+
+	/**
+	 * @return requests passed on to a later worker of the ring, the preferred one was busy
+	 */
+	public long getPassedOn() {
+		return passedOn;
+	}
+
+	/**
+	 * @return requests left to the scheduling policy, no worker of the ring could take them
+	 */
+	public long getUnplaced() {
+		return unplaced;
+	}
+
+	/**
+	 * The region is the part of the image, whatever codec and format the
+	 * client asked for: the worker's state of a region does not depend on how
+	 * the reply is encoded.
+	 */
+	private static int regionHash(TileKey key) {
+		long h = key.getImgWidth();
+		h = h * 31 + key.getImgHeight();
+		h = h * 31 + key.getXBegin();
+		h = h * 31 + key.getXEnd();
+		h = h * 31 + key.getYBegin();
+		h = h * 31 + key.getYEnd();
+		return mix(h);
+	}
+
+	private void rebuild() {
+		// point in the high, slot in the low half, sorted together
+		final long[] ring = new long[memberCount * virtualNodes];
+		int count = 0;
+		for (int slot = 0; slot < member.length; slot++) {
+			if (member[slot]) {
+				for (int node = 0; node < virtualNodes; node++) {
+					final int point = mix(((long) workerIds[slot] << 32) | node);
+					ring[count++] = ((long) point << 32) | slot;
+				}
+			}
+		}
+		Arrays.sort(ring);
+		points = new int[count];
+		pointSlots = new int[count];
+		for (int i = 0; i < count; i++) {
+			points[i] = (int) (ring[i] >> 32);
+			pointSlots[i] = (int) ring[i];
+		}
+	}
+
+	/**
+	 * Finalizer of SplitMix64, spreads close keys over the whole ring.
+	 */
+	private static int mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return (int) ((z ^ (z >>> 31)) >>> 32);
+	}
+
+	private void ensureSlot(int slot) {
+		if (slot < member.length) {
+			return;
+		}
+		final int length = Math.max(slot + 1, member.length * 2);
+		workerIds = Arrays.copyOf(workerIds, length);
+		member = Arrays.copyOf(member, length);
+	}
+}
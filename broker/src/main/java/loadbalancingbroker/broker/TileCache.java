@@ -0,0 +1,200 @@
+package loadbalancingbroker.broker;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Reply frames of calculated tiles, kept by the broker so repeated requests
+ * are answered without a worker.
+ *
+ * The bytes live off-heap in one direct buffer of the configured budget,
+ * cut into fixed size pages; an entry takes as many pages as its reply
+ * needs. When the pages run out the least recently used entries are evicted.
+ * Only the small per-entry bookkeeping stays on the heap.
+ *
+ * Not thread-safe, used by the broker thread only.
+ */
+public class TileCache {
+	/** page size of the off-heap store, a one column RGB tile fits in one page */
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+
+	private final ByteBuffer store;
+	private final int pageSize;
+	private final int pageCount;
+	// stack of free page numbers
+	private final int[] freePages;
+	private int freeCount;
+	// access ordered, the eldest entry is the least recently used
+	private final LinkedHashMap<TileKey, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private long usedBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/** pages and length of one cached reply */
+	private static class Entry {
+		private final int[] pages;
+		private final int length;
+
+		private Entry(int[] pages, int length) {
+			this.pages = pages;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * @param budgetBytes off-heap bytes for cached replies, below 2 GiB
+	 */
+	public TileCache(long budgetBytes) {
+		this(budgetBytes, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * @param budgetBytes off-heap bytes for cached replies, below 2 GiB
+	 * @param pageSize
+	 */
+	public TileCache(long budgetBytes, int pageSize) {
+		if (pageSize <= 0 || budgetBytes < pageSize || budgetBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Tile cache budget must be between one page and 2 GiB, got "
+					+ budgetBytes);
+		}
+		this.pageSize = pageSize;
+		this.pageCount = (int) (budgetBytes / pageSize);
+		this.store = ByteBuffer.allocateDirect(pageCount * pageSize);
+		this.freePages = new int[pageCount];
+		for (int page = 0; page < pageCount; page++) {
+			freePages[page] = pageCount - 1 - page;
+		}
+		this.freeCount = pageCount;
+	}
+
+	/**
+	 * Looks up a reply and copies it out of the store.
+	 * @param key
+	 * @return the cached reply frame, or null on a miss
+	 */
+	public byte[] get(TileKey key) {
+		final Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		final byte[] reply = new byte[entry.length];
+		int offset = 0;
+		for (int page : entry.pages) {
+			final int length = Math.min(pageSize, entry.length - offset);
+			final ByteBuffer source = store.duplicate();
+			source.position(page * pageSize);
+			source.get(reply, offset, length);
+			offset += length;
+		}
+		return reply;
+	}
+
+	/**
+	 * Stores a reply, evicting least recently used ones to make room.
+	 * Replies larger than the whole budget are not stored.
+	 * @param key
+	 * @param reply reply frame from position to limit, the position is not changed
+	 * @return true if the reply was stored
+	 */
+	public boolean put(TileKey key, ByteBuffer reply) {
+		final int length = reply.remaining();
+		final int needed = Math.max(1, (length + pageSize - 1) / pageSize);
+		if (needed > pageCount) {
+			return false;
+		}
+		remove(key);
+		while (freeCount < needed) {
+			evictEldest();
+		}
+		final int[] pages = new int[needed];
+		final ByteBuffer source = reply.duplicate();
+		for (int i = 0; i < needed; i++) {
+			final int page = freePages[--freeCount];
+			pages[i] = page;
+			final ByteBuffer target = store.duplicate();
+			target.position(page * pageSize);
+			source.limit(Math.min(reply.limit(), source.position() + pageSize));
+			target.put(source);
+		}
+		entries.put(key, new Entry(pages, length));
+		usedBytes += length;
+		return true;
+	}
+
+	/**
+	 * @param key
+	 * @return true if a reply was cached for the key
+	 */
+	public boolean remove(TileKey key) {
+		final Entry entry = entries.remove(key);
+		if (entry == null) {
+			return false;
+		}
+		release(entry);
+		return true;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return bytes of cached replies
+	 */
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return bytes taken by the pages of cached replies
+	 */
+	public long getReservedBytes() {
+		return (long) (pageCount - freeCount) * pageSize;
+	}
+
+	public long getBudgetBytes() {
+		return (long) pageCount * pageSize;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return share of lookups answered from the cache, 0 before the first lookup
+	 */
+	public double getHitRate() {
+		final long lookups = hits + misses;
+		return lookups > 0 ? (double) hits / lookups : 0;
+	}
+
+	private void evictEldest() {
+		final Iterator<Map.Entry<TileKey, Entry>> eldest = entries.entrySet().iterator();
+		final Entry entry = eldest.next().getValue();
+		eldest.remove();
+		release(entry);
+		evictions++;
+	}
+
+	private void release(Entry entry) {
+		for (int page : entry.pages) {
+			freePages[freeCount++] = page;
+		}
+		usedBytes -= entry.length;
+	}
+}
@@ -0,0 +1,230 @@
+package loadbalancingbroker.broker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Estimated cost of a tile in kernel iterations, so the broker can tell the
+ * expensive columns through the set from the cheap ones at the edges.
+ *
+ * Workers report the iterations of every tile they computed. An estimate is
+ * taken from, in this order:
+ * <ol>
+ * <li>the iterations of the same tile rendered before,</li>
+ * <li>the iterations per pixel learned for the region of the plane the tile
+ * shows, from earlier tiles of any image size (a coarse grid over the plane,
+ * the parent level of all tiles),</li>
+ * <li>a probe: the kernel run in the broker on a few sample points of the tile.</li>
+ * </ol>
+ * Not thread-safe, used by the broker thread only.
+ */
+public class TileCostModel {
+	/** tiles whose iterations are remembered exactly */
+	public static final int DEFAULT_EXACT_TILES = 100_000;
+	/** sample points per side of a probe */
+	public static final int PROBE_SAMPLES = 8;
+
+	// the worker's kernel and its view of the plane, see Worker.computeTile
+	private static final int ITERATION_NUM = 255;
+	private static final double SCALE = 0.47;
+	// region of the plane covered by the grid, cells per side
+	private static final double PLANE_MIN_X = -2.2;
+	private static final double PLANE_MIN_Y = -1.5;
+	private static final double PLANE_SIZE = 3.0;
+	private static final int GRID = 64;
+	// share of a tile the grid must have learned before it is trusted
+	private static final double MIN_GRID_COVERAGE = 0.5;
+
+	private final int exactTiles;
+	// least recently used tiles are forgotten first
+	private final LinkedHashMap<TileKey, Long> exact;
+	// per cell: learned iterations per pixel and the weight of what was learned
+	private final double[] density = new double[GRID * GRID];
+	private final double[] weight = new double[GRID * GRID];
+	private long exactEstimates = 0;
+	private long gridEstimates = 0;
+	private long probes = 0;
+
+	public TileCostModel() {
+		this(DEFAULT_EXACT_TILES);
+	}
+
+	/**
+	 * @param exactTiles tiles whose iterations are remembered exactly
+	 */
+	public TileCostModel(int exactTiles) {
+		this.exactTiles = exactTiles;
+		this.exact = new LinkedHashMap<TileKey, Long>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TileKey, Long> eldest) {
+				return size() > TileCostModel.this.exactTiles;
+			}
+		};
+	}
+
+	/**
+	 * @param key
+	 * @return estimated kernel iterations of the tile, at least 1
+	 */
+	public long estimate(TileKey key) {
+		final Long known = exact.get(key);
+		if (known != null) {
+			exactEstimates++;
+			return known;
+		}
+		final long pixels = key.getPixels();
+		if (pixels <= 0) {
+			return 1;
+		}
+		final double perPixel = gridDensity(key);
+		if (perPixel > 0) {
+			gridEstimates++;
+			return Math.max(1, (long) (perPixel * pixels));
+		}
+		probes++;
+		return Math.max(1, (long) (probe(key) * pixels));
+	}
+
+	/**
+	 * Learns the iterations a worker reported for a tile.
+	 * @param key
+	 * @param iterations kernel iterations of the tile, ignored if not positive
+	 */
+	public void record(TileKey key, long iterations) {
+		final long pixels = key.getPixels();
+		if (iterations <= 0 || pixels <= 0) {
+			return;
+		}
+		exact.put(key, iterations);
+		final double perPixel = (double) iterations / pixels;
+		forEachCell(key, (cell, overlap) -> {
+			// the more of a cell a tile covers, the more it counts
+			weight[cell] += overlap;
+			density[cell] += (perPixel - density[cell]) * overlap / weight[cell];
+		});
+	}
+
+	public int size() {
+		return exact.size();
+	}
+
+	/**
+	 * @return estimates taken from tiles rendered before
+	 */
+	public long getExactEstimates() {
+		return exactEstimates;
+	}
+
+	/**
+	 * @return estimates taken from the learned grid
+	 */
+	public long getGridEstimates() {
+		return gridEstimates;
+	}
+
+	/**
+	 * @return estimates the kernel had to be probed for
+	 */
+	public long getProbes() {
+		return probes;
+	}
+
+	/**
+	 * @return learned iterations per pixel over the tile, 0 if too little is known
+	 */
+	private double gridDensity(TileKey key) {
+		final double[] sums = new double[3];
+		forEachCell(key, (cell, overlap) -> {
+			sums[0] += overlap;
+			if (weight[cell] > 0) {
+				sums[1] += overlap;
+				sums[2] += overlap * density[cell];
+			}
+		});
+		if (sums[0] <= 0 || sums[1] < sums[0] * MIN_GRID_COVERAGE) {
+			return 0;
+		}
+		return sums[2] / sums[1];
+	}
+
+	/**
+	 * Runs the kernel on a grid of sample points of the tile.
+	 * @return average iterations per sampled pixel
+	 */
+	private static double probe(TileKey key) {
+		final int width = key.getXEnd() - key.getXBegin();
+		final int height = key.getYEnd() - key.getYBegin();
+		final int samplesX = Math.min(PROBE_SAMPLES, width);
+		final int samplesY = Math.min(PROBE_SAMPLES, height);
+		long iterations = 0;
+		for (int sx = 0; sx < samplesX; sx++) {
+			final int i = key.getXBegin() + (int) ((sx + 0.5) * width / samplesX);
+			for (int sy = 0; sy < samplesY; sy++) {
+				final int j = key.getYBegin() + (int) ((sy + 0.5) * height / samplesY);
+				iterations += iterations(planeX(key, i), planeY(key, j));
+			}
+		}
+		return (double) iterations / (samplesX * samplesY);
+	}
+
+	/**
+	 * @return iterations of the worker's kernel for one point, counted like Worker does
+	 */
+	private static int iterations(double cx, double cy) {
+		double x = cx;
+		double y = cy;
+		for (int n = 1; n < ITERATION_NUM; n++) {
+			if (x * x + y * y > 4) {
+				return n;
+			}
+			final double xx = x * x - y * y + cx;
+			y = 2 * x * y + cy;
+			x = xx;
+		}
+		return ITERATION_NUM;
+	}
+
+	private static double planeX(TileKey key, double i) {
+		final double x0 = (3 * key.getImgWidth() / 4);
+		return (i - x0) / (key.getImgWidth() * SCALE);
+	}
+
+	private static double planeY(TileKey key, double j) {
+		final double y0 = (key.getImgHeight() / 2);
+		return (j - y0) / (key.getImgWidth() * SCALE);
+	}
+
+	/** a grid cell a tile overlaps, and the share of the cell it covers */
+	private interface CellVisitor {
+		void visit(int cell, double overlap);
+	}
+
+	private static void forEachCell(TileKey key, CellVisitor visitor) {
+		final double cellSize = PLANE_SIZE / GRID;
+		final double x0 = (planeX(key, key.getXBegin()) - PLANE_MIN_X) / cellSize;
+		final double x1 = (planeX(key, key.getXEnd()) - PLANE_MIN_X) / cellSize;
+		final double y0 = (planeY(key, key.getYBegin()) - PLANE_MIN_Y) / cellSize;
+		final double y1 = (planeY(key, key.getYEnd()) - PLANE_MIN_Y) / cellSize;
+		final int cx0 = clamp((int) Math.floor(x0));
+		final int cx1 = clamp((int) Math.ceil(x1) - 1);
+		final int cy0 = clamp((int) Math.floor(y0));
+		final int cy1 = clamp((int) Math.ceil(y1) - 1);
+		for (int cx = cx0; cx <= cx1; cx++) {
+			final double overlapX = Math.min(x1, cx + 1) - Math.max(x0, cx);
+			for (int cy = cy0; cy <= cy1; cy++) {
+				final double overlapY = Math.min(y1, cy + 1) - Math.max(y0, cy);
+				if (overlapX > 0 && overlapY > 0) {
+					visitor.visit(cy * GRID + cx, overlapX * overlapY);
+				}
+			}
+		}
+	}
+
+	private static int clamp(int cell) {
+		return Math.max(0, Math.min(GRID - 1, cell));
+	}
+}
@@ -0,0 +1,95 @@
+package loadbalancingbroker.broker;
+
+import java.util.Arrays;
+
+/**
+ * Request credits of every worker slot.
+ *
+ * A worker announces in its READY header how many requests it wants to have
+ * queued at once. Every dispatch uses up one credit, every reply gives one
+ * back, so a worker can take its next request from its socket while it is
+ * still computing the current one instead of waiting a round trip.
+ */
+public class WorkerCredits {
+	private int[] capacity = new int[16];
+	private int[] available = new int[16];
+
+	/**
+	 * Sets the credits of a worker that (re)connected, nothing is outstanding.
+	 * @param slot
+	 * @param credits number of requests the worker accepts at once, at least 1
+	 */
+	public void grant(int slot, int credits) {
+		ensureSlot(slot);
+		capacity[slot] = Math.max(1, credits);
+		available[slot] = capacity[slot];
+	}
+
+	/**
+	 * Drops the credits of a worker that stopped responding, until it announces them again.
+	 * @param slot
+	 */
+	public void revoke(int slot) {
+		ensureSlot(slot);
+		capacity[slot] = 0;
+		available[slot] = 0;
+	}
+
+	/**
+	 * Uses up one credit for a dispatched request.
+	 * @param slot
+	 * @return credits left afterwards
+	 */
+	public int take(int slot) {
+		if (slot >= available.length || available[slot] <= 0) {
+			throw new IllegalStateException("Worker slot " + slot + " has no credit left");
+		}
+		return --available[slot];
+	}
+
+	/**
+	 * Gives back the credit of an answered request.
+	 * @param slot
+	 * @return credits available afterwards
+	 */
+	public int giveBack(int slot) {
+		ensureSlot(slot);
+		if (available[slot] < capacity[slot]) {
+			available[slot]++;
+		}
+		return available[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @return true once the worker announced its credits
+	 */
+	public boolean isGranted(int slot) {
+		return slot < capacity.length && capacity[slot] > 0;
+	}
+
+	/**
+	 * @param slot
+	 * @return credits the worker has left
+	 */
+	public int available(int slot) {
+		return slot < available.length ? available[slot] : 0;
+	}
+
+	/**
+	 * @param slot
+	 * @return requests dispatched to the worker and not answered yet
+	 */
+	public int outstanding(int slot) {
+		return slot < available.length ? capacity[slot] - available[slot] : 0;
+	}
+
+	private void ensureSlot(int slot) {
+		if (slot < capacity.length) {
+			return;
+		}
+		final int length = Math.max(slot + 1, capacity.length * 2);
+		capacity = Arrays.copyOf(capacity, length);
+		available = Arrays.copyOf(available, length);
+	}
+}
@@ -0,0 +1,71 @@
+package loadbalancingbroker.broker;
+
+import java.util.Arrays;
+
+/**
+ * Heartbeat bookkeeping of the broker, in the style of the Paranoid Pirate
+ * pattern (http://zguide.zeromq.org/page:all#Robust-Reliable-Queuing-Paranoid-Pirate-Pattern).
+ *
+ * Every message of a worker counts as a sign of life. A worker that was not
+ * heard of for liveness heartbeat intervals is considered dead.
+ */
+public class WorkerLiveness {
+	private final long intervalMillis;
+	private final int liveness;
+	// per slot: System.currentTimeMillis() after which the worker is dead, 0 if it is not alive
+	private long[] expiresAt = new long[16];
+
+	/**
+	 * @param intervalMillis heartbeat interval
+	 * @param liveness missed heartbeats after which a worker is dead
+	 */
+	public WorkerLiveness(long intervalMillis, int liveness) {
+		if (intervalMillis <= 0 || liveness <= 0) {
+			throw new IllegalArgumentException("Heartbeat interval and liveness must be positive");
+		}
+		this.intervalMillis = intervalMillis;
+		this.liveness = liveness;
+	}
+
+	/**
+	 * Notes a message of the worker.
+	 * @param slot
+	 * @param now System.currentTimeMillis()
+	 * @return true if the worker was not alive before
+	 */
+	public boolean seen(int slot, long now) {
+		ensureSlot(slot);
+		final boolean revived = expiresAt[slot] == 0;
+		expiresAt[slot] = now + intervalMillis * liveness;
+		return revived;
+	}
+
+	public boolean isAlive(int slot) {
+		return slot < expiresAt.length && expiresAt[slot] != 0;
+	}
+
+	/**
+	 * Marks the worker dead if it was silent for too long.
+	 * @param slot
+	 * @param now System.currentTimeMillis()
+	 * @return true if the worker just expired
+	 */
+	public boolean expire(int slot, long now) {
+		if (!isAlive(slot) || now < expiresAt[slot]) {
+			return false;
+		}
+		expiresAt[slot] = 0;
+		return true;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	private void ensureSlot(int slot) {
+		if (slot < expiresAt.length) {
+			return;
+		}
+		expiresAt = Arrays.copyOf(expiresAt, Math.max(slot + 1, expiresAt.length * 2));
+	}
+}
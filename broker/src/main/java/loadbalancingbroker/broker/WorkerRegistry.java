@@ -0,0 +1,129 @@
+package loadbalancingbroker.broker;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Gives every worker identity seen on the backend a small, stable slot
+ * number, so per-worker state can live in plain arrays (see IdleWorkerIndex).
+ * Slots are not freed: a worker's identity is derived from its id, so a
+ * worker that reconnects comes back to its slot, and the registry grows
+ * with the workers, not with their connections.
+ *
+ * Identities are interned in an open addressing table keyed by their bytes,
+ * so the slot of a known worker is found straight from the received identity
+ * frame, without creating a String or byte[] for it.
+ */
+public class WorkerRegistry {
+	private static final int FREE = -1;
+
+	// per slot: interned identity and its hash
+	private byte[][] identities = new byte[16][];
+	private int[] hashes = new int[16];
+	private int size = 0;
+	// open addressing table of slots, length is a power of two
+	private int[] table = newTable(32);
+
+	/**
+	 * @param identity routing id of the worker, from position to limit,
+	 *        the buffer's position is not changed
+	 * @return slot of the worker, a new one if the worker was not seen before
+	 */
+	public int slotOf(ByteBuffer identity) {
+		final int hash = hash(identity);
+		final int mask = table.length - 1;
+		int index = hash & mask;
+		while (table[index] != FREE) {
+			final int slot = table[index];
+			if (hashes[slot] == hash && sameBytes(identities[slot], identity)) {
+				return slot;
+			}
+			index = (index + 1) & mask;
+		}
+		final byte[] bytes = new byte[identity.remaining()];
+		identity.duplicate().get(bytes);
+		return add(bytes, hash, index);
+	}
+
+	/**
+	 * @param identity routing id of the worker
+	 * @return slot of the worker, a new one if the worker was not seen before
+	 */
+	public int slotOf(byte[] identity) {
+		return slotOf(ByteBuffer.wrap(identity));
+	}
+
+	/**
+	 * @param slot
+	 * @return routing id of the worker in that slot, not to be modified
+	 */
+	public byte[] identityOf(int slot) {
+		if (slot < 0 || slot >= size) {
+			throw new IndexOutOfBoundsException("Unknown worker slot " + slot);
+		}
+		return identities[slot];
+	}
+
+	/**
+	 * @return number of workers registered so far
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int add(byte[] identity, int hash, int index) {
+		if (size == identities.length) {
+			identities = Arrays.copyOf(identities, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+		final int slot = size++;
+		identities[slot] = identity;
+		hashes[slot] = hash;
+		table[index] = slot;
+		// keep the table at most half full
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		return slot;
+	}
+
+	private void rehash(int length) {
+		table = newTable(length);
+		final int mask = length - 1;
+		for (int slot = 0; slot < size; slot++) {
+			int index = hashes[slot] & mask;
+			while (table[index] != FREE) {
+				index = (index + 1) & mask;
+			}
+			table[index] = slot;
+		}
+	}
+
+	private static int[] newTable(int length) {
+		final int[] table = new int[length];
+		Arrays.fill(table, FREE);
+		return table;
+	}
+
+	private static int hash(ByteBuffer identity) {
+		int hash = 1;
+		for (int i = identity.position(); i < identity.limit(); i++) {
+			hash = 31 * hash + identity.get(i);
+		}
+		// spread the bits, the table index uses the low ones only
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean sameBytes(byte[] interned, ByteBuffer identity) {
+		if (interned.length != identity.remaining()) {
+			return false;
+		}
+		final int start = identity.position();
+		for (int i = 0; i < interned.length; i++) {
+			if (interned[i] != identity.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
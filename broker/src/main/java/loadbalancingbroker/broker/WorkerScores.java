@@ -0,0 +1,178 @@
+package loadbalancingbroker.broker;
+
+import java.util.Arrays;
+
+/**
+ * Throughput of every worker as measured by the broker.
+ *
+ * The broker notes when it dispatched how many pixels to a worker slot and
+ * when the reply came back. Every reply gives one pixels per second sample,
+ * samples are smoothed with an exponentially weighted moving average, so a
+ * worker's score follows its real speed (including its link to the broker)
+ * instead of a number the worker reports about itself.
+ *
+ * A worker may have several requests queued (see WorkerCredits). A request
+ * is timed from its dispatch or from the worker's previous reply, whichever
+ * is later, so the time a request waited behind another one is not counted
+ * against the worker.
+ *
+ * When a worker reports the kernel iterations of its replies, their rate is
+ * averaged the same way; unlike pixels per second it does not depend on
+ * which part of the image the worker happened to get.
+ */
+public class WorkerScores {
+	/** weight of the newest sample in the moving average */
+	public static final double DEFAULT_ALPHA = 0.3;
+	/** score of workers without a sample yet, so new workers are tried first */
+	public static final int UNMEASURED = Integer.MAX_VALUE;
+
+	private final double alpha;
+	// per slot: outstanding dispatches, last reply, average and sample count
+	private int[] outstanding;
+	private long[] lastReplyAt;
+	private double[] pixelsPerSecond;
+	private long[] samples;
+	private double[] iterationsPerSecond;
+	private long[] iterationSamples;
+
+	public WorkerScores() {
+		this(DEFAULT_ALPHA);
+	}
+
+	/**
+	 * @param alpha weight of the newest sample, between 0 (exclusive) and 1
+	 */
+	public WorkerScores(double alpha) {
+		if (alpha <= 0 || alpha > 1) {
+			throw new IllegalArgumentException("Moving average weight out of range: " + alpha);
+		}
+		this.alpha = alpha;
+		outstanding = new int[0];
+		lastReplyAt = new long[0];
+		pixelsPerSecond = new double[0];
+		samples = new long[0];
+		iterationsPerSecond = new double[0];
+		iterationSamples = new long[0];
+	}
+
+	/**
+	 * Forgets the outstanding dispatches of a worker that reconnected,
+	 * its average is kept.
+	 * @param slot
+	 */
+	public void reset(int slot) {
+		ensureSlot(slot);
+		outstanding[slot] = 0;
+	}
+
+	/**
+	 * Notes a request dispatched to a worker.
+	 * @param slot
+	 * @param nanoTime System.nanoTime() of the dispatch
+	 */
+	public void dispatched(int slot, long nanoTime) {
+		ensureSlot(slot);
+		if (outstanding[slot]++ == 0) {
+			// an idle worker starts fresh, its idle time is not service time
+			lastReplyAt[slot] = nanoTime;
+		}
+	}
+
+	/**
+	 * Takes a sample for a request the worker replied to.
+	 * @param slot
+	 * @param pixels size of the requested tile
+	 * @param dispatchedAt System.nanoTime() the request was sent to this worker
+	 * @param nanoTime System.nanoTime() of the reply
+	 * @return false if the request could not be measured
+	 */
+	public boolean replied(int slot, long pixels, long dispatchedAt, long nanoTime) {
+		return replied(slot, pixels, 0, dispatchedAt, nanoTime);
+	}
+
+	/**
+	 * Takes a sample for a request the worker replied to.
+	 * @param slot
+	 * @param pixels size of the requested tile
+	 * @param iterations kernel iterations the worker reported, 0 if it reported none
+	 * @param dispatchedAt System.nanoTime() the request was sent to this worker
+	 * @param nanoTime System.nanoTime() of the reply
+	 * @return false if the request could not be measured
+	 */
+	public boolean replied(int slot, long pixels, long iterations, long dispatchedAt, long nanoTime) {
+		ensureSlot(slot);
+		final long started = Math.max(dispatchedAt, lastReplyAt[slot]);
+		if (outstanding[slot] > 0) {
+			outstanding[slot]--;
+		}
+		lastReplyAt[slot] = nanoTime;
+		if (pixels <= 0) {
+			return false;
+		}
+		final long elapsed = Math.max(1, nanoTime - started);
+		if (iterations > 0) {
+			final double rate = iterations * 1e9 / elapsed;
+			if (iterationSamples[slot]++ == 0) {
+				iterationsPerSecond[slot] = rate;
+			} else {
+				iterationsPerSecond[slot] += alpha * (rate - iterationsPerSecond[slot]);
+			}
+		}
+		final double sample = pixels * 1e9 / elapsed;
+		if (samples[slot]++ == 0) {
+			pixelsPerSecond[slot] = sample;
+		} else {
+			pixelsPerSecond[slot] += alpha * (sample - pixelsPerSecond[slot]);
+		}
+		return true;
+	}
+
+	/**
+	 * @param slot
+	 * @return score for IdleWorkerIndex: smoothed pixels per second, or UNMEASURED
+	 */
+	public int score(int slot) {
+		if (slot >= samples.length || samples[slot] == 0) {
+			return UNMEASURED;
+		}
+		// keep measured workers below UNMEASURED
+		return (int) Math.min(pixelsPerSecond[slot], UNMEASURED - 1);
+	}
+
+	/**
+	 * @param slot
+	 * @return smoothed pixels per second, 0 if not measured yet
+	 */
+	public double pixelsPerSecond(int slot) {
+		return slot < pixelsPerSecond.length ? pixelsPerSecond[slot] : 0;
+	}
+
+	/**
+	 * @param slot
+	 * @return smoothed kernel iterations per second, 0 if the worker reported none yet
+	 */
+	public double iterationsPerSecond(int slot) {
+		return slot < iterationsPerSecond.length ? iterationsPerSecond[slot] : 0;
+	}
+
+	/**
+	 * @param slot
+	 * @return number of replies measured for the worker
+	 */
+	public long samples(int slot) {
+		return slot < samples.length ? samples[slot] : 0;
+	}
+
+	private void ensureSlot(int slot) {
+		if (slot < samples.length) {
+			return;
+		}
+		final int length = Math.max(slot + 1, samples.length * 2);
+		outstanding = Arrays.copyOf(outstanding, length);
+		lastReplyAt = Arrays.copyOf(lastReplyAt, length);
+		pixelsPerSecond = Arrays.copyOf(pixelsPerSecond, length);
+		samples = Arrays.copyOf(samples, length);
+		iterationsPerSecond = Arrays.copyOf(iterationsPerSecond, length);
+		iterationSamples = Arrays.copyOf(iterationSamples, length);
+	}
+}
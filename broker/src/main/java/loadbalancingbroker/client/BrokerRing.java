@@ -0,0 +1,117 @@
+package loadbalancingbroker.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Consistent hashing of tiles to brokers, so every client sends a tile to
+ * the same broker of a sharded deployment and finds it in that broker's
+ * cache. Every broker takes a number of points on a hash ring, derived from
+ * its frontend URL; a tile goes to the first broker after the tile key's
+ * hash. Clients that know the same brokers agree on the broker of a tile,
+ * and adding or removing a broker only moves the tiles next to its points.
+ *
+ * A tile's later brokers on the ring are its fallbacks when the first one
+ * does not answer. Immutable, so it can be shared by the request threads.
+ */
+public class BrokerRing {
+	/** points of a broker on the ring, more spread the tiles more evenly */
+	public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+	private final List<String> urls;
+	// ring, sorted by point, and the broker of every point
+	private final int[] points;
+	private final int[] pointBrokers;
+
+	/**
+	 * @param urls frontend of every broker, at least one
+	 */
+	public BrokerRing(List<String> urls) {
+		this(urls, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * @param urls frontend of every broker, at least one
+	 * @param virtualNodes points of a broker on the ring, positive
+	 */
+	public BrokerRing(List<String> urls, int virtualNodes) {
+		if (urls.isEmpty() || virtualNodes <= 0) {
+			throw new IllegalArgumentException("Broker ring needs brokers and virtual nodes, got " + urls.size()
+					+ " and " + virtualNodes);
+		}
+		this.urls = List.copyOf(urls);
+		// point in the high, broker in the low half, sorted together
+		final long[] ring = new long[urls.size() * virtualNodes];
+		int count = 0;
+		for (int broker = 0; broker < urls.size(); broker++) {
+			final int urlHash = urls.get(broker).hashCode();
+			for (int node = 0; node < virtualNodes; node++) {
+				final int point = mix(((long) urlHash << 32) | node);
+				ring[count++] = ((long) point << 32) | broker;
+			}
+		}
+		Arrays.sort(ring);
+		points = new int[count];
+		pointBrokers = new int[count];
+		for (int i = 0; i < count; i++) {
+			points[i] = (int) (ring[i] >> 32);
+			pointBrokers[i] = (int) ring[i];
+		}
+	}
+
+	/**
+	 * @param key requested tile
+	 * @return frontend of the broker the tile goes to
+	 */
+	public String brokerFor(TileKey key) {
+		return brokerFor(key, 0);
+	}
+
+	/**
+	 * @param key requested tile
+	 * @param attempt 0 for the tile's broker, 1 for the next one on the ring and so on, wrapping around
+	 * @return frontend of the broker the attempt goes to
+	 */
+	public String brokerFor(TileKey key, int attempt) {
+		return urls.get(brokersFor(key).get(attempt % urls.size()));
+	}
+
+	/**
+	 * @param key requested tile
+	 * @return index into getUrls() of every broker, in the order the tile tries them
+	 */
+	public List<Integer> brokersFor(TileKey key) {
+		int index = Arrays.binarySearch(points, mix(key.hashCode()));
+		if (index < 0) {
+			index = -index - 1;
+		}
+		final List<Integer> order = new ArrayList<>(urls.size());
+		for (int step = 0; step < points.length && order.size() < urls.size(); step++) {
+			final int broker = pointBrokers[(index + step) % points.length];
+			if (!order.contains(broker)) {
+				order.add(broker);
+			}
+		}
+		return order;
+	}
+
+	public List<String> getUrls() {
+		return urls;
+	}
+
+	public int size() {
+		return urls.size();
+	}
+
+	/**
+	 * Finalizer of SplitMix64, spreads close keys over the whole ring.
+	 */
+	private static int mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return (int) ((z ^ (z >>> 31)) >>> 32);
+	}
+}
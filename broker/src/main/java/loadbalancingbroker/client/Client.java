@@ -4,8 +4,13 @@
 package loadbalancingbroker.client;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -15,11 +20,17 @@ import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 import org.zeromq.ZMQ.Socket;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ByteString;
 
-import loadbalancingbroker.protobuf.ReplyProto.Reply;
-import loadbalancingbroker.protobuf.ReplyProto.Reply.Row;
+import loadbalancingbroker.codec.ControlHeader;
+import loadbalancingbroker.codec.ProtobufTileCodec;
+import loadbalancingbroker.codec.TileCodec;
+import loadbalancingbroker.domain.Tile;
+import loadbalancingbroker.domain.TileFormat;
+import loadbalancingbroker.domain.TileKey;
+import loadbalancingbroker.domain.TilePriority;
 import loadbalancingbroker.protobuf.RequestProto.Request;
+import loadbalancingbroker.zmqutils.FrameReader;
 import loadbalancingbroker.zmqutils.ZHelper;
 
 /**
@@ -27,18 +38,167 @@ import loadbalancingbroker.zmqutils.ZHelper;
  * This class splits tasks to paint an fractal image(mandelbrot) on JFrame
  */
 public class Client {
-	private final String url;
+	// brokers the tiles are spread over, a tile goes to the same one every time
+	private final BrokerRing brokers;
 	private boolean started = false;
 	private int countOfTasks;
 	private int width;  // image width
 	private int height; // image height
 	private BufferedImage image = null;
 	private JFrame frame;
+	// wire format of this client's requests, workers answer in the same one
+	private final TileCodec codec;
+	// context shared with broker and workers in the same JVM, null if every request opens its own context
+	private final Context sharedContext;
+	// pixel format requested from the workers
+	private TileFormat format = TileFormat.RGB;
+	// lane the broker queues this client's requests in
+	private TilePriority priority = TilePriority.INTERACTIVE;
+	// receives finished tiles instead of the window, null to paint them
+	private Consumer<Tile> tileSink = null;
+	// time to wait for a reply, and how often to send the request again after that
+	private long requestTimeoutMillis = 20_000;
+	private int requestRetries = 2;
+	// first pause after the broker rejected a request, doubled on every further rejection
+	private static final long REJECT_BACKOFF_MILLIS = 100;
+	// how long closing the cancel socket waits for the cancel to leave
+	private static final int CANCEL_LINGER_MILLIS = 1_000;
+	// empty delimiter frame, the DEALER socket of a cancel does not add it like REQ does
+	private static final byte[] EMPTY = new byte[0];
+	// job id sent with every request, the broker drops the requests of the job on cancel
+	private final long jobId;
+	// set once the view is superseded, outstanding requests are neither waited for nor sent again
+	private volatile boolean cancelled = false;
 	public Client(String url, int widthHeight) {
-		this.url = url;
+		this(null, url, widthHeight, ProtobufTileCodec.INSTANCE);
+	}
+
+	public Client(String url, int widthHeight, TileCodec codec) {
+		this(null, url, widthHeight, codec);
+	}
+
+	/**
+	 * @param sharedContext context shared by all roles of a single JVM deployment
+	 *        (required for inproc:// endpoints), or null to open an own context per request
+	 * @param url
+	 * @param widthHeight
+	 * @param codec
+	 */
+	public Client(Context sharedContext, String url, int widthHeight, TileCodec codec) {
+		this(sharedContext, List.of(url), widthHeight, codec);
+	}
+
+	/**
+	 * A client of a sharded deployment: every tile goes to the broker its key
+	 * hashes to, and to the next broker on the ring when that one does not answer.
+	 * @param sharedContext context shared by all roles of a single JVM deployment
+	 *        (required for inproc:// endpoints), or null to open an own context per request
+	 * @param urls frontend of every broker, in any order
+	 * @param widthHeight
+	 * @param codec
+	 */
+	public Client(Context sharedContext, List<String> urls, int widthHeight, TileCodec codec) {
+		this.sharedContext = sharedContext;
+		this.brokers = new BrokerRing(urls);
 		this.width = widthHeight;
 		this.height = widthHeight;
 		this.countOfTasks = width; 
+		this.codec = codec;
+		this.jobId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+	}
+
+	public TileFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @param format pixel format the workers should reply in, set before start
+	 */
+	public void setFormat(TileFormat format) {
+		this.format = format;
+	}
+
+	public TilePriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @param priority lane the broker queues the requests in, BACKGROUND for batch renders, set before start
+	 */
+	public void setPriority(TilePriority priority) {
+		this.priority = priority;
+	}
+
+	public Consumer<Tile> getTileSink() {
+		return tileSink;
+	}
+
+	/**
+	 * @param tileSink receives every finished tile as delivered by the worker,
+	 *        or null to paint the tiles into the window
+	 */
+	public void setTileSink(Consumer<Tile> tileSink) {
+		this.tileSink = tileSink;
+	}
+
+	public long getRequestTimeoutMillis() {
+		return requestTimeoutMillis;
+	}
+
+	/**
+	 * @param requestTimeoutMillis time to wait for a reply, longer than the broker takes
+	 *        to send a request to another worker, set before start
+	 */
+	public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+		this.requestTimeoutMillis = requestTimeoutMillis;
+	}
+
+	public int getRequestRetries() {
+		return requestRetries;
+	}
+
+	/**
+	 * @param requestRetries how often a request is sent again when no reply came
+	 *        or the broker rejected it, set before start
+	 */
+	public void setRequestRetries(int requestRetries) {
+		this.requestRetries = requestRetries;
+	}
+
+	public long getJobId() {
+		return jobId;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Cancels the outstanding requests, e.g. because the user moved on to
+	 * another view. The brokers drop the ones still waiting and stop the
+	 * workers computing the others; the request threads stop without
+	 * retrying and tiles that arrive anyway are not painted.
+	 */
+	public void cancel() {
+		cancelled = true;
+		final Context context = sharedContext != null ? sharedContext : ZMQ.context(1);
+		final byte[] cancel = new ControlHeader().set(ControlHeader.CANCEL, 0, 0, 0, jobId).toByteArray();
+		try {
+			// the job's requests may be at every broker
+			for (String url : brokers.getUrls()) {
+				try (Socket socket = context.socket(SocketType.DEALER)) {
+					// the cancel is not answered, it only has to leave before the socket is closed
+					socket.setLinger(CANCEL_LINGER_MILLIS);
+					socket.connect(url);
+					socket.sendMore(EMPTY);
+					socket.send(cancel);
+				}
+			}
+		} finally {
+			if (context != sharedContext) {
+				context.close();
+			}
+		}
 	}
 
 	public synchronized void start() {
@@ -82,25 +242,50 @@ public class Client {
 	}
 	
 	/**
-	 * colors image pixels based on given reply
-	 * @param reply
+	 * colors image pixels based on given tile
+	 * @param tile
 	 * @source http://zonakoda.ru/vizualizaciya-mnozhestva-mandelbrota.html
 	 */
-	private synchronized void processReply (Reply reply) {
-		// variable that represents element index
-		// from separate reply
-		int p = -1; 
-		for(int i = reply.getXBegin(); i < reply.getXEnd(); i++) {
-			p++;
-			Row row = reply.getRows(p);
-			for(int k = 0; k < height; k++) {
-				int gray = row.getGrayValues(k);
-				//color the pixel on i,k coordinate and repaint the jframe
-				image.setRGB(i, k, gray);
-				frame.repaint();
-				
-			}
+	private void processReply (Tile tile) throws IOException {
+		if (tileSink != null) {
+			// encoded tiles are handed on as they came, without decoding
+			tileSink.accept(tile);
+			return;
+		}
+		if (tile.getFormat() == TileFormat.PNG) {
+			paintEncoded(tile);
+		} else {
+			paintSamples(tile);
+		}
+	}
+
+	private synchronized void paintSamples (Tile tile) {
+		// samples are stored column by column, so every
+		// column of the tile is one bulk copy into the image
+		int[] samples = tile.getSamples();
+		int tileHeight = tile.getHeight();
+		for(int i = tile.getXBegin(); i < tile.getXEnd(); i++) {
+			int offset = (i - tile.getXBegin()) * tileHeight;
+			image.setRGB(i, tile.getYBegin(), 1, tileHeight, samples, offset, 1);
 	  	}
+		// repaint the jframe once per tile instead of once per pixel
+		frame.repaint();
+	}
+
+	/**
+	 * decodes an encoded tile for the window only, outside of the image lock
+	 * @param tile
+	 * @throws IOException
+	 */
+	private void paintEncoded (Tile tile) throws IOException {
+		BufferedImage decoded = ImageIO.read(tile.getEncoded().newInput());
+		if (decoded == null) {
+			throw new IOException("Unreadable " + tile.getFormat() + " tile");
+		}
+		synchronized (this) {
+			image.getGraphics().drawImage(decoded, tile.getXBegin(), tile.getYBegin(), null);
+			frame.repaint();
+		}
 	}
 	
 	/**
@@ -128,28 +313,64 @@ public class Client {
 	 */
 	private Runnable constructRunnable(Request request) {
 		Runnable task = () -> {
-			try (Context context = ZMQ.context(1); //
-					Socket client = context.socket(SocketType.REQ)) {
-				ZHelper.setId(client); // Set a printable identity
-				final String id = new String(client.getIdentity());
-				System.out.println("Client thread " + id + " started");
-				// connect to front-end
-				client.connect(url);
-				//send request and receive reply
-				client.send(request.toByteArray());
-				byte[] replyBytes = client.recv();
-				Reply reply;
-				try {
-					reply = Reply.parseFrom(replyBytes);
-					processReply(reply);
-				} catch (InvalidProtocolBufferException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+			final Context context = sharedContext != null ? sharedContext : ZMQ.context(1);
+			try {
+				final byte[] requestBytes = codec.encodeRequest(request);
+				final TileKey key = TileKey.of(codec, request);
+				// broker on the ring the next attempt goes to, the next one after a broker did not answer
+				int failover = 0;
+				// Lazy Pirate: a REQ socket that timed out can not send again,
+				// so every attempt gets a fresh socket
+				for (int attempt = 0; attempt <= requestRetries && !cancelled; attempt++) {
+					final String url = brokers.brokerFor(key, failover);
+					try (Socket client = context.socket(SocketType.REQ)) {
+						ZHelper.setId(client); // Set a printable identity
+						// an unanswered request must not keep the context from closing
+						client.setLinger(0);
+						client.setReceiveTimeOut((int) requestTimeoutMillis);
+						final String id = new String(client.getIdentity());
+						System.out.println("Client thread " + id + " started");
+						// connect to front-end
+						client.connect(url);
+						//send request and receive reply
+						client.send(requestBytes);
+						// the reply is parsed straight from the received frame
+						ByteString replyBytes = FrameReader.recvByteString(client);
+						if (cancelled) {
+							// the view was superseded, whatever came is of no use
+							System.out.println("Client thread " + id + " cancelled");
+							return;
+						}
+						if (replyBytes == null) {
+							System.out.println("Client thread " + id + " got no reply from " + url + " within "
+									+ requestTimeoutMillis + " ms"
+									+ (attempt < requestRetries ? ", retrying" : ", giving up"));
+							failover++;
+							continue;
+						}
+						if (replyBytes.isEmpty()) {
+							// the broker's queue was full, back off before trying again
+							System.out.println("Client thread " + id + " was rejected by the broker"
+									+ (attempt < requestRetries ? ", retrying" : ", giving up"));
+							Thread.sleep(REJECT_BACKOFF_MILLIS << attempt);
+							continue;
+						}
+						try {
+							processReply(codec.decodeReply(replyBytes));
+						} catch (IOException e) {
+							// TODO Auto-generated catch block
+							e.printStackTrace();
+						}
+						System.out.println("Client thread " + id + " terminated");
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (context != sharedContext) {
+					context.close();
 				}
-				
-				client.close();
-				System.out.println("Client thread " + id + " terminated");
-				
 			}
 		};
 		return task;
@@ -189,6 +410,9 @@ public class Client {
 				setXEnd(xBegin + imgPortionOnX).
 				setYBegin(0).
 				setYEnd(height).
+				setFormat(format.getId()).
+				setPriority(priority.getId()).
+				setJobId(jobId).
 				build();
 		return req;
 	}
@@ -0,0 +1,153 @@
+package loadbalancingbroker.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary control frame a worker puts in front of every message to the broker,
+ * and the broker in front of every message to a worker.
+ * Replaces the "READY,benchmark" and benchmark string frames, so the broker
+ * can tell a ready message from a reply without looking at client ids.
+ *
+ * <pre>
+ * [version][type][flags:2] workerId capacity metric requestId:8
+ * </pre>
+ * All numbers are little-endian, the header is {@value #SIZE} bytes long.
+ * The capacity is the number of requests the worker takes at once (its
+ * credits), every REPLY gives one of them back to the broker.
+ * The metric is a figure reported by the worker, 0 if it has none. On a
+ * REPLY it is the number of kernel iterations the tile took, the broker
+ * learns the cost of tiles from it; workers are still scored by the
+ * broker's own measurements.
+ * The requestId is set by the broker on REQUEST and echoed by the worker
+ * on the REPLY, so the broker knows which request was answered.
+ * A client sends a CANCEL header alone as request frame, its requestId is
+ * the job id of the requests to drop. The header never starts a raw or
+ * protobuf request, so the broker tells the two apart by the first byte.
+ * An instance is mutable and meant to be reused for every message.
+ */
+public class ControlHeader {
+	public static final byte VERSION = 2;
+	public static final int SIZE = 24;
+
+	/** Default heartbeat interval of broker and workers */
+	public static final long HEARTBEAT_INTERVAL_MILLIS = 1_000;
+	/** Default number of heartbeat intervals without a message before the peer counts as dead */
+	public static final int HEARTBEAT_LIVENESS = 3;
+
+	/** Worker connected and is ready for work */
+	public static final byte READY = 1;
+	/** Worker sends a reply for a client, followed by [client id][empty][reply] */
+	public static final byte REPLY = 2;
+	/** Broker or worker is alive, sent when there was nothing else to send */
+	public static final byte HEARTBEAT = 3;
+	/** Broker sends a request to a worker, followed by [client id][empty][request] */
+	public static final byte REQUEST = 4;
+	/**
+	 * Client drops the requests of a job, or the broker stops a worker computing
+	 * a request. The worker answers the request with an empty REPLY if it was not done yet.
+	 */
+	public static final byte CANCEL = 5;
+
+	private byte type;
+	private short flags;
+	private int workerId;
+	private int capacity;
+	private int metric;
+	private long requestId;
+
+	public ControlHeader() {
+	}
+
+	public ControlHeader(byte type, int workerId, int capacity, int metric) {
+		set(type, workerId, capacity, metric);
+	}
+
+	public ControlHeader set(byte type, int workerId, int capacity, int metric) {
+		return set(type, workerId, capacity, metric, 0);
+	}
+
+	public ControlHeader set(byte type, int workerId, int capacity, int metric, long requestId) {
+		this.type = type;
+		this.flags = 0;
+		this.workerId = workerId;
+		this.capacity = capacity;
+		this.metric = metric;
+		this.requestId = requestId;
+		return this;
+	}
+
+	/**
+	 * Reads the header from the given frame without allocating.
+	 * @param frame buffer positioned at the header, may be null
+	 * @return false if the frame is missing, too short or of another version
+	 */
+	public boolean read(ByteBuffer frame) {
+		if (frame == null || frame.remaining() < SIZE) {
+			return false;
+		}
+		final ByteOrder order = frame.order();
+		frame.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			final int start = frame.position();
+			if (frame.get(start) != VERSION) {
+				return false;
+			}
+			type = frame.get(start + 1);
+			flags = frame.getShort(start + 2);
+			workerId = frame.getInt(start + 4);
+			capacity = frame.getInt(start + 8);
+			metric = frame.getInt(start + 12);
+			requestId = frame.getLong(start + 16);
+			return true;
+		} finally {
+			frame.order(order);
+		}
+	}
+
+	/**
+	 * Writes the header at the position of the given buffer.
+	 */
+	public void write(ByteBuffer out) {
+		final ByteOrder order = out.order();
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		out.put(VERSION);
+		out.put(type);
+		out.putShort(flags);
+		out.putInt(workerId);
+		out.putInt(capacity);
+		out.putInt(metric);
+		out.putLong(requestId);
+		out.order(order);
+	}
+
+	public byte[] toByteArray() {
+		final ByteBuffer out = ByteBuffer.allocate(SIZE);
+		write(out);
+		return out.array();
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public short getFlags() {
+		return flags;
+	}
+
+	public int getWorkerId() {
+		return workerId;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getMetric() {
+		return metric;
+	}
+
+	public long getRequestId() {
+		return requestId;
+	}
+}
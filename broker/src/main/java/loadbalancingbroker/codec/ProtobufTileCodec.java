@@ -0,0 +1,111 @@
+package loadbalancingbroker.codec;
+
+import java.io.IOException;
+
+import com.google.protobuf.ByteString;
+
+import loadbalancingbroker.domain.Tile;
+import loadbalancingbroker.domain.TileFormat;
+import loadbalancingbroker.protobuf.ReplyProto.Reply;
+import loadbalancingbroker.protobuf.ReplyProto.Reply.Row;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+import loadbalancingbroker.zmqutils.FrameReader;
+
+/**
+ * The original wire format: Request and Reply as defined in
+ * protobuf/Request.proto and protobuf/Reply.proto.
+ */
+public class ProtobufTileCodec implements TileCodec {
+	public static final ProtobufTileCodec INSTANCE = new ProtobufTileCodec();
+
+	private ProtobufTileCodec() {
+	}
+
+	@Override
+	public String name() {
+		return "protobuf";
+	}
+
+	@Override
+	public byte[] encodeRequest(Request request) {
+		return request.toByteArray();
+	}
+
+	@Override
+	public Request decodeRequest(ByteString payload) throws IOException {
+		return Request.parseFrom(FrameReader.codedInput(payload));
+	}
+
+	@Override
+	public byte[] encodeReply(Tile tile) {
+		if (tile.getFormat() != TileFormat.RGB) {
+			return Reply.newBuilder().
+					setXBegin(tile.getXBegin()).
+					setXEnd(tile.getXEnd()).
+					setYBegin(tile.getYBegin()).
+					setYEnd(tile.getYEnd()).
+					setFormat(tile.getFormat().getId()).
+					setEncoded(tile.getEncoded()).
+					build().toByteArray();
+		}
+		final int[] samples = tile.getSamples();
+		final int height = tile.getHeight();
+		// one builder for the whole tile instead of a copy per row
+		final Reply.Builder repBuilder = Reply.newBuilder().
+				setXBegin(tile.getXBegin()).
+				setXEnd(tile.getXEnd()).
+				setYBegin(tile.getYBegin()).
+				setYEnd(tile.getYEnd());
+		final Row.Builder rowBuilder = Row.newBuilder();
+		for (int column = 0; column < tile.getWidth(); column++) {
+			rowBuilder.clear();
+			for (int k = column * height; k < (column + 1) * height; k++) {
+				rowBuilder.addGrayValues(samples[k]);
+			}
+			repBuilder.addRows(rowBuilder.build());
+		}
+		return repBuilder.build().toByteArray();
+	}
+
+	@Override
+	public Tile decodeReply(ByteString payload) throws IOException {
+		final Reply reply = Reply.parseFrom(FrameReader.codedInput(payload));
+		final long width = (long) reply.getXEnd() - reply.getXBegin();
+		final long height = (long) reply.getYEnd() - reply.getYBegin();
+		if (width < 0 || height < 0) {
+			throw new IOException("Protobuf tile bounds " + reply.getXBegin() + ".." + reply.getXEnd() + " x "
+					+ reply.getYBegin() + ".." + reply.getYEnd() + " are empty.");
+		}
+		if (reply.getFormat() != TileFormat.RGB.getId()) {
+			final TileFormat format;
+			try {
+				format = TileFormat.forId(reply.getFormat());
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Unsupported protobuf tile format " + reply.getFormat() + ".", e);
+			}
+			// aliasing is enabled, so the encoded bytes are a view on the frame
+			return new Tile(reply.getXBegin(), reply.getXEnd(), reply.getYBegin(), reply.getYEnd(),
+					format, reply.getEncoded());
+		}
+		// the frame comes from a worker, its rows must fill the tile exactly
+		if (reply.getRowsCount() != width) {
+			throw new IOException("Protobuf tile has " + reply.getRowsCount() + " rows, its bounds need " + width
+					+ ".");
+		}
+		for (Row row : reply.getRowsList()) {
+			if (row.getGrayValuesCount() != height) {
+				throw new IOException("Protobuf tile row has " + row.getGrayValuesCount()
+						+ " values, its bounds need " + height + ".");
+			}
+		}
+		final Tile tile = new Tile(reply.getXBegin(), reply.getXEnd(), reply.getYBegin(), reply.getYEnd());
+		final int[] samples = tile.getSamples();
+		for (int column = 0; column < width; column++) {
+			final Row row = reply.getRows(column);
+			for (int k = 0; k < height; k++) {
+				samples[column * (int) height + k] = row.getGrayValues(k);
+			}
+		}
+		return tile;
+	}
+}
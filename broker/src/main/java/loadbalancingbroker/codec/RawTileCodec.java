@@ -0,0 +1,196 @@
+package loadbalancingbroker.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.google.protobuf.ByteString;
+
+import loadbalancingbroker.domain.Tile;
+import loadbalancingbroker.domain.TileFormat;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+
+/**
+ * Fixed layout little-endian wire format. Samples are sent as a raw int
+ * array, so decoding a reply is a bulk copy instead of a varint per pixel.
+ *
+ * <pre>
+ * request: [magic][version][format][priority] imgWidth imgHeight xBegin xEnd yBegin yEnd [jobId]
+ * reply:   [magic][version][format][0] xBegin xEnd yBegin yEnd length data...
+ * </pre>
+ * All numbers are 32 bit little-endian, the optional jobId 64 bit. Format is
+ * the TileFormat id and priority the TilePriority id, the data of a reply is
+ * the sample array or the encoded tile, length is its size in bytes.
+ */
+public class RawTileCodec implements TileCodec {
+	public static final RawTileCodec INSTANCE = new RawTileCodec();
+
+	/**
+	 * First byte of every raw frame. A protobuf Request or Reply always starts
+	 * with the tag of field 1 (0x08), so the two formats can be told apart.
+	 */
+	public static final byte MAGIC = (byte) 0xB7;
+	public static final byte VERSION = 1;
+
+	static final int PREAMBLE_SIZE = 4;
+	static final int REQUEST_SIZE = PREAMBLE_SIZE + 6 * Integer.BYTES;
+	static final int REQUEST_JOB_SIZE = REQUEST_SIZE + Long.BYTES;
+	static final int REPLY_HEADER_SIZE = PREAMBLE_SIZE + 5 * Integer.BYTES;
+
+	private RawTileCodec() {
+	}
+
+	@Override
+	public String name() {
+		return "raw";
+	}
+
+	@Override
+	public byte[] encodeRequest(Request request) {
+		final ByteBuffer out = ByteBuffer.allocate(request.hasJobId() ? REQUEST_JOB_SIZE : REQUEST_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		putPreamble(out, (byte) request.getFormat(), (byte) request.getPriority());
+		out.putInt(request.getImgWidth());
+		out.putInt(request.getImgHeight());
+		out.putInt(request.getXBegin());
+		out.putInt(request.getXEnd());
+		out.putInt(request.getYBegin());
+		out.putInt(request.getYEnd());
+		if (request.hasJobId()) {
+			out.putLong(request.getJobId());
+		}
+		return out.array();
+	}
+
+	@Override
+	public Request decodeRequest(ByteString payload) throws IOException {
+		final ByteBuffer in = readPreamble(payload, REQUEST_SIZE);
+		final Request.Builder request = Request.newBuilder().
+				setImgWidth(in.getInt()).
+				setImgHeight(in.getInt()).
+				setXBegin(in.getInt()).
+				setXEnd(in.getInt()).
+				setYBegin(in.getInt()).
+				setYEnd(in.getInt()).
+				setFormat(formatOf(payload).getId()).
+				setPriority(payload.byteAt(3) & 0xFF);
+		if (payload.size() >= REQUEST_JOB_SIZE) {
+			request.setJobId(in.getLong());
+		}
+		return request.build();
+	}
+
+	@Override
+	public long requestedPixels(ByteString payload) throws IOException {
+		final ByteBuffer in = readPreamble(payload, REQUEST_SIZE);
+		// bounds follow the image size
+		final int bounds = in.position() + 2 * Integer.BYTES;
+		return TileCodec.pixels(in.getInt(bounds), in.getInt(bounds + 4), in.getInt(bounds + 8), in.getInt(bounds + 12));
+	}
+
+	@Override
+	public int requestedPriority(ByteString payload) throws IOException {
+		readPreamble(payload, REQUEST_SIZE);
+		return payload.byteAt(3) & 0xFF;
+	}
+
+	@Override
+	public long requestedJobId(ByteString payload) throws IOException {
+		final ByteBuffer in = readPreamble(payload, REQUEST_SIZE);
+		// the job id follows the request, the view may start anywhere in its buffer
+		final int jobId = in.position() - PREAMBLE_SIZE + REQUEST_SIZE;
+		return payload.size() >= REQUEST_JOB_SIZE ? in.getLong(jobId) : 0;
+	}
+
+	@Override
+	public byte[] encodeReply(Tile tile) {
+		final boolean encoded = tile.getFormat() != TileFormat.RGB;
+		final int length = encoded ? tile.getEncoded().size() : tile.getSamples().length * Integer.BYTES;
+		final ByteBuffer out = ByteBuffer.allocate(REPLY_HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+		putPreamble(out, (byte) tile.getFormat().getId(), (byte) 0);
+		out.putInt(tile.getXBegin());
+		out.putInt(tile.getXEnd());
+		out.putInt(tile.getYBegin());
+		out.putInt(tile.getYEnd());
+		out.putInt(length);
+		if (encoded) {
+			tile.getEncoded().copyTo(out);
+		} else {
+			out.asIntBuffer().put(tile.getSamples());
+		}
+		return out.array();
+	}
+
+	@Override
+	public Tile decodeReply(ByteString payload) throws IOException {
+		final ByteBuffer in = readPreamble(payload, REPLY_HEADER_SIZE);
+		final int xBegin = in.getInt();
+		final int xEnd = in.getInt();
+		final int yBegin = in.getInt();
+		final int yEnd = in.getInt();
+		final int length = in.getInt();
+		final TileFormat format = formatOf(payload);
+		if (xEnd < xBegin || yEnd < yBegin) {
+			throw new IOException("Raw tile bounds " + xBegin + ".." + xEnd + " x " + yBegin + ".." + yEnd
+					+ " are empty.");
+		}
+		if (format != TileFormat.RGB) {
+			if (length != in.remaining()) {
+				throw new IOException("Raw tile length " + length + " does not match frame size.");
+			}
+			// the encoded tile stays a view on the received frame
+			return new Tile(xBegin, xEnd, yBegin, yEnd, format, payload.substring(REPLY_HEADER_SIZE));
+		}
+		if (length != in.remaining() || length != ((long) xEnd - xBegin) * ((long) yEnd - yBegin) * Integer.BYTES) {
+			throw new IOException("Raw tile length " + length + " does not match tile bounds.");
+		}
+		final int[] samples = new int[length / Integer.BYTES];
+		in.asIntBuffer().get(samples);
+		return new Tile(xBegin, xEnd, yBegin, yEnd, samples);
+	}
+
+	/**
+	 * @return true if the frame starts with the raw codec magic byte
+	 */
+	public static boolean isRaw(ByteString payload) {
+		return payload.size() > 0 && payload.byteAt(0) == MAGIC;
+	}
+
+	private static void putPreamble(ByteBuffer out, byte format, byte priority) {
+		out.put(MAGIC);
+		out.put(VERSION);
+		out.put(format);
+		out.put(priority);
+	}
+
+	/**
+	 * Checks magic, version and format and returns a little-endian view
+	 * positioned behind the preamble.
+	 */
+	private static ByteBuffer readPreamble(ByteString payload, int minSize) throws IOException {
+		if (payload.size() < minSize) {
+			throw new IOException("Raw tile frame too short: " + payload.size() + " bytes.");
+		}
+		final ByteBuffer in = payload.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		final byte magic = in.get();
+		final byte version = in.get();
+		in.get();
+		in.get();
+		if (magic != MAGIC || version != VERSION) {
+			throw new IOException("Unsupported raw tile frame, magic " + magic + " version " + version + ".");
+		}
+		formatOf(payload);
+		return in;
+	}
+
+	/**
+	 * @return format stored in the preamble
+	 */
+	private static TileFormat formatOf(ByteString payload) throws IOException {
+		final byte format = payload.byteAt(2);
+		try {
+			return TileFormat.forId(format);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unsupported raw tile format " + format + ".", e);
+		}
+	}
+}
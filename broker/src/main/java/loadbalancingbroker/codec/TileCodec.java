@@ -0,0 +1,76 @@
+package loadbalancingbroker.codec;
+
+import java.io.IOException;
+
+import com.google.protobuf.ByteString;
+
+import loadbalancingbroker.domain.Tile;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+
+/**
+ * Wire format of the request and reply frames exchanged between
+ * Client and Worker. The broker passes these frames on without copying
+ * them, it only reads the size of requested tiles.
+ * Implementations are stateless and can be shared between threads.
+ */
+public interface TileCodec {
+
+	/**
+	 * @return short name used to select this codec in configuration
+	 */
+	String name();
+
+	byte[] encodeRequest(Request request);
+
+	Request decodeRequest(ByteString payload) throws IOException;
+
+	/**
+	 * Number of pixels a request asks for, without keeping the decoded request.
+	 * Codecs that can read the bounds in place override this.
+	 * @param payload request frame
+	 * @return pixels of the requested tile, 0 for empty tiles
+	 * @throws IOException if the frame is not a request of this codec
+	 */
+	default long requestedPixels(ByteString payload) throws IOException {
+		final Request request = decodeRequest(payload);
+		return pixels(request.getXBegin(), request.getXEnd(), request.getYBegin(), request.getYEnd());
+	}
+
+	/**
+	 * Priority a request asks for, without keeping the decoded request.
+	 * Codecs that can read it in place override this.
+	 * @param payload request frame
+	 * @return the TilePriority id sent by the client
+	 * @throws IOException if the frame is not a request of this codec
+	 */
+	default int requestedPriority(ByteString payload) throws IOException {
+		return decodeRequest(payload).getPriority();
+	}
+
+	/**
+	 * Job a request belongs to, read like requestedPriority.
+	 * @param payload request frame
+	 * @return the job id sent by the client, 0 if the request has none
+	 * @throws IOException if the frame is not a request of this codec
+	 */
+	default long requestedJobId(ByteString payload) throws IOException {
+		return decodeRequest(payload).getJobId();
+	}
+
+	byte[] encodeReply(Tile tile);
+
+	/**
+	 * Reply frames come from workers and are not trusted.
+	 * @param payload reply frame
+	 * @return the tile, its samples fill its bounds exactly
+	 * @throws IOException if the frame is not a reply of this codec or its samples do not match its bounds
+	 */
+	Tile decodeReply(ByteString payload) throws IOException;
+
+	/**
+	 * @return pixels within the given bounds, 0 for empty or inverted bounds
+	 */
+	static long pixels(int xBegin, int xEnd, int yBegin, int yEnd) {
+		return Math.max(0L, (long) xEnd - xBegin) * Math.max(0L, (long) yEnd - yBegin);
+	}
+}
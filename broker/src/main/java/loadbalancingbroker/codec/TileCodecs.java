@@ -0,0 +1,35 @@
+package loadbalancingbroker.codec;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Codec lookup. The client picks the codec of its connection, the worker
+ * recognises it from the request frame and answers in the same codec.
+ */
+public class TileCodecs {
+
+	private TileCodecs() {
+	}
+
+	/**
+	 * @param name "protobuf" or "raw"
+	 * @return codec with the given name
+	 */
+	public static TileCodec forName(String name) {
+		if (ProtobufTileCodec.INSTANCE.name().equals(name)) {
+			return ProtobufTileCodec.INSTANCE;
+		}
+		if (RawTileCodec.INSTANCE.name().equals(name)) {
+			return RawTileCodec.INSTANCE;
+		}
+		throw new IllegalArgumentException("Unknown tile codec " + name);
+	}
+
+	/**
+	 * @param payload request or reply frame
+	 * @return the codec the frame was encoded with
+	 */
+	public static TileCodec detect(ByteString payload) {
+		return RawTileCodec.isRaw(payload) ? RawTileCodec.INSTANCE : ProtobufTileCodec.INSTANCE;
+	}
+}
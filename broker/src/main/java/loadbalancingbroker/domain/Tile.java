@@ -0,0 +1,99 @@
+package loadbalancingbroker.domain;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A calculated part of the mandelbrot image independent of the wire codec.
+ * An RGB tile holds samples column by column, the same order as the rows of
+ * a Reply: sample (x, y) is at index (x - xBegin) * height + (y - yBegin).
+ * An encoded tile (e.g. PNG) only holds the encoded bytes.
+ */
+public class Tile {
+	private final int xBegin;
+	private final int xEnd;
+	private final int yBegin;
+	private final int yEnd;
+	private final TileFormat format;
+	private final int[] samples;
+	private final ByteString encoded;
+
+	public Tile(int xBegin, int xEnd, int yBegin, int yEnd) {
+		this(xBegin, xEnd, yBegin, yEnd, new int[(xEnd - xBegin) * (yEnd - yBegin)]);
+	}
+
+	public Tile(int xBegin, int xEnd, int yBegin, int yEnd, int[] samples) {
+		if (samples.length != (xEnd - xBegin) * (yEnd - yBegin)) {
+			throw new IllegalArgumentException("Sample count does not match tile bounds.");
+		}
+		this.xBegin = xBegin;
+		this.xEnd = xEnd;
+		this.yBegin = yBegin;
+		this.yEnd = yEnd;
+		this.format = TileFormat.RGB;
+		this.samples = samples;
+		this.encoded = null;
+	}
+
+	public Tile(int xBegin, int xEnd, int yBegin, int yEnd, TileFormat format, ByteString encoded) {
+		if (format == TileFormat.RGB) {
+			throw new IllegalArgumentException("RGB tiles hold samples, not encoded bytes.");
+		}
+		this.xBegin = xBegin;
+		this.xEnd = xEnd;
+		this.yBegin = yBegin;
+		this.yEnd = yEnd;
+		this.format = format;
+		this.samples = null;
+		this.encoded = encoded;
+	}
+
+	public int getXBegin() {
+		return xBegin;
+	}
+
+	public int getXEnd() {
+		return xEnd;
+	}
+
+	public int getYBegin() {
+		return yBegin;
+	}
+
+	public int getYEnd() {
+		return yEnd;
+	}
+
+	public int getWidth() {
+		return xEnd - xBegin;
+	}
+
+	public int getHeight() {
+		return yEnd - yBegin;
+	}
+
+	public TileFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return samples of an RGB tile, null for encoded tiles
+	 */
+	public int[] getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return encoded bytes, null for RGB tiles
+	 */
+	public ByteString getEncoded() {
+		return encoded;
+	}
+
+	public int getSample(int x, int y) {
+		return samples[(x - xBegin) * getHeight() + (y - yBegin)];
+	}
+
+	public void setSample(int x, int y, int rgb) {
+		samples[(x - xBegin) * getHeight() + (y - yBegin)] = rgb;
+	}
+}
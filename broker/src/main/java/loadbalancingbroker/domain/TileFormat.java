@@ -0,0 +1,31 @@
+package loadbalancingbroker.domain;
+
+/**
+ * Format of a calculated tile as requested by the client.
+ * The id is the value sent in the format field of Request and Reply.
+ */
+public enum TileFormat {
+	/** colored samples, the client paints them itself */
+	RGB(0),
+	/** PNG encoded by the worker, the client passes the bytes on */
+	PNG(1);
+
+	private final int id;
+
+	private TileFormat(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public static TileFormat forId(int id) {
+		for (TileFormat format : values()) {
+			if (format.id == id) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Unknown tile format " + id);
+	}
+}
@@ -0,0 +1,117 @@
+package loadbalancingbroker.domain;
+
+import loadbalancingbroker.codec.TileCodec;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+
+/**
+ * Identifies the reply to a request: two requests with equal keys are
+ * answered with the same bytes. The worker's kernel and iteration count are
+ * fixed, so the view is given by the image size alone; the codec is part of
+ * the key because replies are cached as encoded frames.
+ */
+public final class TileKey {
+	private final String codec;
+	private final int imgWidth;
+	private final int imgHeight;
+	private final int xBegin;
+	private final int xEnd;
+	private final int yBegin;
+	private final int yEnd;
+	private final int format;
+	private final int hash;
+
+	public TileKey(String codec, int imgWidth, int imgHeight, int xBegin, int xEnd, int yBegin, int yEnd,
+			int format) {
+		this.codec = codec;
+		this.imgWidth = imgWidth;
+		this.imgHeight = imgHeight;
+		this.xBegin = xBegin;
+		this.xEnd = xEnd;
+		this.yBegin = yBegin;
+		this.yEnd = yEnd;
+		this.format = format;
+		int h = codec.hashCode();
+		h = 31 * h + imgWidth;
+		h = 31 * h + imgHeight;
+		h = 31 * h + xBegin;
+		h = 31 * h + xEnd;
+		h = 31 * h + yBegin;
+		h = 31 * h + yEnd;
+		h = 31 * h + format;
+		this.hash = h;
+	}
+
+	/**
+	 * @param codec codec the request was encoded with, the reply uses the same
+	 * @param request
+	 * @return key of the reply to the request
+	 */
+	public static TileKey of(TileCodec codec, Request request) {
+		return new TileKey(codec.name(), request.getImgWidth(), request.getImgHeight(), request.getXBegin(),
+				request.getXEnd(), request.getYBegin(), request.getYEnd(), request.getFormat());
+	}
+
+	public String getCodec() {
+		return codec;
+	}
+
+	public int getImgWidth() {
+		return imgWidth;
+	}
+
+	public int getImgHeight() {
+		return imgHeight;
+	}
+
+	public int getXBegin() {
+		return xBegin;
+	}
+
+	public int getXEnd() {
+		return xEnd;
+	}
+
+	public int getYBegin() {
+		return yBegin;
+	}
+
+	public int getYEnd() {
+		return yEnd;
+	}
+
+	public int getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return pixels of the tile, 0 for empty bounds
+	 */
+	public long getPixels() {
+		return TileCodec.pixels(xBegin, xEnd, yBegin, yEnd);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof TileKey)) {
+			return false;
+		}
+		final TileKey other = (TileKey) obj;
+		return hash == other.hash && imgWidth == other.imgWidth && imgHeight == other.imgHeight
+				&& xBegin == other.xBegin && xEnd == other.xEnd && yBegin == other.yBegin && yEnd == other.yEnd
+				&& format == other.format && codec.equals(other.codec);
+	}
+
+	@Override
+	public String toString() {
+		return codec + ":" + imgWidth + "x" + imgHeight + "[" + xBegin + "," + xEnd + ")x[" + yBegin + "," + yEnd
+				+ ") format " + format;
+	}
+}
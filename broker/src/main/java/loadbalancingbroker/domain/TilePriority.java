@@ -0,0 +1,45 @@
+package loadbalancingbroker.domain;
+
+/**
+ * Priority lane of a request. Requests waiting in the broker are served
+ * lane by lane, so tiles of a user's view are not stuck behind batch work.
+ * The id is the value sent in the priority field of Request.
+ */
+public enum TilePriority {
+	/** a user waits for the tile */
+	INTERACTIVE(0),
+	/** batch rendering, served when interactive tiles leave room */
+	BACKGROUND(1);
+
+	private final int id;
+
+	private TilePriority(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public static TilePriority forId(int id) {
+		for (TilePriority priority : values()) {
+			if (priority.id == id) {
+				return priority;
+			}
+		}
+		throw new IllegalArgumentException("Unknown tile priority " + id);
+	}
+
+	/**
+	 * @param id priority sent by a client
+	 * @return lane of the id, unknown ids are served with the lowest priority
+	 */
+	public static TilePriority laneOf(int id) {
+		for (TilePriority priority : values()) {
+			if (priority.id == id) {
+				return priority;
+			}
+		}
+		return BACKGROUND;
+	}
+}
@@ -77,6 +77,32 @@ public final class ReplyProto {
      */
     loadbalancingbroker.protobuf.ReplyProto.Reply.RowOrBuilder getRowsOrBuilder(
         int index);
+
+    /**
+     * <pre>
+     * 0 = samples in rows, 1 = PNG encoded tile in encoded
+     * </pre>
+     *
+     * <code>optional int32 format = 6;</code>
+     */
+    boolean hasFormat();
+    /**
+     * <pre>
+     * 0 = samples in rows, 1 = PNG encoded tile in encoded
+     * </pre>
+     *
+     * <code>optional int32 format = 6;</code>
+     */
+    int getFormat();
+
+    /**
+     * <code>optional bytes encoded = 7;</code>
+     */
+    boolean hasEncoded();
+    /**
+     * <code>optional bytes encoded = 7;</code>
+     */
+    com.google.protobuf.ByteString getEncoded();
   }
   /**
    * Protobuf type {@code Reply}
@@ -92,6 +118,7 @@ public final class ReplyProto {
     }
     private Reply() {
       rows_ = java.util.Collections.emptyList();
+      encoded_ = com.google.protobuf.ByteString.EMPTY;
     }
 
     @java.lang.Override
@@ -147,6 +174,16 @@ public final class ReplyProto {
                   input.readMessage(loadbalancingbroker.protobuf.ReplyProto.Reply.Row.PARSER, extensionRegistry));
               break;
             }
+            case 48: {
+              bitField0_ |= 0x00000010;
+              format_ = input.readInt32();
+              break;
+            }
+            case 58: {
+              bitField0_ |= 0x00000020;
+              encoded_ = input.readBytes();
+              break;
+            }
             default: {
               if (!parseUnknownField(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -854,6 +891,44 @@ public final class ReplyProto {
       return rows_.get(index);
     }
 
+    public static final int FORMAT_FIELD_NUMBER = 6;
+    private int format_;
+    /**
+     * <pre>
+     * 0 = samples in rows, 1 = PNG encoded tile in encoded
+     * </pre>
+     *
+     * <code>optional int32 format = 6;</code>
+     */
+    public boolean hasFormat() {
+      return ((bitField0_ & 0x00000010) != 0);
+    }
+    /**
+     * <pre>
+     * 0 = samples in rows, 1 = PNG encoded tile in encoded
+     * </pre>
+     *
+     * <code>optional int32 format = 6;</code>
+     */
+    public int getFormat() {
+      return format_;
+    }
+
+    public static final int ENCODED_FIELD_NUMBER = 7;
+    private com.google.protobuf.ByteString encoded_;
+    /**
+     * <code>optional bytes encoded = 7;</code>
+     */
+    public boolean hasEncoded() {
+      return ((bitField0_ & 0x00000020) != 0);
+    }
+    /**
+     * <code>optional bytes encoded = 7;</code>
+     */
+    public com.google.protobuf.ByteString getEncoded() {
+      return encoded_;
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -899,6 +974,12 @@ public final class ReplyProto {
       for (int i = 0; i < rows_.size(); i++) {
         output.writeMessage(5, rows_.get(i));
       }
+      if (((bitField0_ & 0x00000010) != 0)) {
+        output.writeInt32(6, format_);
+      }
+      if (((bitField0_ & 0x00000020) != 0)) {
+        output.writeBytes(7, encoded_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -928,6 +1009,14 @@ public final class ReplyProto {
         size += com.google.protobuf.CodedOutputStream
           .computeMessageSize(5, rows_.get(i));
       }
+      if (((bitField0_ & 0x00000010) != 0)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(6, format_);
+      }
+      if (((bitField0_ & 0x00000020) != 0)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(7, encoded_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -965,6 +1054,16 @@ public final class ReplyProto {
       }
       if (!getRowsList()
           .equals(other.getRowsList())) return false;
+      if (hasFormat() != other.hasFormat()) return false;
+      if (hasFormat()) {
+        if (getFormat()
+            != other.getFormat()) return false;
+      }
+      if (hasEncoded() != other.hasEncoded()) return false;
+      if (hasEncoded()) {
+        if (!getEncoded()
+            .equals(other.getEncoded())) return false;
+      }
       if (!unknownFields.equals(other.unknownFields)) return false;
       return true;
     }
@@ -996,6 +1095,14 @@ public final class ReplyProto {
         hash = (37 * hash) + ROWS_FIELD_NUMBER;
         hash = (53 * hash) + getRowsList().hashCode();
       }
+      if (hasFormat()) {
+        hash = (37 * hash) + FORMAT_FIELD_NUMBER;
+        hash = (53 * hash) + getFormat();
+      }
+      if (hasEncoded()) {
+        hash = (37 * hash) + ENCODED_FIELD_NUMBER;
+        hash = (53 * hash) + getEncoded().hashCode();
+      }
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -1144,6 +1251,10 @@ public final class ReplyProto {
         } else {
           rowsBuilder_.clear();
         }
+        format_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000020);
+        encoded_ = com.google.protobuf.ByteString.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000040);
         return this;
       }
 
@@ -1197,6 +1308,14 @@ public final class ReplyProto {
         } else {
           result.rows_ = rowsBuilder_.build();
         }
+        if (((from_bitField0_ & 0x00000020) != 0)) {
+          result.format_ = format_;
+          to_bitField0_ |= 0x00000010;
+        }
+        if (((from_bitField0_ & 0x00000040) != 0)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.encoded_ = encoded_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -1284,6 +1403,12 @@ public final class ReplyProto {
             }
           }
         }
+        if (other.hasFormat()) {
+          setFormat(other.getFormat());
+        }
+        if (other.hasEncoded()) {
+          setEncoded(other.getEncoded());
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -1693,6 +1818,89 @@ public final class ReplyProto {
         }
         return rowsBuilder_;
       }
+
+      private int format_ ;
+      /**
+       * <pre>
+       * 0 = samples in rows, 1 = PNG encoded tile in encoded
+       * </pre>
+       *
+       * <code>optional int32 format = 6;</code>
+       */
+      public boolean hasFormat() {
+        return ((bitField0_ & 0x00000020) != 0);
+      }
+      /**
+       * <pre>
+       * 0 = samples in rows, 1 = PNG encoded tile in encoded
+       * </pre>
+       *
+       * <code>optional int32 format = 6;</code>
+       */
+      public int getFormat() {
+        return format_;
+      }
+      /**
+       * <pre>
+       * 0 = samples in rows, 1 = PNG encoded tile in encoded
+       * </pre>
+       *
+       * <code>optional int32 format = 6;</code>
+       */
+      public Builder setFormat(int value) {
+        bitField0_ |= 0x00000020;
+        format_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * 0 = samples in rows, 1 = PNG encoded tile in encoded
+       * </pre>
+       *
+       * <code>optional int32 format = 6;</code>
+       */
+      public Builder clearFormat() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        format_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private com.google.protobuf.ByteString encoded_ = com.google.protobuf.ByteString.EMPTY;
+      /**
+       * <code>optional bytes encoded = 7;</code>
+       */
+      public boolean hasEncoded() {
+        return ((bitField0_ & 0x00000040) != 0);
+      }
+      /**
+       * <code>optional bytes encoded = 7;</code>
+       */
+      public com.google.protobuf.ByteString getEncoded() {
+        return encoded_;
+      }
+      /**
+       * <code>optional bytes encoded = 7;</code>
+       */
+      public Builder setEncoded(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000040;
+        encoded_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional bytes encoded = 7;</code>
+       */
+      public Builder clearEncoded() {
+        bitField0_ = (bitField0_ & ~0x00000040);
+        encoded_ = getDefaultInstance().getEncoded();
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -1765,11 +1973,12 @@ public final class ReplyProto {
       descriptor;
   static {
     java.lang.String[] descriptorData = {
-      "\n\013Reply.proto\"x\n\005Reply\022\016\n\006xBegin\030\001 \002(\005\022\014" +
-      "\n\004xEnd\030\002 \002(\005\022\016\n\006yBegin\030\003 \002(\005\022\014\n\004yEnd\030\004 \002" +
-      "(\005\022\030\n\004rows\030\005 \003(\0132\n.Reply.Row\032\031\n\003Row\022\022\n\ng" +
-      "rayValues\030\001 \003(\005B*\n\034loadbalancingbroker.p" +
-      "rotobufB\nReplyProto"
+      "\n\013Reply.proto\"\231\001\n\005Reply\022\016\n\006xBegin\030\001 \002(\005\022" +
+      "\014\n\004xEnd\030\002 \002(\005\022\016\n\006yBegin\030\003 \002(\005\022\014\n\004yEnd\030\004 " +
+      "\002(\005\022\030\n\004rows\030\005 \003(\0132\n.Reply.Row\022\016\n\006format\030" +
+      "\006 \001(\005\022\017\n\007encoded\030\007 \001(\014\032\031\n\003Row\022\022\n\ngrayVal" +
+      "ues\030\001 \003(\005B*\n\034loadbalancingbroker.protobu" +
+      "fB\nReplyProto"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
         new com.google.protobuf.Descriptors.FileDescriptor.    InternalDescriptorAssigner() {
@@ -1788,7 +1997,7 @@ public final class ReplyProto {
     internal_static_Reply_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_Reply_descriptor,
-        new java.lang.String[] { "XBegin", "XEnd", "YBegin", "YEnd", "Rows", });
+        new java.lang.String[] { "XBegin", "XEnd", "YBegin", "YEnd", "Rows", "Format", "Encoded", });
     internal_static_Reply_Row_descriptor =
       internal_static_Reply_descriptor.getNestedTypes().get(0);
     internal_static_Reply_Row_fieldAccessorTable = new
@@ -71,6 +71,57 @@ public final class RequestProto {
      * <code>required int32 yEnd = 6;</code>
      */
     int getYEnd();
+
+    /**
+     * <pre>
+     * requested reply format: 0 = raw samples, 1 = PNG encoded tile
+     * </pre>
+     *
+     * <code>optional int32 format = 7;</code>
+     */
+    boolean hasFormat();
+    /**
+     * <pre>
+     * requested reply format: 0 = raw samples, 1 = PNG encoded tile
+     * </pre>
+     *
+     * <code>optional int32 format = 7;</code>
+     */
+    int getFormat();
+
+    /**
+     * <pre>
+     * priority lane of the request: 0 = interactive, 1 = background
+     * </pre>
+     *
+     * <code>optional int32 priority = 8;</code>
+     */
+    boolean hasPriority();
+    /**
+     * <pre>
+     * priority lane of the request: 0 = interactive, 1 = background
+     * </pre>
+     *
+     * <code>optional int32 priority = 8;</code>
+     */
+    int getPriority();
+
+    /**
+     * <pre>
+     * view or batch the tile belongs to, its requests are cancelled together
+     * </pre>
+     *
+     * <code>optional int64 jobId = 9;</code>
+     */
+    boolean hasJobId();
+    /**
+     * <pre>
+     * view or batch the tile belongs to, its requests are cancelled together
+     * </pre>
+     *
+     * <code>optional int64 jobId = 9;</code>
+     */
+    long getJobId();
   }
   /**
    * Protobuf type {@code Request}
@@ -141,6 +192,21 @@ public final class RequestProto {
               yEnd_ = input.readInt32();
               break;
             }
+            case 56: {
+              bitField0_ |= 0x00000040;
+              format_ = input.readInt32();
+              break;
+            }
+            case 64: {
+              bitField0_ |= 0x00000080;
+              priority_ = input.readInt32();
+              break;
+            }
+            case 72: {
+              bitField0_ |= 0x00000100;
+              jobId_ = input.readInt64();
+              break;
+            }
             default: {
               if (!parseUnknownField(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -264,6 +330,75 @@ public final class RequestProto {
       return yEnd_;
     }
 
+    public static final int FORMAT_FIELD_NUMBER = 7;
+    private int format_;
+    /**
+     * <pre>
+     * requested reply format: 0 = raw samples, 1 = PNG encoded tile
+     * </pre>
+     *
+     * <code>optional int32 format = 7;</code>
+     */
+    public boolean hasFormat() {
+      return ((bitField0_ & 0x00000040) != 0);
+    }
+    /**
+     * <pre>
+     * requested reply format: 0 = raw samples, 1 = PNG encoded tile
+     * </pre>
+     *
+     * <code>optional int32 format = 7;</code>
+     */
+    public int getFormat() {
+      return format_;
+    }
+
+    public static final int PRIORITY_FIELD_NUMBER = 8;
+    private int priority_;
+    /**
+     * <pre>
+     * priority lane of the request: 0 = interactive, 1 = background
+     * </pre>
+     *
+     * <code>optional int32 priority = 8;</code>
+     */
+    public boolean hasPriority() {
+      return ((bitField0_ & 0x00000080) != 0);
+    }
+    /**
+     * <pre>
+     * priority lane of the request: 0 = interactive, 1 = background
+     * </pre>
+     *
+     * <code>optional int32 priority = 8;</code>
+     */
+    public int getPriority() {
+      return priority_;
+    }
+
+    public static final int JOBID_FIELD_NUMBER = 9;
+    private long jobId_;
+    /**
+     * <pre>
+     * view or batch the tile belongs to, its requests are cancelled together
+     * </pre>
+     *
+     * <code>optional int64 jobId = 9;</code>
+     */
+    public boolean hasJobId() {
+      return ((bitField0_ & 0x00000100) != 0);
+    }
+    /**
+     * <pre>
+     * view or batch the tile belongs to, its requests are cancelled together
+     * </pre>
+     *
+     * <code>optional int64 jobId = 9;</code>
+     */
+    public long getJobId() {
+      return jobId_;
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -320,6 +455,15 @@ public final class RequestProto {
       if (((bitField0_ & 0x00000020) != 0)) {
         output.writeInt32(6, yEnd_);
       }
+      if (((bitField0_ & 0x00000040) != 0)) {
+        output.writeInt32(7, format_);
+      }
+      if (((bitField0_ & 0x00000080) != 0)) {
+        output.writeInt32(8, priority_);
+      }
+      if (((bitField0_ & 0x00000100) != 0)) {
+        output.writeInt64(9, jobId_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -353,6 +497,18 @@ public final class RequestProto {
         size += com.google.protobuf.CodedOutputStream
           .computeInt32Size(6, yEnd_);
       }
+      if (((bitField0_ & 0x00000040) != 0)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(7, format_);
+      }
+      if (((bitField0_ & 0x00000080) != 0)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(8, priority_);
+      }
+      if (((bitField0_ & 0x00000100) != 0)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(9, jobId_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -398,6 +554,21 @@ public final class RequestProto {
         if (getYEnd()
             != other.getYEnd()) return false;
       }
+      if (hasFormat() != other.hasFormat()) return false;
+      if (hasFormat()) {
+        if (getFormat()
+            != other.getFormat()) return false;
+      }
+      if (hasPriority() != other.hasPriority()) return false;
+      if (hasPriority()) {
+        if (getPriority()
+            != other.getPriority()) return false;
+      }
+      if (hasJobId() != other.hasJobId()) return false;
+      if (hasJobId()) {
+        if (getJobId()
+            != other.getJobId()) return false;
+      }
       if (!unknownFields.equals(other.unknownFields)) return false;
       return true;
     }
@@ -433,6 +604,19 @@ public final class RequestProto {
         hash = (37 * hash) + YEND_FIELD_NUMBER;
         hash = (53 * hash) + getYEnd();
       }
+      if (hasFormat()) {
+        hash = (37 * hash) + FORMAT_FIELD_NUMBER;
+        hash = (53 * hash) + getFormat();
+      }
+      if (hasPriority()) {
+        hash = (37 * hash) + PRIORITY_FIELD_NUMBER;
+        hash = (53 * hash) + getPriority();
+      }
+      if (hasJobId()) {
+        hash = (37 * hash) + JOBID_FIELD_NUMBER;
+        hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+            getJobId());
+      }
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -578,6 +762,12 @@ public final class RequestProto {
         bitField0_ = (bitField0_ & ~0x00000010);
         yEnd_ = 0;
         bitField0_ = (bitField0_ & ~0x00000020);
+        format_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000040);
+        priority_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000080);
+        jobId_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000100);
         return this;
       }
 
@@ -630,6 +820,18 @@ public final class RequestProto {
           result.yEnd_ = yEnd_;
           to_bitField0_ |= 0x00000020;
         }
+        if (((from_bitField0_ & 0x00000040) != 0)) {
+          result.format_ = format_;
+          to_bitField0_ |= 0x00000040;
+        }
+        if (((from_bitField0_ & 0x00000080) != 0)) {
+          result.priority_ = priority_;
+          to_bitField0_ |= 0x00000080;
+        }
+        if (((from_bitField0_ & 0x00000100) != 0)) {
+          result.jobId_ = jobId_;
+          to_bitField0_ |= 0x00000100;
+        }
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -697,6 +899,15 @@ public final class RequestProto {
         if (other.hasYEnd()) {
           setYEnd(other.getYEnd());
         }
+        if (other.hasFormat()) {
+          setFormat(other.getFormat());
+        }
+        if (other.hasPriority()) {
+          setPriority(other.getPriority());
+        }
+        if (other.hasJobId()) {
+          setJobId(other.getJobId());
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -936,6 +1147,150 @@ public final class RequestProto {
         onChanged();
         return this;
       }
+
+      private int format_ ;
+      /**
+       * <pre>
+       * requested reply format: 0 = raw samples, 1 = PNG encoded tile
+       * </pre>
+       *
+       * <code>optional int32 format = 7;</code>
+       */
+      public boolean hasFormat() {
+        return ((bitField0_ & 0x00000040) != 0);
+      }
+      /**
+       * <pre>
+       * requested reply format: 0 = raw samples, 1 = PNG encoded tile
+       * </pre>
+       *
+       * <code>optional int32 format = 7;</code>
+       */
+      public int getFormat() {
+        return format_;
+      }
+      /**
+       * <pre>
+       * requested reply format: 0 = raw samples, 1 = PNG encoded tile
+       * </pre>
+       *
+       * <code>optional int32 format = 7;</code>
+       */
+      public Builder setFormat(int value) {
+        bitField0_ |= 0x00000040;
+        format_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * requested reply format: 0 = raw samples, 1 = PNG encoded tile
+       * </pre>
+       *
+       * <code>optional int32 format = 7;</code>
+       */
+      public Builder clearFormat() {
+        bitField0_ = (bitField0_ & ~0x00000040);
+        format_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private int priority_ ;
+      /**
+       * <pre>
+       * priority lane of the request: 0 = interactive, 1 = background
+       * </pre>
+       *
+       * <code>optional int32 priority = 8;</code>
+       */
+      public boolean hasPriority() {
+        return ((bitField0_ & 0x00000080) != 0);
+      }
+      /**
+       * <pre>
+       * priority lane of the request: 0 = interactive, 1 = background
+       * </pre>
+       *
+       * <code>optional int32 priority = 8;</code>
+       */
+      public int getPriority() {
+        return priority_;
+      }
+      /**
+       * <pre>
+       * priority lane of the request: 0 = interactive, 1 = background
+       * </pre>
+       *
+       * <code>optional int32 priority = 8;</code>
+       */
+      public Builder setPriority(int value) {
+        bitField0_ |= 0x00000080;
+        priority_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * priority lane of the request: 0 = interactive, 1 = background
+       * </pre>
+       *
+       * <code>optional int32 priority = 8;</code>
+       */
+      public Builder clearPriority() {
+        bitField0_ = (bitField0_ & ~0x00000080);
+        priority_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private long jobId_ ;
+      /**
+       * <pre>
+       * view or batch the tile belongs to, its requests are cancelled together
+       * </pre>
+       *
+       * <code>optional int64 jobId = 9;</code>
+       */
+      public boolean hasJobId() {
+        return ((bitField0_ & 0x00000100) != 0);
+      }
+      /**
+       * <pre>
+       * view or batch the tile belongs to, its requests are cancelled together
+       * </pre>
+       *
+       * <code>optional int64 jobId = 9;</code>
+       */
+      public long getJobId() {
+        return jobId_;
+      }
+      /**
+       * <pre>
+       * view or batch the tile belongs to, its requests are cancelled together
+       * </pre>
+       *
+       * <code>optional int64 jobId = 9;</code>
+       */
+      public Builder setJobId(long value) {
+        bitField0_ |= 0x00000100;
+        jobId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * view or batch the tile belongs to, its requests are cancelled together
+       * </pre>
+       *
+       * <code>optional int64 jobId = 9;</code>
+       */
+      public Builder clearJobId() {
+        bitField0_ = (bitField0_ & ~0x00000100);
+        jobId_ = 0L;
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -1003,11 +1358,12 @@ public final class RequestProto {
       descriptor;
   static {
     java.lang.String[] descriptorData = {
-      "\n\rRequest.proto\"j\n\007Request\022\020\n\010imgWidth\030\001" +
-      " \002(\005\022\021\n\timgHeight\030\002 \002(\005\022\016\n\006xBegin\030\003 \002(\005\022" +
-      "\014\n\004xEnd\030\004 \002(\005\022\016\n\006yBegin\030\005 \002(\005\022\014\n\004yEnd\030\006 " +
-      "\002(\005B,\n\034loadbalancingbroker.protobufB\014Req" +
-      "uestProto"
+      "\n\rRequest.proto\"\233\001\n\007Request\022\020\n\010imgWidth\030" +
+      "\001 \002(\005\022\021\n\timgHeight\030\002 \002(\005\022\016\n\006xBegin\030\003 \002(\005" +
+      "\022\014\n\004xEnd\030\004 \002(\005\022\016\n\006yBegin\030\005 \002(\005\022\014\n\004yEnd\030\006" +
+      " \002(\005\022\016\n\006format\030\007 \001(\005\022\020\n\010priority\030\010 \001(\005\022\r" +
+      "\n\005jobId\030\t \001(\003B,\n\034loadbalancingbroker.pro" +
+      "tobufB\014RequestProto"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
         new com.google.protobuf.Descriptors.FileDescriptor.    InternalDescriptorAssigner() {
@@ -1026,7 +1382,7 @@ public final class RequestProto {
     internal_static_Request_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_Request_descriptor,
-        new java.lang.String[] { "ImgWidth", "ImgHeight", "XBegin", "XEnd", "YBegin", "YEnd", });
+        new java.lang.String[] { "ImgWidth", "ImgHeight", "XBegin", "XEnd", "YBegin", "YEnd", "Format", "Priority", "JobId", });
   }
 
   // @@protoc_insertion_point(outer_class_scope)
@@ -0,0 +1,163 @@
+package loadbalancingbroker.worker;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import loadbalancingbroker.domain.Tile;
+
+/**
+ * Minimal PNG encoder tuned for speed: 8 bit RGB, one filter type for
+ * all scanlines and a single IDAT chunk. The deflater and the scanline
+ * buffers are reused, so an instance must only be used by one thread.
+ */
+public class PngEncoder {
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final int BYTES_PER_PIXEL = 3;
+
+	/**
+	 * PNG scanline filter types, see https://www.w3.org/TR/PNG/#9Filters
+	 */
+	public enum Filter {
+		NONE(0), SUB(1), UP(2), AVERAGE(3), PAETH(4);
+
+		private final int type;
+
+		private Filter(int type) {
+			this.type = type;
+		}
+	}
+
+	private final Deflater deflater;
+	private final Filter filter;
+	private final CRC32 crc = new CRC32();
+	private byte[] scanline = new byte[0];
+	private byte[] prior = new byte[0];
+	private byte[] filtered = new byte[0];
+	private byte[] compressed = new byte[8192];
+
+	/**
+	 * @param deflateLevel 0 (store) to 9 (best compression), 1 is fastest
+	 * @param filter scanline filter applied to every row
+	 */
+	public PngEncoder(int deflateLevel, Filter filter) {
+		this.deflater = new Deflater(deflateLevel);
+		// filtered image data compresses better with less string matching
+		if (filter != Filter.NONE) {
+			deflater.setStrategy(Deflater.FILTERED);
+		}
+		this.filter = filter;
+	}
+
+	/**
+	 * Encodes the samples of the given RGB tile.
+	 * @param tile
+	 * @return PNG file contents
+	 */
+	public byte[] encode(Tile tile) {
+		final int width = tile.getWidth();
+		final int height = tile.getHeight();
+		final int[] samples = tile.getSamples();
+		final int rowBytes = width * BYTES_PER_PIXEL;
+		if (scanline.length < rowBytes) {
+			scanline = new byte[rowBytes];
+			prior = new byte[rowBytes];
+			filtered = new byte[rowBytes + 1];
+		}
+		Arrays.fill(prior, 0, rowBytes, (byte) 0);
+
+		deflater.reset();
+		int compressedLength = 0;
+		for (int y = 0; y < height; y++) {
+			// samples are stored column by column, scanlines are rows
+			for (int x = 0, i = 0; x < width; x++) {
+				final int rgb = samples[x * height + y];
+				scanline[i++] = (byte) (rgb >> 16);
+				scanline[i++] = (byte) (rgb >> 8);
+				scanline[i++] = (byte) rgb;
+			}
+			filterScanline(rowBytes);
+			deflater.setInput(filtered, 0, rowBytes + 1);
+			while (!deflater.needsInput()) {
+				compressedLength = deflateInto(compressedLength);
+			}
+			final byte[] swap = prior;
+			prior = scanline;
+			scanline = swap;
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			compressedLength = deflateInto(compressedLength);
+		}
+
+		final ByteBuffer png = ByteBuffer.allocate(SIGNATURE.length + 3 * 12 + 13 + compressedLength);
+		png.put(SIGNATURE);
+		final ByteBuffer header = ByteBuffer.allocate(13);
+		header.putInt(width).putInt(height);
+		// bit depth 8, color type 2 (RGB), deflate, adaptive filtering, no interlace
+		header.put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+		writeChunk(png, "IHDR", header.array(), 13);
+		writeChunk(png, "IDAT", compressed, compressedLength);
+		writeChunk(png, "IEND", compressed, 0);
+		return png.array();
+	}
+
+	private int deflateInto(int length) {
+		if (length == compressed.length) {
+			compressed = Arrays.copyOf(compressed, compressed.length * 2);
+		}
+		return length + deflater.deflate(compressed, length, compressed.length - length);
+	}
+
+	private void filterScanline(int rowBytes) {
+		filtered[0] = (byte) filter.type;
+		for (int i = 0; i < rowBytes; i++) {
+			final int raw = scanline[i] & 0xFF;
+			final int left = i >= BYTES_PER_PIXEL ? scanline[i - BYTES_PER_PIXEL] & 0xFF : 0;
+			final int up = prior[i] & 0xFF;
+			final int upLeft = i >= BYTES_PER_PIXEL ? prior[i - BYTES_PER_PIXEL] & 0xFF : 0;
+			final int predicted;
+			switch (filter) {
+			case SUB:
+				predicted = left;
+				break;
+			case UP:
+				predicted = up;
+				break;
+			case AVERAGE:
+				predicted = (left + up) >>> 1;
+				break;
+			case PAETH:
+				predicted = paeth(left, up, upLeft);
+				break;
+			default:
+				predicted = 0;
+			}
+			filtered[i + 1] = (byte) (raw - predicted);
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		final int p = a + b - c;
+		final int pa = Math.abs(p - a);
+		final int pb = Math.abs(p - b);
+		final int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	private void writeChunk(ByteBuffer png, String type, byte[] data, int length) {
+		png.putInt(length);
+		final int typeStart = png.position();
+		for (int i = 0; i < 4; i++) {
+			png.put((byte) type.charAt(i));
+		}
+		png.put(data, 0, length);
+		crc.reset();
+		crc.update(png.array(), typeStart, 4 + length);
+		png.putInt((int) crc.getValue());
+	}
+}
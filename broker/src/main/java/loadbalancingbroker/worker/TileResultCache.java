@@ -0,0 +1,119 @@
+package loadbalancingbroker.worker;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Replies a worker computed, kept so a tile requested again is answered
+ * without computing it. With affinity the broker sends a region to the
+ * worker that computed it before, so a repeated render finds it here even
+ * when the broker's own cache dropped it or another broker took the request.
+ *
+ * Replies are kept encoded, up to a byte budget; the least recently used
+ * ones are evicted first. Not thread-safe, used by the worker thread only.
+ */
+public class TileResultCache {
+
+	/** an encoded reply and the kernel iterations it took */
+	public static class Result {
+		private final byte[] reply;
+		private final long iterations;
+
+		private Result(byte[] reply, long iterations) {
+			this.reply = reply;
+			this.iterations = iterations;
+		}
+
+		public byte[] getReply() {
+			return reply;
+		}
+
+		public long getIterations() {
+			return iterations;
+		}
+	}
+
+	private final long budgetBytes;
+	// access ordered, the eldest entry is the least recently used
+	private final LinkedHashMap<TileKey, Result> results = new LinkedHashMap<>(64, 0.75f, true);
+	private long usedBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param budgetBytes bytes of cached replies, positive
+	 */
+	public TileResultCache(long budgetBytes) {
+		if (budgetBytes <= 0) {
+			throw new IllegalArgumentException("Worker cache budget must be positive, got " + budgetBytes);
+		}
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * @param key
+	 * @return the cached result, or null on a miss
+	 */
+	public Result get(TileKey key) {
+		final Result result = results.get(key);
+		if (result == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return result;
+	}
+
+	/**
+	 * Stores a reply, evicting least recently used ones to make room.
+	 * Replies larger than the whole budget are not stored.
+	 * @param key
+	 * @param reply encoded reply, not changed afterwards
+	 * @param iterations kernel iterations the tile took
+	 */
+	public void put(TileKey key, byte[] reply, long iterations) {
+		if (reply.length > budgetBytes) {
+			return;
+		}
+		final Result replaced = results.put(key, new Result(reply, iterations));
+		if (replaced != null) {
+			usedBytes -= replaced.reply.length;
+		}
+		usedBytes += reply.length;
+		for (Iterator<Result> eldest = results.values().iterator(); usedBytes > budgetBytes;) {
+			usedBytes -= eldest.next().reply.length;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	/**
+	 * @return bytes of cached replies
+	 */
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+}
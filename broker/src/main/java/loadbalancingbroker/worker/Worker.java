@@ -4,31 +4,118 @@
 package loadbalancingbroker.worker;
 
 import java.awt.Color;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
 
 import org.zeromq.SocketType;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Poller;
 import org.zeromq.ZMQ.Socket;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
+import loadbalancingbroker.codec.ControlHeader;
+import loadbalancingbroker.codec.TileCodec;
+import loadbalancingbroker.codec.TileCodecs;
 import loadbalancingbroker.domain.Complex;
-import loadbalancingbroker.protobuf.ReplyProto.Reply;
-import loadbalancingbroker.protobuf.ReplyProto.Reply.Row;
+import loadbalancingbroker.domain.Tile;
+import loadbalancingbroker.domain.TileFormat;
+import loadbalancingbroker.domain.TileKey;
 import loadbalancingbroker.protobuf.RequestProto.Request;
+import loadbalancingbroker.zmqutils.FrameWriter;
 import loadbalancingbroker.zmqutils.ZHelper;
+import zmq.Msg;
 
 public class Worker {
-	private final String url;
+	// brokers this worker takes requests from, each has a connection of its own
+	private final List<BrokerConnection> connections = new ArrayList<>();
 	private boolean started = false;
-	private Integer benchmark;
 	private final int ITERATION_NUM = 255;
+	// requests the broker may queue at this worker, the next ones wait in
+	// the socket while the current one is computed
+	private int credits = 2;
+	// empty delimiter frame, a DEALER socket does not add it like REQ did
+	private static final byte[] EMPTY = new byte[0];
+	// longest pause between reconnects, in heartbeat intervals
+	private static final int MAX_RECONNECT_BACKOFF = 32;
+	// heartbeats: how often they are sent, and how many may be missed before the broker is lost
+	private long heartbeatIntervalMillis = ControlHeader.HEARTBEAT_INTERVAL_MILLIS;
+	private int heartbeatLiveness = ControlHeader.HEARTBEAT_LIVENESS;
+	// numeric id sent in the control header
+	private final int workerId;
+	// context shared with broker and clients in the same JVM, null if the worker owns its context
+	private final Context sharedContext;
+	// PNG encoding of tiles requested in TileFormat.PNG, tuned for speed by default
+	private int pngDeflateLevel = Deflater.BEST_SPEED;
+	private PngEncoder.Filter pngFilter = PngEncoder.Filter.SUB;
+	// kernel iterations of the last computed tile, reported as the metric of its reply
+	private long iterations;
+	// samples computed between two looks for a cancel of the tile
+	private static final int CANCEL_CHECK_SAMPLES = 64;
+	// frames of the message being received
+	private final ArrayList<Msg> receiving = new ArrayList<>();
+	// bytes of replies kept to answer repeated requests, 0 to compute every request
+	private long resultCacheBytes = 0;
+	// kept across reconnects, the broker sends this worker the same regions again
+	private TileResultCache resultCache;
+
+	/** connection to one broker, with its own liveness and reconnect backoff */
+	private static class BrokerConnection {
+		private final String url;
+		// null while the broker is lost and the reconnect is not due yet
+		private Socket socket;
+		private String id;
+		// messages that arrived while a tile was computed, served before the socket is read again
+		private final ArrayDeque<Msg[]> backlog = new ArrayDeque<>();
+		private long lastReceived;
+		private long lastSent;
+		// true once the broker answered on the current socket
+		private boolean brokerSeen;
+		// pause before the next reconnect, and when it is due
+		private long reconnectDelay;
+		private long reconnectAt;
+
+		private BrokerConnection(String url) {
+			this.url = url;
+		}
+	}
+
 	public Worker(String url) {
-		this.url = url;
-		this.benchmark = ThreadLocalRandom.current().nextInt(1, 11);
+		this(null, url);
+	}
+
+	/**
+	 * @param sharedContext context shared by all roles of a single JVM deployment
+	 *        (required for inproc:// endpoints), or null to open an own context
+	 * @param url
+	 */
+	public Worker(Context sharedContext, String url) {
+		this(sharedContext, List.of(url));
+	}
+
+	/**
+	 * A worker that registers with several brokers: every broker may queue as
+	 * many requests at it as it has credits, the worker serves them in turn.
+	 * @param sharedContext context shared by all roles of a single JVM deployment
+	 *        (required for inproc:// endpoints), or null to open an own context
+	 * @param urls backend of every broker, at least one
+	 */
+	public Worker(Context sharedContext, List<String> urls) {
+		if (urls.isEmpty()) {
+			throw new IllegalArgumentException("Worker needs at least one broker");
+		}
+		this.sharedContext = sharedContext;
+		for (String url : urls) {
+			connections.add(new BrokerConnection(url));
+		}
+		this.workerId = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
 	}
 
 	public synchronized void start() {
@@ -36,82 +123,413 @@ public class Worker {
 			throw new IllegalStateException("Worker already started.");
 		}
 		started = true;
-		try (Context context = ZMQ.context(1); //
-				Socket worker = context.socket(SocketType.REQ)) {
-			// Prepare our context and sockets
-			ZHelper.setId(worker); // Set a printable identity
-			final String id = new String(worker.getIdentity());
-			System.out.println("Worker thread " + id + " started");
+		final Context context = sharedContext != null ? sharedContext : ZMQ.context(1);
+		try {
+			// reused for every message and every connection
+			final ControlHeader header = new ControlHeader();
+			final PngEncoder pngEncoder = new PngEncoder(pngDeflateLevel, pngFilter);
+			resultCache = resultCacheBytes > 0 ? new TileResultCache(resultCacheBytes) : null;
+			serve(context, header, pngEncoder);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (context != sharedContext) {
+				context.close();
+			}
+			started = false;
+		}
+	}
 
-			// connect to back-end
-			worker.connect(url);
+	/**
+	 * Connects to every broker and serves their requests, one message at a
+	 * time and the brokers in turn, until the worker is interrupted.
+	 * Paranoid Pirate: when a broker goes silent, its socket is dropped and
+	 * connected again with a new one, waiting longer after every failure; the
+	 * other brokers are served meanwhile.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void serve(Context context, ControlHeader header, PngEncoder pngEncoder)
+			throws IOException, InterruptedException {
+		// connections with an open socket, in the order they are registered with the poller
+		final List<BrokerConnection> polled = new ArrayList<>();
+		Poller items = null;
+		// true when a socket was opened or closed, the poller is built anew
+		boolean changed = true;
+		// connection looked at first, every broker gets its turn
+		int turn = 0;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long now = System.currentTimeMillis();
+				long nextReconnect = Long.MAX_VALUE;
+				for (BrokerConnection connection : connections) {
+					if (connection.socket == null && now >= connection.reconnectAt) {
+						connect(context, connection, header, now);
+						changed = true;
+					} else if (connection.socket == null) {
+						nextReconnect = Math.min(nextReconnect, connection.reconnectAt);
+					}
+				}
+				if (changed) {
+					if (items != null) {
+						items.close();
+					}
+					polled.clear();
+					for (BrokerConnection connection : connections) {
+						if (connection.socket != null) {
+							polled.add(connection);
+						}
+					}
+					items = context.poller(polled.size());
+					for (BrokerConnection connection : polled) {
+						items.register(connection.socket, Poller.POLLIN);
+					}
+					changed = false;
+				}
+				if (polled.isEmpty()) {
+					// all brokers lost, wait for the next reconnect
+					Thread.sleep(Math.max(1, nextReconnect - now));
+					continue;
+				}
 
-			// Tell back-end we're ready for work 
-			// and append to ready a benchmark of currentworker
-			worker.send("READY"+","+benchmark);
+				// requests that arrived while a tile was computed first, then the sockets
+				BrokerConnection from = null;
+				Msg[] message = null;
+				for (int i = 0; i < polled.size() && message == null; i++) {
+					from = polled.get((turn + i) % polled.size());
+					message = from.backlog.poll();
+				}
+				if (message == null) {
+					from = null;
+					// wake up for heartbeats, and for the reconnect of a lost broker
+					if (items.poll(Math.max(1, Math.min(heartbeatIntervalMillis, nextReconnect - now))) < 0)
+						return;
+					now = System.currentTimeMillis();
+					for (int i = 0; i < polled.size(); i++) {
+						final int index = (turn + i) % polled.size();
+						final BrokerConnection connection = polled.get(index);
+						if (items.pollin(index)) {
+							if (message == null) {
+								message = receiveMessage(connection.socket, ZMQ.DONTWAIT);
+								from = connection;
+							}
+						} else if (now - connection.lastReceived >= heartbeatIntervalMillis * heartbeatLiveness) {
+							System.out.println("Worker thread " + connection.id + " heard nothing from broker "
+									+ connection.url + " for " + heartbeatLiveness + " heartbeats");
+							disconnect(connection, now);
+							changed = true;
+						}
+					}
+				}
+				turn++;
 
-			while (!Thread.currentThread().isInterrupted()) {
-				String address = worker.recvStr();
-				String empty = worker.recvStr();
-				assert (empty.length() == 0);
-
-				// Get request, send reply
-				byte[] reqBytes = worker.recv();
-				Request req = Request.parseFrom(reqBytes);
-				int imgWidth = req.getImgWidth();
-				int imgHeight = req.getImgHeight();
-				int xBegin = req.getXBegin();
-				int xEnd = req.getXEnd();
-				int yBegin = req.getYBegin();
-				int yEnd = req.getYEnd();
-				double x0 = (3*imgWidth/4);
-				double y0 = (imgHeight/2);
-				double lengthOfXoY = imgWidth*0.47;
-				System.out.println("Worker thread " + id + " with benchmark - "+benchmark+" recv from " + address);
-				Reply rep = Reply.getDefaultInstance();
-				
-				rep.newBuilder();
-				rep = rep.toBuilder().
-				    	setXBegin(xBegin).
-				    	setXEnd(xEnd).
-				    	setYBegin(yBegin).
-				    	setYEnd(yEnd).
-				    	build();
-			    for (int i = xBegin; i < xEnd; i++) {
-			    	List<Integer> list = new ArrayList<>();
-					for(int j = yBegin; j < yEnd; j++) {
-		        		
-		        		double x = (i-x0)/lengthOfXoY;
-		        		double y = (j - y0)/lengthOfXoY;
-		        		Complex z = new Complex(x, y);
-		        		int gray = getGray(z); 
-		        		list.add(gray);
+				if (message != null) {
+					// any message tells that the broker is alive
+					from.lastReceived = now;
+					from.brokerSeen = true;
+					handle(from, message, header, pngEncoder);
+				}
+
+				// keep the brokers from declaring us dead while there is nothing to reply
+				now = System.currentTimeMillis();
+				for (BrokerConnection connection : polled) {
+					if (connection.socket != null && now - connection.lastSent >= heartbeatIntervalMillis) {
+						connection.socket.sendMore(EMPTY);
+						connection.socket.send(header.set(ControlHeader.HEARTBEAT, workerId, credits, 0).toByteArray());
+						connection.lastSent = now;
 					}
-		        	rep = rep.toBuilder().addRows(Row.newBuilder().addAllGrayValues(list).build()).build();
-		        }
-				//System.out.println("Worker thread " + id + " with benchmark - "+benchmark+" recv from " + address + ": " + request);
-
-				worker.sendMore(address);
-				worker.sendMore("");
-				worker.sendMore(String.valueOf(benchmark));
-				worker.sendMore("");
-				worker.send(rep.toByteArray());
+				}
 			}
-		} catch (InvalidProtocolBufferException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		} finally {
-			started = false;
+			if (items != null) {
+				items.close();
+			}
+			for (BrokerConnection connection : connections) {
+				if (connection.socket != null) {
+					connection.socket.close();
+					connection.socket = null;
+				}
+			}
 		}
 	}
 
-	public Integer getBenchmark() {
-		return benchmark;
+	/**
+	 * Handles one message of a broker: [empty][control header] and, for a request, [address][empty][request].
+	 * @throws IOException
+	 */
+	private void handle(BrokerConnection from, Msg[] message, ControlHeader header, PngEncoder pngEncoder)
+			throws IOException {
+		if (message.length < 2 || !header.read(message[1].buf())) {
+			System.out.println("Worker thread " + from.id + " dropped message with unsupported control header");
+		} else if (header.getType() == ControlHeader.REQUEST && message.length == 5) {
+			final long requestId = header.getRequestId();
+			final Msg address = message[2];
+
+			// Get request, parse it straight from the received frame, send reply
+			ByteString reqBytes = UnsafeByteOperations.unsafeWrap(message[4].buf());
+			// answer in the codec the client chose for its request
+			TileCodec codec = TileCodecs.detect(reqBytes);
+			Request req = codec.decodeRequest(reqBytes);
+			System.out.println("Worker thread " + from.id + " recv from " + new String(address.data(), ZMQ.CHARSET));
+			final TileKey key = resultCache != null ? TileKey.of(codec, req) : null;
+			final TileResultCache.Result cached = key != null ? resultCache.get(key) : null;
+			if (cached != null) {
+				// computed before, the reply reports the iterations it took then
+				iterations = cached.getIterations();
+				sendReply(from, header, requestId, address, cached.getReply());
+				return;
+			}
+			Tile tile = computeTile(req, from, header, requestId);
+			if (tile == null) {
+				// cancelled, the empty reply only gives the credit back
+				System.out.println("Worker thread " + from.id + " cancelled request " + requestId);
+				sendReply(from, header, requestId, address, EMPTY);
+				return;
+			}
+			if (req.getFormat() == TileFormat.PNG.getId()) {
+				// colorize and encode here, the client passes the bytes on
+				tile = new Tile(tile.getXBegin(), tile.getXEnd(), tile.getYBegin(), tile.getYEnd(),
+						TileFormat.PNG, UnsafeByteOperations.unsafeWrap(pngEncoder.encode(tile)));
+			}
+			//System.out.println("Worker thread " + id + " recv from " + address + ": " + request);
+
+			// the reply names the request and gives the credit back
+			final byte[] reply = codec.encodeReply(tile);
+			if (key != null) {
+				resultCache.put(key, reply, iterations);
+			}
+			sendReply(from, header, requestId, address, reply);
+		} else if (header.getType() == ControlHeader.CANCEL) {
+			// the request is done already or still waits in the backlog
+			cancelWaiting(from, header, header.getRequestId());
+		}
+		// anything else is a heartbeat of the broker, nothing else to do
+	}
+
+	/**
+	 * Opens a new socket to a broker and tells it we're ready for work and how
+	 * many requests we take at once, the broker scores this worker by measuring its replies.
+	 */
+	private void connect(Context context, BrokerConnection connection, ControlHeader header, long now) {
+		final Socket socket = context.socket(SocketType.DEALER);
+		// the identity follows the worker id, so the broker finds the reconnected worker in its old slot
+		// instead of taking a new one for every connection
+		ZHelper.setId(socket, workerId);
+		// requests queued for a lost connection are dropped, the broker sends them elsewhere
+		socket.setLinger(0);
+		connection.id = new String(socket.getIdentity());
+		System.out.println("Worker thread " + connection.id + " started");
+
+		// connect to back-end
+		socket.connect(connection.url);
+		socket.sendMore(EMPTY);
+		socket.send(header.set(ControlHeader.READY, workerId, credits, 0).toByteArray());
+		connection.socket = socket;
+		connection.brokerSeen = false;
+		connection.lastReceived = now;
+		connection.lastSent = now;
+	}
+
+	/**
+	 * Drops the socket of a silent broker and schedules the reconnect, waiting
+	 * longer after every failure as long as the broker does not answer.
+	 */
+	private void disconnect(BrokerConnection connection, long now) {
+		connection.socket.close();
+		connection.socket = null;
+		connection.backlog.clear();
+		if (connection.brokerSeen || connection.reconnectDelay == 0) {
+			connection.reconnectDelay = heartbeatIntervalMillis;
+		}
+		System.out.println("Worker lost broker " + connection.url + ", reconnecting in "
+				+ connection.reconnectDelay + " ms");
+		connection.reconnectAt = now + connection.reconnectDelay;
+		connection.reconnectDelay = Math.min(connection.reconnectDelay * 2,
+				heartbeatIntervalMillis * MAX_RECONNECT_BACKOFF);
+	}
+
+	public long getHeartbeatIntervalMillis() {
+		return heartbeatIntervalMillis;
+	}
+
+	/**
+	 * @param heartbeatIntervalMillis how often heartbeats are sent, the broker should use the same interval
+	 */
+	public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
 	}
 
-	public void setBenchmark(Integer benchmark) {
-		this.benchmark = benchmark;
+	public int getHeartbeatLiveness() {
+		return heartbeatLiveness;
 	}
+
+	/**
+	 * @param heartbeatLiveness heartbeat intervals without a message after which the broker counts as lost
+	 */
+	public void setHeartbeatLiveness(int heartbeatLiveness) {
+		this.heartbeatLiveness = heartbeatLiveness;
+	}
+
+	public int getCredits() {
+		return credits;
+	}
+
+	/**
+	 * @param credits requests the broker may queue at this worker, at least 1, takes effect on start
+	 */
+	public void setCredits(int credits) {
+		if (credits < 1) {
+			throw new IllegalArgumentException("Worker needs at least one credit, got " + credits);
+		}
+		this.credits = credits;
+	}
+
+	public int getPngDeflateLevel() {
+		return pngDeflateLevel;
+	}
+
+	/**
+	 * @param pngDeflateLevel 0 (store) to 9 (best compression), takes effect on start
+	 */
+	public void setPngDeflateLevel(int pngDeflateLevel) {
+		this.pngDeflateLevel = pngDeflateLevel;
+	}
+
+	public long getResultCacheBytes() {
+		return resultCacheBytes;
+	}
+
+	/**
+	 * @param resultCacheBytes bytes of replies kept to answer repeated requests, 0 to compute every request,
+	 *        takes effect on start
+	 */
+	public void setResultCacheBytes(long resultCacheBytes) {
+		this.resultCacheBytes = resultCacheBytes;
+	}
+
+	/**
+	 * @return cache of computed replies, null if the worker does not cache them or was not started
+	 */
+	public TileResultCache getResultCache() {
+		return resultCache;
+	}
+
+	public PngEncoder.Filter getPngFilter() {
+		return pngFilter;
+	}
+
+	/**
+	 * @param pngFilter scanline filter of encoded tiles, takes effect on start
+	 */
+	public void setPngFilter(PngEncoder.Filter pngFilter) {
+		this.pngFilter = pngFilter;
+	}
+	/**
+	 * Calculates the color of every pixel of the requested image part.
+	 * Looks for a cancel of the request every few samples.
+	 * @param req
+	 * @param from connection the request came from
+	 * @param header reused for the messages that arrive meanwhile
+	 * @param requestId broker's id of the request
+	 * @return calculated tile, null if the broker cancelled the request
+	 */
+	private Tile computeTile(Request req, BrokerConnection from, ControlHeader header, long requestId) {
+		int imgWidth = req.getImgWidth();
+		int imgHeight = req.getImgHeight();
+		double x0 = (3*imgWidth/4);
+		double y0 = (imgHeight/2);
+		double lengthOfXoY = imgWidth*0.47;
+		Tile tile = new Tile(req.getXBegin(), req.getXEnd(), req.getYBegin(), req.getYEnd());
+		iterations = 0;
+		int samples = 0;
+		for (int i = tile.getXBegin(); i < tile.getXEnd(); i++) {
+			for (int j = tile.getYBegin(); j < tile.getYEnd(); j++) {
+				if (++samples % CANCEL_CHECK_SAMPLES == 0 && cancelArrived(from, header, requestId)) {
+					return null;
+				}
+				double x = (i-x0)/lengthOfXoY;
+				double y = (j - y0)/lengthOfXoY;
+				Complex z = new Complex(x, y);
+				tile.setSample(i, j, getGray(z));
+			}
+		}
+		return tile;
+	}
+
+	/**
+	 * Takes the messages the broker of the request sent while a tile is computed. Requests and
+	 * heartbeats wait in its backlog, cancels are served right away. Request ids are the broker's,
+	 * so only its own cancels matter; the other brokers' messages wait in their sockets.
+	 * @return true if the request being computed was cancelled
+	 */
+	private boolean cancelArrived(BrokerConnection from, ControlHeader header, long requestId) {
+		boolean cancelled = false;
+		Msg[] message;
+		while ((message = receiveMessage(from.socket, ZMQ.DONTWAIT)) != null) {
+			if (message.length < 2 || !header.read(message[1].buf()) || header.getType() != ControlHeader.CANCEL) {
+				from.backlog.add(message);
+			} else if (header.getRequestId() == requestId) {
+				cancelled = true;
+			} else {
+				cancelWaiting(from, header, header.getRequestId());
+			}
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Drops a request that waits in the backlog and gives its credit back.
+	 * @return true if the request was waiting
+	 */
+	private boolean cancelWaiting(BrokerConnection from, ControlHeader header, long requestId) {
+		for (Iterator<Msg[]> waiting = from.backlog.iterator(); waiting.hasNext();) {
+			final Msg[] message = waiting.next();
+			if (message.length == 5 && header.read(message[1].buf())
+					&& header.getType() == ControlHeader.REQUEST && header.getRequestId() == requestId) {
+				waiting.remove();
+				sendReply(from, header, requestId, message[2], EMPTY);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sends [empty][REPLY header][address][empty][reply], an empty reply only gives the credit back.
+	 */
+	private void sendReply(BrokerConnection to, ControlHeader header, long requestId, Msg address, byte[] reply) {
+		final Socket worker = to.socket;
+		worker.sendMore(EMPTY);
+		worker.sendMore(header.set(ControlHeader.REPLY, workerId, credits,
+				(int) Math.min(iterations, Integer.MAX_VALUE), requestId).toByteArray());
+		FrameWriter.send(worker, address, true);
+		worker.sendMore(EMPTY);
+		worker.send(reply);
+		to.lastSent = System.currentTimeMillis();
+	}
+
+	/**
+	 * Receives all frames of the next message.
+	 * @param flags 0 to wait for it, or ZMQ.DONTWAIT
+	 * @return frames, null if there is no message or receiving was interrupted
+	 */
+	private Msg[] receiveMessage(Socket worker, int flags) {
+		Msg msg = worker.base().recv(flags);
+		while (msg != null) {
+			receiving.add(msg);
+			if (!msg.hasMore()) {
+				break;
+			}
+			msg = worker.base().recv(0);
+		}
+		final Msg[] message = msg != null ? receiving.toArray(new Msg[receiving.size()]) : null;
+		receiving.clear();
+		return message;
+	}
+
 	/**
 	 * Calculates if complex number in mandelbrot set.
 	 * Retruns grayscale color value exact for one pixel
@@ -123,6 +541,7 @@ public class Worker {
 	private int getGray (Complex z0) {
 		Complex z = new Complex(z0);
 		for(int gray = ITERATION_NUM; gray >0; gray-- ) {
+			iterations++;
 			if(z.abs() > 2)
 				return Color.HSBtoRGB((float)gray / ITERATION_NUM, 0.5f, 1f);
 			z = z.power(2).add(z0);
@@ -0,0 +1,62 @@
+package loadbalancingbroker.zmqutils;
+
+import java.nio.ByteBuffer;
+
+import zmq.Msg;
+
+/**
+ * Frames received on and sent to one socket, seen by the thread that routes
+ * them. Either the socket itself, see SocketFrameChannel, or a stage that owns
+ * the socket on another thread and hands whole messages over.
+ */
+public interface FrameChannel {
+
+	/**
+	 * Receives a small envelope frame, only valid until the next call.
+	 * @return frame ready for reading, or null if interrupted
+	 */
+	ByteBuffer recvEnvelope();
+
+	/**
+	 * Receives a frame as message, to be passed on with send.
+	 * @return received message, or null if interrupted
+	 */
+	Msg recvMsg();
+
+	/**
+	 * Drops the remaining frames of the current message.
+	 */
+	void skipRemaining();
+
+	/**
+	 * Sends a previously received frame.
+	 * @param msg
+	 * @param more true if more frames of the same message follow
+	 * @return false if sending was interrupted
+	 */
+	boolean send(Msg msg, boolean more);
+
+	/**
+	 * Sends a frame that was sent before once more, sharing its bytes.
+	 * @param msg
+	 * @param more true if more frames of the same message follow
+	 * @return false if sending was interrupted
+	 */
+	default boolean resend(Msg msg, boolean more) {
+		return send(new Msg(msg.buf()), more);
+	}
+
+	/**
+	 * Sends a frame, more frames of the same message follow.
+	 * @param frame
+	 * @return false if sending was interrupted
+	 */
+	boolean sendMore(byte[] frame);
+
+	/**
+	 * Sends the last frame of a message.
+	 * @param frame
+	 * @return false if sending was interrupted
+	 */
+	boolean send(byte[] frame);
+}
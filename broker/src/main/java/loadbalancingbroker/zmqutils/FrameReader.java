@@ -0,0 +1,100 @@
+package loadbalancingbroker.zmqutils;
+
+import java.nio.ByteBuffer;
+
+import org.zeromq.ZMQ.Socket;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.UnsafeByteOperations;
+
+import zmq.Msg;
+
+/**
+ * Receives frames from a socket without copying them into a fresh byte[].
+ * Envelope frames (identities, empty delimiters) are read into a reusable
+ * direct buffer, payload frames are handed out as views on the buffer of
+ * the received message itself.
+ */
+public class FrameReader {
+	// ZeroMQ identities are at most 255 bytes, so envelope frames always fit
+	private static final int ENVELOPE_CAPACITY = 256;
+
+	private final ByteBuffer envelope = ByteBuffer.allocateDirect(ENVELOPE_CAPACITY);
+
+	/**
+	 * Receives a small envelope frame into the reusable direct buffer.
+	 * The returned buffer is only valid until the next call.
+	 * @param socket
+	 * @return envelope buffer ready for reading, or null if interrupted
+	 */
+	public ByteBuffer recvEnvelope(Socket socket) {
+		envelope.clear();
+		if (socket.recvByteBuffer(envelope, 0) < 0) {
+			return null;
+		}
+		envelope.flip();
+		return envelope;
+	}
+
+	/**
+	 * Receives a frame as message, to be passed on with FrameWriter.send.
+	 * @param socket
+	 * @return received message, or null if interrupted
+	 */
+	public static Msg recvMsg(Socket socket) {
+		return socket.base().recv(0);
+	}
+
+	/**
+	 * Receives and drops the remaining frames of the current message.
+	 * @param socket
+	 */
+	public static void skipRemaining(Socket socket) {
+		while (socket.hasReceiveMore()) {
+			if (socket.base().recv(0) == null) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Receives a payload frame as a view on the message buffer.
+	 * Not made read-only on purpose: protobuf copies read-only heap buffers
+	 * before parsing them.
+	 * @param socket
+	 * @return view on the frame, or null if interrupted
+	 */
+	public static ByteBuffer recvPayload(Socket socket) {
+		final Msg msg = socket.base().recv(0);
+		if (msg == null) {
+			return null;
+		}
+		return msg.buf();
+	}
+
+	/**
+	 * Receives a payload frame as a ByteString view, no bytes are copied.
+	 * @param socket
+	 * @return view on the frame, or null if interrupted
+	 */
+	public static ByteString recvByteString(Socket socket) {
+		final ByteBuffer payload = recvPayload(socket);
+		if (payload == null) {
+			return null;
+		}
+		return UnsafeByteOperations.unsafeWrap(payload);
+	}
+
+	/**
+	 * Creates a CodedInputStream reading straight from the given view.
+	 * Aliasing is enabled so bytes fields are parsed as views as well.
+	 * @param payload
+	 * @return input stream over the payload
+	 */
+	public static CodedInputStream codedInput(ByteString payload) {
+		final CodedInputStream input = payload.newCodedInput();
+		input.enableAliasing(true);
+		return input;
+	}
+}
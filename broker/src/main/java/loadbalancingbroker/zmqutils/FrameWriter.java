@@ -0,0 +1,70 @@
+package loadbalancingbroker.zmqutils;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+import zmq.Msg;
+
+/**
+ * Sends frames without copying their payload. Received frames are passed
+ * on as the same zmq.Msg, so on inproc:// sockets the buffer written by
+ * the sender is handed to the receiver by reference.
+ */
+public class FrameWriter {
+
+	private FrameWriter() {
+	}
+
+	/**
+	 * Sends a previously received frame.
+	 * @param to
+	 * @param msg
+	 * @param more true if more frames of the same message follow
+	 * @return false if sending was interrupted
+	 */
+	public static boolean send(Socket to, Msg msg, boolean more) {
+		return to.base().send(msg, more ? ZMQ.SNDMORE : 0);
+	}
+
+	/**
+	 * Sends a frame that was sent before once more. The new frame shares
+	 * the bytes of the old one, nothing is copied.
+	 * @param to
+	 * @param msg
+	 * @param more true if more frames of the same message follow
+	 * @return false if sending was interrupted
+	 */
+	public static boolean resend(Socket to, Msg msg, boolean more) {
+		return send(to, new Msg(msg.buf()), more);
+	}
+
+	/**
+	 * Receives the next frame from one socket and sends it on another one.
+	 * @param from
+	 * @param to
+	 * @param more true if more frames of the same message follow
+	 * @return false if receiving or sending was interrupted
+	 */
+	public static boolean forward(Socket from, Socket to, boolean more) {
+		final Msg msg = from.base().recv(0);
+		if (msg == null) {
+			return false;
+		}
+		return send(to, msg, more);
+	}
+
+	/**
+	 * Receives the next frame from one channel and sends it on another one.
+	 * @param from
+	 * @param to
+	 * @param more true if more frames of the same message follow
+	 * @return false if receiving or sending was interrupted
+	 */
+	public static boolean forward(FrameChannel from, FrameChannel to, boolean more) {
+		final Msg msg = from.recvMsg();
+		if (msg == null) {
+			return false;
+		}
+		return to.send(msg, more);
+	}
+}
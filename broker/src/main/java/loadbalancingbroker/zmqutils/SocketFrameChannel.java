@@ -0,0 +1,50 @@
+package loadbalancingbroker.zmqutils;
+
+import java.nio.ByteBuffer;
+
+import org.zeromq.ZMQ.Socket;
+
+import zmq.Msg;
+
+/**
+ * Frames of a socket used by the calling thread itself. Envelope frames are
+ * read into a reusable buffer, nothing is copied or queued.
+ */
+public class SocketFrameChannel implements FrameChannel {
+	private final Socket socket;
+	private final FrameReader frames = new FrameReader();
+
+	public SocketFrameChannel(Socket socket) {
+		this.socket = socket;
+	}
+
+	@Override
+	public ByteBuffer recvEnvelope() {
+		return frames.recvEnvelope(socket);
+	}
+
+	@Override
+	public Msg recvMsg() {
+		return FrameReader.recvMsg(socket);
+	}
+
+	@Override
+	public void skipRemaining() {
+		FrameReader.skipRemaining(socket);
+	}
+
+	@Override
+	public boolean send(Msg msg, boolean more) {
+		return FrameWriter.send(socket, msg, more);
+	}
+
+	@Override
+	public boolean sendMore(byte[] frame) {
+		return socket.sendMore(frame);
+	}
+
+	@Override
+	public boolean send(byte[] frame) {
+		return socket.send(frame);
+	}
+}
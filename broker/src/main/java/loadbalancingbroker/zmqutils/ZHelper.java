@@ -40,4 +40,13 @@ public class ZHelper {
 
 		sock.setIdentity(identity.getBytes(ZMQ.CHARSET));
 	}
+
+	/**
+	 * Sets a printable identity derived from the given id, the same for every socket of that id.
+	 */
+	public static void setId(Socket sock, int id) {
+		String identity = String.format("%04X-%04X", id >>> 16, id & 0xFFFF);
+
+		sock.setIdentity(identity.getBytes(ZMQ.CHARSET));
+	}
 }
@@ -0,0 +1,109 @@
+package loadbalancingbroker.broker;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Index rebuild, compaction and segment rolling of the tile store.
+ */
+public class DiskTileStoreTest {
+	// smallest cap with the smallest segments, 64 KiB each
+	private static final long MAX_BYTES = 256 * 1024;
+	// about sixty of them fit into a segment
+	private static final int VALUE_LENGTH = 1000;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void reopenFindsStoredTiles() throws IOException {
+		try (DiskTileStore store = new DiskTileStore(directory, MAX_BYTES)) {
+			for (int column = 0; column < 10; column++) {
+				assertTrue(store.put(key(column), ByteBuffer.wrap(value(column, 0))));
+			}
+		}
+
+		try (DiskTileStore store = new DiskTileStore(directory, MAX_BYTES)) {
+			assertEquals(10, store.size());
+			assertEquals(1, store.getSegmentCount());
+			for (int column = 0; column < 10; column++) {
+				assertArrayEquals(value(column, 0), store.get(key(column)));
+			}
+		}
+	}
+
+	@Test
+	public void compactionKeepsLatestValuePerKey() throws IOException {
+		try (DiskTileStore store = new DiskTileStore(directory, MAX_BYTES)) {
+			store.put(key(1), ByteBuffer.wrap(value(1, 0)));
+			store.put(key(1), ByteBuffer.wrap(value(1, 1)));
+			// overwriting the second tile fills the first segment with garbage and rolls
+			for (int version = 0; version < 100; version++) {
+				store.put(key(2), ByteBuffer.wrap(value(2, version)));
+			}
+			assertEquals(2, store.getSegmentCount());
+
+			assertEquals(1, store.compact());
+			assertEquals(1, store.getSegmentCount());
+			assertEquals(2, store.size());
+			assertArrayEquals(value(1, 1), store.get(key(1)));
+			assertArrayEquals(value(2, 99), store.get(key(2)));
+		}
+
+		try (DiskTileStore store = new DiskTileStore(directory, MAX_BYTES)) {
+			assertEquals(1, store.getSegmentCount());
+			assertEquals(2, store.size());
+			assertArrayEquals(value(1, 1), store.get(key(1)));
+			assertArrayEquals(value(2, 99), store.get(key(2)));
+		}
+	}
+
+	@Test
+	public void reopenAfterRoll() throws IOException {
+		try (DiskTileStore store = new DiskTileStore(directory, MAX_BYTES)) {
+			for (int column = 0; column < 150; column++) {
+				store.put(key(column), ByteBuffer.wrap(value(column, 0)));
+			}
+			assertEquals(3, store.getSegmentCount());
+		}
+
+		try (DiskTileStore store = new DiskTileStore(directory, MAX_BYTES)) {
+			assertEquals(3, store.getSegmentCount());
+			assertEquals(150, store.size());
+			for (int column = 0; column < 150; column++) {
+				assertArrayEquals(value(column, 0), store.get(key(column)));
+			}
+			// appended behind the records of the last segment, not over them
+			store.put(key(150), ByteBuffer.wrap(value(150, 0)));
+			assertEquals(3, store.getSegmentCount());
+		}
+
+		try (DiskTileStore store = new DiskTileStore(directory, MAX_BYTES)) {
+			assertEquals(151, store.size());
+			assertArrayEquals(value(0, 0), store.get(key(0)));
+			assertArrayEquals(value(150, 0), store.get(key(150)));
+		}
+	}
+
+	private static TileKey key(int column) {
+		return new TileKey("raw", 700, 700, column, column + 1, 0, 700, 0);
+	}
+
+	private static byte[] value(int column, int version) {
+		final byte[] value = new byte[VALUE_LENGTH];
+		for (int i = 0; i < VALUE_LENGTH; i++) {
+			value[i] = (byte) (column * 31 + version + i);
+		}
+		return value;
+	}
+}
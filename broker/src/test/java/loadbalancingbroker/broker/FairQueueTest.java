@@ -0,0 +1,98 @@
+package loadbalancingbroker.broker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Deficit round robin of the clients of a lane, by the pixels they request.
+ */
+public class FairQueueTest {
+	private static final long QUANTUM = 4_000;
+	private static final long FLOODING = 1;
+	private static final long LIGHT = 2;
+
+	private long nextRequestId = 1;
+
+	@Test
+	public void floodingClientGetsSameShareOfPixels() {
+		final FairQueue queue = new FairQueue(QUANTUM, 0, ArrayDeque::new);
+		// the flooding client was first and sent many large tiles
+		for (int i = 0; i < 100; i++) {
+			queue.offer(request(FLOODING, 4_000));
+		}
+		for (int i = 0; i < 10; i++) {
+			queue.offer(request(LIGHT, 1_000));
+		}
+
+		final long[] pixels = new long[3];
+		int lightServed = 0;
+		while (lightServed < 10) {
+			final InFlightRequest request = queue.poll();
+			pixels[(int) request.getJobId()] += request.getPixels();
+			if (request.getJobId() == LIGHT) {
+				lightServed++;
+			}
+		}
+		// both get a quantum per turn, the light client needs three turns for its tiles
+		assertEquals(10_000, pixels[(int) LIGHT]);
+		assertEquals(3 * QUANTUM, pixels[(int) FLOODING]);
+		assertEquals(1, queue.flowCount());
+		assertEquals(97, queue.size());
+	}
+
+	@Test
+	public void tileLargerThanQuantumWaitsForEnoughTurns() {
+		final FairQueue queue = new FairQueue(QUANTUM, 0, ArrayDeque::new);
+		queue.offer(request(FLOODING, 10_000));
+		for (int i = 0; i < 20; i++) {
+			queue.offer(request(LIGHT, 1_000));
+		}
+
+		// the large tile's client saves up its quanta for two turns and is served on the third
+		for (int i = 0; i < 8; i++) {
+			assertEquals(LIGHT, queue.poll().getJobId());
+		}
+		assertEquals(FLOODING, queue.poll().getJobId());
+		assertEquals(LIGHT, queue.poll().getJobId());
+	}
+
+	@Test
+	public void clientLimitTurnsAwayItsRequestsOnly() {
+		final FairQueue queue = new FairQueue(QUANTUM, 2, ArrayDeque::new);
+		assertTrue(queue.offer(request(FLOODING, 1_000)));
+		assertTrue(queue.offer(request(FLOODING, 1_000)));
+		assertFalse(queue.offer(request(FLOODING, 1_000)));
+		assertTrue(queue.offer(request(LIGHT, 1_000)));
+		assertEquals(3, queue.size());
+
+		// once one of its requests is served the client may queue again
+		assertEquals(FLOODING, queue.poll().getJobId());
+		assertTrue(queue.offer(request(FLOODING, 1_000)));
+	}
+
+	@Test
+	public void removeIfDropsClientWithItsRequests() {
+		final FairQueue queue = new FairQueue(QUANTUM, 0, ArrayDeque::new);
+		queue.offer(request(FLOODING, 1_000));
+		queue.offer(request(FLOODING, 1_000));
+		queue.offer(request(LIGHT, 1_000));
+
+		assertTrue(queue.removeIf(request -> request.getJobId() == FLOODING));
+		assertEquals(1, queue.size());
+		assertEquals(1, queue.flowCount());
+		assertEquals(LIGHT, queue.poll().getJobId());
+		assertNull(queue.poll());
+	}
+
+	private InFlightRequest request(long jobId, long pixels) {
+		final InFlightRequest request = new InFlightRequest(nextRequestId++, null, null, pixels);
+		request.setJobId(jobId);
+		return request;
+	}
+}
@@ -0,0 +1,132 @@
+package loadbalancingbroker.broker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Order of the idle worker heap: best score first, equal scores take turns.
+ */
+public class IdleWorkerIndexTest {
+	private static final int MAX_SCORE = 10;
+	private static final int SLOTS = 50;
+
+	@Test
+	public void containsEverySlotAfterScoreUpdates() {
+		final Random random = new Random(42);
+		final IdleWorkerIndex index = new IdleWorkerIndex(1);
+		for (int slot = 0; slot < SLOTS; slot++) {
+			index.offer(slot, 1 + random.nextInt(MAX_SCORE));
+		}
+		for (int i = 0; i < 10_000; i++) {
+			final int slot = random.nextInt(SLOTS);
+			// offering an idle worker again only updates its score
+			if (random.nextBoolean()) {
+				assertTrue(index.updateScore(slot, 1 + random.nextInt(MAX_SCORE)));
+			} else {
+				index.offer(slot, 1 + random.nextInt(MAX_SCORE));
+			}
+		}
+		assertEquals(SLOTS, index.size());
+
+		final boolean[] polled = new boolean[SLOTS];
+		int previousScore = Integer.MAX_VALUE;
+		while (!index.isEmpty()) {
+			final int slot = index.peek();
+			final int score = index.scoreOf(slot);
+			assertEquals(slot, index.poll());
+			assertFalse(polled[slot]);
+			assertTrue(score <= previousScore);
+			polled[slot] = true;
+			previousScore = score;
+		}
+		for (int slot = 0; slot < SLOTS; slot++) {
+			assertTrue(polled[slot]);
+		}
+	}
+
+	@Test
+	public void agreesWithScanningModel() {
+		final Random random = new Random(42);
+		final IdleWorkerIndex index = new IdleWorkerIndex(1);
+		final boolean[] idle = new boolean[SLOTS];
+		final int[] scores = new int[SLOTS];
+		final long[] since = new long[SLOTS];
+		long stamp = 0;
+		for (int i = 0; i < 200_000; i++) {
+			final int slot = random.nextInt(SLOTS);
+			final int score = 1 + random.nextInt(MAX_SCORE);
+			switch (random.nextInt(4)) {
+			case 0:
+				index.offer(slot, score);
+				if (!idle[slot]) {
+					idle[slot] = true;
+					since[slot] = stamp++;
+				}
+				scores[slot] = score;
+				break;
+			case 1:
+				// best score first, the longest idle among equals
+				int best = -1;
+				for (int s = 0; s < SLOTS; s++) {
+					if (idle[s] && (best < 0 || scores[s] > scores[best]
+							|| (scores[s] == scores[best] && since[s] < since[best]))) {
+						best = s;
+					}
+				}
+				assertEquals(best, index.poll());
+				if (best >= 0) {
+					idle[best] = false;
+				}
+				break;
+			case 2:
+				assertEquals(idle[slot], index.remove(slot));
+				idle[slot] = false;
+				break;
+			default:
+				assertEquals(idle[slot], index.updateScore(slot, score));
+				if (idle[slot]) {
+					scores[slot] = score;
+				}
+			}
+			int expectedSize = 0;
+			for (int s = 0; s < SLOTS; s++) {
+				expectedSize += idle[s] ? 1 : 0;
+			}
+			assertEquals(expectedSize, index.size());
+		}
+	}
+
+	@Test
+	public void everyWorkerGetsWorkWithEqualScores() {
+		final Random random = new Random(42);
+		final IdleWorkerIndex index = new IdleWorkerIndex();
+		final int[] scores = new int[SLOTS];
+		for (int slot = 0; slot < SLOTS; slot++) {
+			// few distinct scores, many workers share one
+			scores[slot] = 1 + random.nextInt(3);
+			index.offer(slot, scores[slot]);
+		}
+		// as in the broker: dispatch to the best idle worker, or let the oldest busy one reply
+		final long[] used = new long[SLOTS];
+		final ArrayDeque<Integer> busy = new ArrayDeque<>();
+		for (int i = 0; i < 100_000; i++) {
+			if (!index.isEmpty() && (busy.isEmpty() || random.nextBoolean())) {
+				final int slot = index.poll();
+				used[slot]++;
+				busy.addLast(slot);
+			} else {
+				final int slot = busy.pollFirst();
+				index.offer(slot, scores[slot]);
+			}
+		}
+		for (int slot = 0; slot < SLOTS; slot++) {
+			assertTrue(used[slot] > 0);
+		}
+	}
+}
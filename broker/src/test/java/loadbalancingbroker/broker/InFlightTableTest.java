@@ -0,0 +1,112 @@
+package loadbalancingbroker.broker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lookups in the in-flight table after removals shifted entries back.
+ */
+public class InFlightTableTest {
+	// a table sized for one request has 16 buckets
+	private static final int BUCKETS = 16;
+
+	@Test
+	public void removeInsideCollisionChain() {
+		// three ids share a bucket, the fourth one's home is taken by the second
+		final List<Long> chain = idsWithHome(3, 3);
+		final long displaced = idsWithHome(4, 1).get(0);
+		final InFlightTable table = new InFlightTable(1);
+		final Map<Long, InFlightRequest> requests = new HashMap<>();
+		for (long id : chain) {
+			requests.put(id, put(table, id));
+		}
+		requests.put(displaced, put(table, displaced));
+
+		// the gap in the middle of the chain is closed by the entries behind it
+		assertSame(requests.get(chain.get(1)), table.remove(chain.get(1)));
+		assertEquals(3, table.size());
+		assertNull(table.get(chain.get(1)));
+		assertSame(requests.get(chain.get(0)), table.get(chain.get(0)));
+		assertSame(requests.get(chain.get(2)), table.get(chain.get(2)));
+		assertSame(requests.get(displaced), table.get(displaced));
+
+		assertSame(requests.get(chain.get(0)), table.remove(chain.get(0)));
+		assertSame(requests.get(chain.get(2)), table.get(chain.get(2)));
+		assertSame(requests.get(displaced), table.get(displaced));
+	}
+
+	@Test
+	public void removeInsideChainWrappingAround() {
+		// the chain starts in the last bucket and goes on in the first ones
+		final List<Long> chain = idsWithHome(BUCKETS - 1, 3);
+		final InFlightTable table = new InFlightTable(1);
+		final Map<Long, InFlightRequest> requests = new HashMap<>();
+		for (long id : chain) {
+			requests.put(id, put(table, id));
+		}
+
+		assertSame(requests.get(chain.get(0)), table.remove(chain.get(0)));
+		assertNull(table.get(chain.get(0)));
+		assertSame(requests.get(chain.get(1)), table.get(chain.get(1)));
+		assertSame(requests.get(chain.get(2)), table.get(chain.get(2)));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void agreesWithMapUnderRandomOperations() {
+		final Random random = new Random(42);
+		final InFlightTable table = new InFlightTable(1);
+		final Map<Long, InFlightRequest> model = new HashMap<>();
+		for (int i = 0; i < 100_000; i++) {
+			// few ids, so chains form and entries are removed again and again
+			final long id = 1 + random.nextInt(64);
+			switch (random.nextInt(3)) {
+			case 0:
+				model.put(id, put(table, id));
+				break;
+			case 1:
+				assertSame(model.remove(id), table.remove(id));
+				break;
+			default:
+				assertSame(model.get(id), table.get(id));
+			}
+			assertEquals(model.size(), table.size());
+		}
+		final List<InFlightRequest> visited = new ArrayList<>();
+		table.forEach(visited::add);
+		assertEquals(model.size(), visited.size());
+		for (InFlightRequest request : visited) {
+			assertSame(model.get(request.getRequestId()), request);
+		}
+	}
+
+	private static InFlightRequest put(InFlightTable table, long id) {
+		final InFlightRequest request = new InFlightRequest(id, null, null, 1);
+		table.put(request);
+		return request;
+	}
+
+	/**
+	 * @return the first ids whose home is the given bucket of a table with 16 buckets,
+	 *         hashed as InFlightTable does
+	 */
+	private static List<Long> idsWithHome(int bucket, int count) {
+		final List<Long> ids = new ArrayList<>();
+		for (long id = 1; ids.size() < count; id++) {
+			final long hash = id * 0x9E3779B97F4A7C15L;
+			if (((int) (hash ^ (hash >>> 32)) & (BUCKETS - 1)) == bucket) {
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,137 @@
+package loadbalancingbroker.broker;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+import loadbalancingbroker.codec.ControlHeader;
+import loadbalancingbroker.codec.RawTileCodec;
+import loadbalancingbroker.protobuf.RequestProto.Request;
+
+/**
+ * Cancel of a job at a broker in the same JVM, with a worker and a client
+ * speaking the wire protocol by hand.
+ */
+public class LBBrokerCancelTest {
+	private static final String FRONTEND_URL = "inproc://cancel-frontend";
+	private static final String BACKEND_URL = "inproc://cancel-backend";
+	private static final byte[] EMPTY = new byte[0];
+	private static final int WORKER_ID = 7;
+	private static final long JOB_ID = 42;
+	// how long a frame that should come may take, and how long one that should not is waited for
+	private static final int RECEIVE_TIMEOUT_MILLIS = 2_000;
+	private static final int SILENCE_MILLIS = 500;
+
+	private Context context;
+	private Socket worker;
+	private Socket client;
+
+	@BeforeEach
+	public void startBroker() throws InterruptedException {
+		context = ZMQ.context(1);
+		final LBBroker broker = new LBBroker(context, FRONTEND_URL, BACKEND_URL);
+		// no heartbeats or timeouts while the test runs
+		broker.setHeartbeatIntervalMillis(60_000);
+		broker.setRequestTimeoutMillis(60_000);
+		final Thread thread = new Thread(broker::start, "cancel-test-broker");
+		thread.setDaemon(true);
+		thread.start();
+		// inproc:// needs the broker bound before anyone connects
+		Thread.sleep(200);
+
+		worker = context.socket(SocketType.DEALER);
+		worker.setReceiveTimeOut(RECEIVE_TIMEOUT_MILLIS);
+		worker.connect(BACKEND_URL);
+		// one credit, the other requests of the job wait in the broker's queue
+		worker.sendMore(EMPTY);
+		worker.send(new ControlHeader().set(ControlHeader.READY, WORKER_ID, 1, 0).toByteArray());
+
+		client = context.socket(SocketType.DEALER);
+		client.setReceiveTimeOut(RECEIVE_TIMEOUT_MILLIS);
+		client.connect(FRONTEND_URL);
+	}
+
+	@AfterEach
+	public void stopBroker() {
+		worker.close();
+		client.close();
+		// ends the broker's poll, it closes its sockets
+		context.close();
+	}
+
+	@Test
+	public void cancelledJobGetsNoReplies() {
+		for (int column = 0; column < 3; column++) {
+			client.sendMore(EMPTY);
+			client.send(request(column));
+		}
+		final ControlHeader dispatched = receiveHeader(worker);
+		assertNotNull(dispatched);
+		assertEquals(ControlHeader.REQUEST, dispatched.getType());
+		final byte[] clientId = worker.recv();
+		worker.recv();
+		worker.recv();
+
+		client.sendMore(EMPTY);
+		client.send(new ControlHeader().set(ControlHeader.CANCEL, 0, 0, 0, JOB_ID).toByteArray());
+
+		// the worker is told to stop the dispatched request
+		final ControlHeader cancel = receiveHeader(worker);
+		assertNotNull(cancel);
+		assertEquals(ControlHeader.CANCEL, cancel.getType());
+		assertEquals(dispatched.getRequestId(), cancel.getRequestId());
+		// every request of the job is answered with the empty reply of a rejected one
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(EMPTY, client.recv());
+			assertArrayEquals(EMPTY, client.recv());
+		}
+
+		// the worker finished before it saw the cancel, its reply is dropped
+		worker.sendMore(EMPTY);
+		worker.sendMore(new ControlHeader().set(ControlHeader.REPLY, WORKER_ID, 1, 0, dispatched.getRequestId())
+				.toByteArray());
+		worker.sendMore(clientId);
+		worker.sendMore(EMPTY);
+		worker.send(new byte[] { 1, 2, 3 });
+
+		client.setReceiveTimeOut(SILENCE_MILLIS);
+		assertNull(client.recv());
+		// the credit is back, but the queued requests of the job were dropped
+		worker.setReceiveTimeOut(SILENCE_MILLIS);
+		assertNull(receiveHeader(worker));
+	}
+
+	private static byte[] request(int column) {
+		return RawTileCodec.INSTANCE.encodeRequest(Request.newBuilder().
+				setImgWidth(700).
+				setImgHeight(700).
+				setXBegin(column).
+				setXEnd(column + 1).
+				setYBegin(0).
+				setYEnd(700).
+				setJobId(JOB_ID).
+				build());
+	}
+
+	/**
+	 * @return control header of the next message of the broker, null if none comes in time
+	 */
+	private static ControlHeader receiveHeader(Socket worker) {
+		if (worker.recv() == null) {
+			return null;
+		}
+		final ControlHeader header = new ControlHeader();
+		return header.read(ByteBuffer.wrap(worker.recv())) ? header : null;
+	}
+}
@@ -0,0 +1,120 @@
+package loadbalancingbroker.broker;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recovery of the request journal after a restart and deletion of its segments.
+ */
+public class RequestJournalTest {
+	private static final int RECORD_HEADER = 21;
+	private static final int RECORD_TRAILER = 4;
+	private static final int CLIENT_ID_LENGTH = 5;
+	private static final int REQUEST_LENGTH = 10;
+	// two of them fit into a segment, the third one starts the next
+	private static final int LARGE_REQUEST_LENGTH = 3 * 1024 * 1024;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void recoveryStopsBeforeTornLastRecord() throws IOException {
+		try (RequestJournal journal = new RequestJournal(directory)) {
+			for (long requestId = 1; requestId <= 3; requestId++) {
+				journal.accepted(requestId, ByteBuffer.wrap(clientId(requestId)),
+						ByteBuffer.wrap(request(requestId, REQUEST_LENGTH)));
+			}
+		}
+		// the broker died while writing the crc of the third record
+		final int recordLength = RECORD_HEADER + CLIENT_ID_LENGTH + REQUEST_LENGTH + RECORD_TRAILER;
+		final int crcOffset = 3 * recordLength - RECORD_TRAILER;
+		try (FileChannel channel = FileChannel.open(directory.resolve("journal-000001.log"),
+				StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(RECORD_TRAILER), crcOffset);
+		}
+
+		try (RequestJournal journal = new RequestJournal(directory)) {
+			final List<RequestJournal.Entry> recovered = journal.getRecovered();
+			assertEquals(2, recovered.size());
+			for (int i = 0; i < recovered.size(); i++) {
+				assertArrayEquals(clientId(i + 1), recovered.get(i).getClientId());
+				assertArrayEquals(request(i + 1, REQUEST_LENGTH), recovered.get(i).getRequest());
+			}
+		}
+	}
+
+	@Test
+	public void doneRecordInLaterSegmentIsRecovered() throws IOException {
+		try (RequestJournal journal = new RequestJournal(directory)) {
+			for (long requestId = 1; requestId <= 3; requestId++) {
+				journal.accepted(requestId, ByteBuffer.wrap(clientId(requestId)),
+						ByteBuffer.wrap(request(requestId, LARGE_REQUEST_LENGTH)));
+			}
+			assertEquals(2, journal.getSegmentCount());
+			// the first request is accepted in the first segment and done in the second
+			journal.done(1);
+		}
+		assertTrue(Files.exists(directory.resolve("journal-000002.log")));
+
+		try (RequestJournal journal = new RequestJournal(directory)) {
+			final List<RequestJournal.Entry> recovered = journal.getRecovered();
+			assertEquals(2, recovered.size());
+			assertArrayEquals(clientId(2), recovered.get(0).getClientId());
+			assertArrayEquals(request(2, LARGE_REQUEST_LENGTH), recovered.get(0).getRequest());
+			assertArrayEquals(clientId(3), recovered.get(1).getClientId());
+			assertArrayEquals(request(3, LARGE_REQUEST_LENGTH), recovered.get(1).getRequest());
+		}
+	}
+
+	@Test
+	public void oldestSegmentIsDeletedOnceDone() throws IOException {
+		try (RequestJournal journal = new RequestJournal(directory)) {
+			for (long requestId = 1; requestId <= 3; requestId++) {
+				journal.accepted(requestId, ByteBuffer.wrap(clientId(requestId)),
+						ByteBuffer.wrap(request(requestId, LARGE_REQUEST_LENGTH)));
+			}
+			assertEquals(2, journal.getSegmentCount());
+			journal.done(1);
+			// the second request keeps the first segment
+			assertEquals(2, journal.getSegmentCount());
+			journal.done(2);
+			assertEquals(1, journal.getSegmentCount());
+			assertFalse(Files.exists(directory.resolve("journal-000001.log")));
+			assertEquals(1, journal.size());
+		}
+
+		try (RequestJournal journal = new RequestJournal(directory)) {
+			final List<RequestJournal.Entry> recovered = journal.getRecovered();
+			assertEquals(1, recovered.size());
+			assertArrayEquals(clientId(3), recovered.get(0).getClientId());
+			assertArrayEquals(request(3, LARGE_REQUEST_LENGTH), recovered.get(0).getRequest());
+		}
+	}
+
+	private static byte[] clientId(long requestId) {
+		final byte[] clientId = new byte[CLIENT_ID_LENGTH];
+		clientId[0] = (byte) requestId;
+		return clientId;
+	}
+
+	private static byte[] request(long requestId, int length) {
+		final byte[] request = new byte[length];
+		for (int i = 0; i < length; i++) {
+			request[i] = (byte) (requestId + i);
+		}
+		return request;
+	}
+}
@@ -0,0 +1,116 @@
+package loadbalancingbroker.broker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import loadbalancingbroker.domain.TilePriority;
+
+/**
+ * Order the broker's queue serves waiting requests in: lanes, cost windows and requeued requests.
+ */
+public class RequestQueueTest {
+	private static final long MILLIS = 1_000_000;
+
+	private long nextRequestId = 1;
+
+	@Test
+	public void strictLanesServeInteractiveFirst() {
+		final RequestQueue queue = new RequestQueue(10);
+		final InFlightRequest background = request(TilePriority.BACKGROUND, 0);
+		final InFlightRequest interactive = request(TilePriority.INTERACTIVE, 0);
+		assertTrue(queue.offer(background, 0));
+		assertTrue(queue.offer(interactive, 1));
+
+		assertSame(interactive, queue.poll(2));
+		assertSame(background, queue.poll(3));
+		assertNull(queue.poll(4));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void weightedLanesShareByWeight() {
+		final RequestQueue queue = new RequestQueue(1_000, RequestQueue.Order.FIFO, RequestQueue.LanePolicy.WEIGHTED,
+				new int[] { 4, 1 });
+		for (int i = 0; i < 100; i++) {
+			queue.offer(request(TilePriority.INTERACTIVE, 0), 0);
+			queue.offer(request(TilePriority.BACKGROUND, 0), 0);
+		}
+		int interactive = 0;
+		for (int i = 0; i < 50; i++) {
+			if (queue.poll(1).getPriority() == TilePriority.INTERACTIVE) {
+				interactive++;
+			}
+		}
+		// background work keeps moving, at a quarter of the interactive rate
+		assertEquals(40, interactive);
+		assertEquals(60, queue.laneSize(TilePriority.INTERACTIVE));
+		assertEquals(90, queue.laneSize(TilePriority.BACKGROUND));
+	}
+
+	@Test
+	public void longestFirstWithinWindowOnly() {
+		final RequestQueue queue = new RequestQueue(10, RequestQueue.Order.LONGEST_FIRST);
+		final InFlightRequest early = request(TilePriority.INTERACTIVE, 10);
+		final InFlightRequest cheap = request(TilePriority.INTERACTIVE, 20);
+		final InFlightRequest expensive = request(TilePriority.INTERACTIVE, 300);
+		final InFlightRequest nextFrame = request(TilePriority.INTERACTIVE, 1_000);
+		queue.offer(early, 0);
+		queue.offer(cheap, 10 * MILLIS);
+		queue.offer(expensive, 20 * MILLIS);
+		// a later window, however expensive, waits for the earlier one
+		queue.offer(nextFrame, RequestQueue.LONGEST_FIRST_WINDOW_MILLIS * MILLIS + 1);
+
+		assertSame(expensive, queue.poll(0));
+		assertSame(cheap, queue.poll(0));
+		assertSame(early, queue.poll(0));
+		assertSame(nextFrame, queue.poll(0));
+	}
+
+	@Test
+	public void requeuedRequestsGoFirstAndIgnoreCapacity() {
+		final RequestQueue queue = new RequestQueue(2);
+		final InFlightRequest first = request(TilePriority.INTERACTIVE, 0);
+		final InFlightRequest second = request(TilePriority.INTERACTIVE, 0);
+		assertTrue(queue.offer(first, 0));
+		assertTrue(queue.offer(second, 0));
+		assertTrue(queue.isFull());
+		assertFalse(queue.offer(request(TilePriority.INTERACTIVE, 0), 0));
+
+		// taken back from a lost worker, it was accepted before
+		final InFlightRequest retried = request(TilePriority.BACKGROUND, 0);
+		queue.requeue(retried, 1);
+		assertEquals(3, queue.size());
+
+		assertSame(retried, queue.poll(2));
+		assertSame(first, queue.poll(2));
+		assertFalse(queue.isFull());
+		assertSame(second, queue.poll(2));
+	}
+
+	@Test
+	public void removeIfDropsFromAllLanesAndRetries() {
+		final RequestQueue queue = new RequestQueue(10);
+		final InFlightRequest kept = request(TilePriority.INTERACTIVE, 0);
+		queue.offer(kept, 0);
+		queue.offer(request(TilePriority.INTERACTIVE, 0), 0);
+		queue.offer(request(TilePriority.BACKGROUND, 0), 0);
+		queue.requeue(request(TilePriority.BACKGROUND, 0), 0);
+
+		assertEquals(3, queue.removeIf(request -> request != kept));
+		assertEquals(1, queue.size());
+		assertSame(kept, queue.poll(1));
+		assertTrue(queue.isEmpty());
+	}
+
+	private InFlightRequest request(TilePriority priority, long cost) {
+		final InFlightRequest request = new InFlightRequest(nextRequestId++, null, null, 1);
+		request.setPriority(priority);
+		request.setCost(cost);
+		return request;
+	}
+}
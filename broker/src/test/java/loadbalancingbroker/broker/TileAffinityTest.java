@@ -0,0 +1,110 @@
+package loadbalancingbroker.broker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Regions stay with their worker across reconnects and pass on to the same
+ * next worker while it is loaded above its bound.
+ */
+public class TileAffinityTest {
+	private static final int WORKERS = 4;
+	private static final int REGIONS = 200;
+	private static final int CREDITS = 4;
+
+	private final IdleWorkerIndex idle = new IdleWorkerIndex();
+	private final WorkerCredits credits = new WorkerCredits();
+
+	@Test
+	public void regionStaysWithWorkerAcrossReconnect() {
+		final TileAffinity affinity = joinAll(new TileAffinity());
+		final int[] before = selectAll(affinity);
+
+		// the second worker is lost, only its regions move
+		affinity.leave(1);
+		final int[] without = selectAll(affinity);
+		for (int region = 0; region < REGIONS; region++) {
+			if (before[region] != 1) {
+				assertEquals(before[region], without[region]);
+			} else {
+				assertNotEquals(1, without[region]);
+			}
+		}
+
+		// it reconnects with the id of its control header and gets its regions back
+		affinity.join(1, workerId(1));
+		final int[] after = selectAll(affinity);
+		for (int region = 0; region < REGIONS; region++) {
+			assertEquals(before[region], after[region]);
+		}
+	}
+
+	@Test
+	public void loadedWorkerPassesRegionToSameNextWorker() {
+		final TileAffinity affinity = joinAll(new TileAffinity());
+		final TileKey key = key(0);
+		final int preferred = affinity.select(key, idle, credits);
+		assertEquals(1, affinity.getPreferred());
+
+		// idle with credits left, but loaded above the average
+		credits.take(preferred);
+		credits.take(preferred);
+		final int next = affinity.select(key, idle, credits);
+		assertNotEquals(preferred, next);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(next, affinity.select(key, idle, credits));
+		}
+		assertEquals(11, affinity.getPassedOn());
+
+		// the next worker is the one the region goes to without the preferred one on the ring
+		affinity.leave(preferred);
+		assertEquals(next, affinity.select(key, idle, credits));
+
+		affinity.join(preferred, workerId(preferred));
+		credits.giveBack(preferred);
+		credits.giveBack(preferred);
+		assertEquals(preferred, affinity.select(key, idle, credits));
+	}
+
+	@Test
+	public void regionsSpreadOverAllWorkers() {
+		final TileAffinity affinity = joinAll(new TileAffinity());
+		final int[] regions = new int[WORKERS];
+		for (int slot : selectAll(affinity)) {
+			regions[slot]++;
+		}
+		for (int slot = 0; slot < WORKERS; slot++) {
+			assertTrue(regions[slot] > 0);
+		}
+	}
+
+	private TileAffinity joinAll(TileAffinity affinity) {
+		for (int slot = 0; slot < WORKERS; slot++) {
+			credits.grant(slot, CREDITS);
+			idle.offer(slot, 1);
+			affinity.join(slot, workerId(slot));
+		}
+		return affinity;
+	}
+
+	private int[] selectAll(TileAffinity affinity) {
+		final int[] slots = new int[REGIONS];
+		for (int region = 0; region < REGIONS; region++) {
+			slots[region] = affinity.select(key(region), idle, credits);
+		}
+		return slots;
+	}
+
+	private static int workerId(int slot) {
+		return 1_000 + 17 * slot;
+	}
+
+	private static TileKey key(int column) {
+		return new TileKey("raw", 700, 700, column, column + 1, 0, 700, 0);
+	}
+}
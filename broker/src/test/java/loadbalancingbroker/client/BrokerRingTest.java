@@ -0,0 +1,75 @@
+package loadbalancingbroker.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Order of the brokers a tile tries, and how it changes with the brokers.
+ */
+public class BrokerRingTest {
+	private static final List<String> URLS = List.of("tcp://localhost:5555", "tcp://localhost:5556",
+			"tcp://localhost:5557", "tcp://localhost:5558");
+	private static final int TILES = 700;
+
+	@Test
+	public void everyBrokerOnceInStableOrder() {
+		final BrokerRing ring = new BrokerRing(URLS);
+		final BrokerRing same = new BrokerRing(URLS);
+		for (int column = 0; column < TILES; column++) {
+			final List<Integer> order = ring.brokersFor(key(column));
+			assertEquals(URLS.size(), order.size());
+			assertEquals(URLS.size(), new HashSet<>(order).size());
+			assertEquals(order, ring.brokersFor(key(column)));
+			// every client that knows the same brokers agrees on the order
+			assertEquals(order, same.brokersFor(key(column)));
+			for (int attempt = 0; attempt < 2 * URLS.size(); attempt++) {
+				assertEquals(URLS.get(order.get(attempt % URLS.size())), ring.brokerFor(key(column), attempt));
+			}
+		}
+	}
+
+	@Test
+	public void orderDoesNotDependOnListOrder() {
+		final BrokerRing ring = new BrokerRing(URLS);
+		final List<String> reversed = new ArrayList<>(URLS);
+		Collections.reverse(reversed);
+		final BrokerRing reversedRing = new BrokerRing(reversed);
+		for (int column = 0; column < TILES; column++) {
+			for (int attempt = 0; attempt < URLS.size(); attempt++) {
+				assertEquals(ring.brokerFor(key(column), attempt), reversedRing.brokerFor(key(column), attempt));
+			}
+		}
+	}
+
+	@Test
+	public void removedBrokerOnlyMovesItsTiles() {
+		final BrokerRing ring = new BrokerRing(URLS);
+		final BrokerRing smaller = new BrokerRing(URLS.subList(0, URLS.size() - 1));
+		final String removed = URLS.get(URLS.size() - 1);
+		int moved = 0;
+		for (int column = 0; column < TILES; column++) {
+			final String broker = ring.brokerFor(key(column));
+			if (broker.equals(removed)) {
+				// the tile goes to its fallback, the next broker of its order
+				assertEquals(ring.brokerFor(key(column), 1), smaller.brokerFor(key(column)));
+				moved++;
+			} else {
+				assertEquals(broker, smaller.brokerFor(key(column)));
+			}
+		}
+		assertTrue(moved > 0);
+	}
+
+	private static TileKey key(int column) {
+		return new TileKey("raw", 700, 700, column, column + 1, 0, 700, 0);
+	}
+}
@@ -0,0 +1,73 @@
+package loadbalancingbroker.worker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+import loadbalancingbroker.domain.TileKey;
+
+/**
+ * Least recently used replies leave the worker's cache to keep it within its byte budget.
+ */
+public class TileResultCacheTest {
+
+	@Test
+	public void evictsLeastRecentlyUsedUnderBudget() {
+		final TileResultCache cache = new TileResultCache(300);
+		cache.put(key(0), new byte[100], 1);
+		cache.put(key(1), new byte[100], 1);
+		cache.put(key(2), new byte[100], 1);
+		// the first one is used again, the second one is now the least recently used
+		assertNotNull(cache.get(key(0)));
+
+		cache.put(key(3), new byte[100], 1);
+		assertEquals(3, cache.size());
+		assertEquals(300, cache.getUsedBytes());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(key(1)));
+		assertNotNull(cache.get(key(0)));
+		assertNotNull(cache.get(key(2)));
+		assertNotNull(cache.get(key(3)));
+
+		// a large reply evicts as many as it needs
+		cache.put(key(4), new byte[250], 1);
+		assertEquals(1, cache.size());
+		assertEquals(250, cache.getUsedBytes());
+		assertNotNull(cache.get(key(4)));
+	}
+
+	@Test
+	public void replacedReplyCountsOnce() {
+		final TileResultCache cache = new TileResultCache(300);
+		cache.put(key(0), new byte[100], 1);
+		final byte[] replacement = new byte[150];
+		cache.put(key(0), replacement, 7);
+
+		assertEquals(1, cache.size());
+		assertEquals(150, cache.getUsedBytes());
+		final TileResultCache.Result result = cache.get(key(0));
+		assertSame(replacement, result.getReply());
+		assertEquals(7, result.getIterations());
+	}
+
+	@Test
+	public void replyLargerThanBudgetIsNotStored() {
+		final TileResultCache cache = new TileResultCache(300);
+		cache.put(key(0), new byte[100], 1);
+		cache.put(key(1), new byte[301], 1);
+
+		assertNull(cache.get(key(1)));
+		assertNotNull(cache.get(key(0)));
+		assertEquals(100, cache.getUsedBytes());
+		assertEquals(0, cache.getEvictions());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	private static TileKey key(int column) {
+		return new TileKey("raw", 700, 700, column, column + 1, 0, 700, 0);
+	}
+}